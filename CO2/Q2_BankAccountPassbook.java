@@ -1,20 +1,31 @@
 package c02;
 
+import com.sun.management.ThreadMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 // Bank Account Passbook - Demonstrating Passing/Returning Objects, static keyword
 class BankAccount {
     private String accountHolder;
     private int accountNumber;
     private double balance;
-    private static int accountCount = 0; // Static variable to track total accounts
+    private static final AtomicInteger accountCount = new AtomicInteger(); // Static counter of total accounts
+    private final ReentrantLock lock = new ReentrantLock(); // Guards balance
     
     // Constructor
     public BankAccount(String accountHolder, double initialBalance) {
         this.accountHolder = accountHolder;
         this.balance = initialBalance;
-        accountCount++; // Increment count for each new account
-        this.accountNumber = 1000 + accountCount; // Unique account number
+        this.accountNumber = 1000 + accountCount.incrementAndGet(); // Unique even when accounts are created concurrently
     }
     
     // Getter methods
@@ -27,41 +38,66 @@ class BankAccount {
     }
     
     public double getBalance() {
-        return balance;
+        lock.lock();
+        try {
+            return balance;
+        } finally {
+            lock.unlock();
+        }
     }
     
     public static int getAccountCount() {
-        return accountCount;
+        return accountCount.get();
     }
     
     // Method to withdraw money
     public boolean withdraw(double amount) {
-        if (amount > 0 && balance >= amount) {
-            balance -= amount;
-            return true;
+        lock.lock();
+        try {
+            if (amount > 0 && balance >= amount) {
+                balance -= amount;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
     
     // Method to deposit money
     public void deposit(double amount) {
-        if (amount > 0) {
-            balance += amount;
+        lock.lock();
+        try {
+            if (amount > 0) {
+                balance += amount;
+            }
+        } finally {
+            lock.unlock();
         }
     }
     
     // Method to transfer money (returns Transaction object)
+    // Delegates to TransferService so both accounts are locked in a fixed order
     public Transaction transferTo(BankAccount target, double amount) {
-        Transaction transaction;
-        
-        if (this.withdraw(amount)) {
-            target.deposit(amount);
-            transaction = new Transaction(this.accountNumber, target.accountNumber, amount, "Success");
-        } else {
-            transaction = new Transaction(this.accountNumber, target.accountNumber, amount, "Failed");
+        return TransferService.transfer(this, target, amount);
+    }
+    
+    // Allocation-free variant: the result is written into a reusable buffer
+    public boolean transferTo(BankAccount target, double amount, TransactionBuffer results) {
+        return TransferService.transferInto(this, target, amount, results);
+    }
+    
+    ReentrantLock getLock() {
+        return lock;
+    }
+    
+    // Unconditional balance change used to roll back an applied transfer
+    // leg; the caller already holds this account's lock, so it cannot fail
+    void adjustBalance(double delta) {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Lock not held for account " + accountNumber);
         }
-        
-        return transaction;
+        balance += delta;
     }
     
     // Method to display account details
@@ -69,7 +105,21 @@ class BankAccount {
         System.out.println("\n--- Account Details ---");
         System.out.println("Account Number: " + accountNumber);
         System.out.println("Account Holder: " + accountHolder);
-        System.out.println("Balance: $" + String.format("%.2f", balance));
+        System.out.println("Balance: $" + String.format("%.2f", getBalance()));
+    }
+}
+
+enum TransactionStatus {
+    SUCCESS("Success"), FAILED("Failed");
+    
+    private final String label;
+    
+    TransactionStatus(String label) {
+        this.label = label;
+    }
+    
+    public String getLabel() {
+        return label;
     }
 }
 
@@ -77,23 +127,221 @@ class Transaction {
     private int fromAccount;
     private int toAccount;
     private double amount;
-    private String status;
+    private TransactionStatus status;
     
     // Constructor
-    public Transaction(int fromAccount, int toAccount, double amount, String status) {
+    public Transaction(int fromAccount, int toAccount, double amount, TransactionStatus status) {
         this.fromAccount = fromAccount;
         this.toAccount = toAccount;
         this.amount = amount;
         this.status = status;
     }
     
+    // Original String-status form, kept for existing callers
+    public Transaction(int fromAccount, int toAccount, double amount, String status) {
+        this(fromAccount, toAccount, amount,
+             TransactionStatus.SUCCESS.getLabel().equals(status) ? TransactionStatus.SUCCESS : TransactionStatus.FAILED);
+    }
+    
+    public boolean isSuccessful() {
+        return status == TransactionStatus.SUCCESS;
+    }
+    
+    public TransactionStatus getStatus() {
+        return status;
+    }
+    
     // Method to display transaction details
     public void displayTransaction() {
         System.out.println("\n--- Transaction Details ---");
         System.out.println("From Account: " + fromAccount);
         System.out.println("To Account: " + toAccount);
         System.out.println("Amount: $" + String.format("%.2f", amount));
-        System.out.println("Status: " + status);
+        System.out.println("Status: " + status.getLabel());
+    }
+}
+
+// Reusable ring of transfer results kept in parallel primitive arrays
+// Recording a transfer only writes array slots, so a hot transfer loop
+// creates no garbage; once full, the oldest results are overwritten.
+// Use one buffer per thread
+class TransactionBuffer {
+    private static final TransactionStatus[] STATUSES = TransactionStatus.values();
+    
+    private final int mask;
+    private final int[] fromAccounts;
+    private final int[] toAccounts;
+    private final double[] amounts;
+    private final byte[] statuses;
+    private long recorded;
+    
+    public TransactionBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.fromAccounts = new int[size];
+        this.toAccounts = new int[size];
+        this.amounts = new double[size];
+        this.statuses = new byte[size];
+    }
+    
+    public void record(int fromAccount, int toAccount, double amount, TransactionStatus status) {
+        int slot = (int) (recorded++ & mask);
+        fromAccounts[slot] = fromAccount;
+        toAccounts[slot] = toAccount;
+        amounts[slot] = amount;
+        statuses[slot] = (byte) status.ordinal();
+    }
+    
+    // Number of results currently held, oldest at index 0
+    public int size() {
+        return (int) Math.min(recorded, mask + 1);
+    }
+    
+    public long getRecordedCount() {
+        return recorded;
+    }
+    
+    public void clear() {
+        recorded = 0;
+    }
+    
+    public int getFromAccount(int index) {
+        return fromAccounts[slotOf(index)];
+    }
+    
+    public int getToAccount(int index) {
+        return toAccounts[slotOf(index)];
+    }
+    
+    public double getAmount(int index) {
+        return amounts[slotOf(index)];
+    }
+    
+    public TransactionStatus getStatus(int index) {
+        return STATUSES[statuses[slotOf(index)]];
+    }
+    
+    // Materializes one result when a Transaction object is really needed
+    public Transaction toTransaction(int index) {
+        int slot = slotOf(index);
+        return new Transaction(fromAccounts[slot], toAccounts[slot], amounts[slot], STATUSES[statuses[slot]]);
+    }
+    
+    private int slotOf(int index) {
+        return (int) ((recorded - size() + index) & mask);
+    }
+}
+
+// Transfer service - atomic, deadlock-free transfers between accounts
+// Locks are always taken in ascending account-number order, so two threads
+// moving money in opposite directions can never wait on each other
+class TransferService {
+    
+    // A single leg of a batched transfer
+    static class TransferLeg {
+        final BankAccount from;
+        final BankAccount to;
+        final double amount;
+        
+        TransferLeg(BankAccount from, BankAccount to, double amount) {
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+        }
+    }
+    
+    // Single transfers take the two locks directly (same ordering rule);
+    // the only allocation is the returned Transaction
+    public static Transaction transfer(BankAccount from, BankAccount to, double amount) {
+        boolean success = move(from, to, amount);
+        return new Transaction(from.getAccountNumber(), to.getAccountNumber(), amount,
+                               success ? TransactionStatus.SUCCESS : TransactionStatus.FAILED);
+    }
+    
+    // Same transfer, with the outcome recorded in the buffer instead
+    public static boolean transferInto(BankAccount from, BankAccount to, double amount, TransactionBuffer results) {
+        boolean success = move(from, to, amount);
+        results.record(from.getAccountNumber(), to.getAccountNumber(), amount,
+                       success ? TransactionStatus.SUCCESS : TransactionStatus.FAILED);
+        return success;
+    }
+    
+    private static boolean move(BankAccount from, BankAccount to, double amount) {
+        BankAccount first = from.getAccountNumber() <= to.getAccountNumber() ? from : to;
+        BankAccount second = first == from ? to : from;
+        first.getLock().lock();
+        second.getLock().lock();
+        try {
+            boolean success = from != to && from.withdraw(amount);
+            if (success) {
+                to.deposit(amount);
+            }
+            return success;
+        } finally {
+            second.getLock().unlock();
+            first.getLock().unlock();
+        }
+    }
+    
+    // Applies every leg or none of them: if any leg fails, legs already
+    // applied are rolled back and every leg is reported as failed
+    public static Transaction[] transferBatch(TransferLeg[] legs) {
+        BankAccount[] ordered = lockOrder(legs);
+        for (BankAccount account : ordered) {
+            account.getLock().lock();
+        }
+        try {
+            int applied = 0;
+            boolean success = true;
+            for (TransferLeg leg : legs) {
+                if (leg.from == leg.to || !leg.from.withdraw(leg.amount)) {
+                    success = false;
+                    break;
+                }
+                leg.to.deposit(leg.amount);
+                applied++;
+            }
+            
+            // Every account is still locked, so undoing the applied legs
+            // cannot be refused the way a withdraw can
+            if (!success) {
+                for (int i = applied - 1; i >= 0; i--) {
+                    legs[i].to.adjustBalance(-legs[i].amount);
+                    legs[i].from.adjustBalance(legs[i].amount);
+                }
+            }
+            
+            Transaction[] transactions = new Transaction[legs.length];
+            for (int i = 0; i < legs.length; i++) {
+                transactions[i] = new Transaction(legs[i].from.getAccountNumber(),
+                        legs[i].to.getAccountNumber(), legs[i].amount,
+                        success ? TransactionStatus.SUCCESS : TransactionStatus.FAILED);
+            }
+            return transactions;
+        } finally {
+            for (int i = ordered.length - 1; i >= 0; i--) {
+                ordered[i].getLock().unlock();
+            }
+        }
+    }
+    
+    // Distinct accounts touched by the batch, sorted by account number
+    private static BankAccount[] lockOrder(TransferLeg[] legs) {
+        BankAccount[] accounts = new BankAccount[legs.length * 2];
+        int count = 0;
+        for (TransferLeg leg : legs) {
+            accounts[count++] = leg.from;
+            accounts[count++] = leg.to;
+        }
+        Arrays.sort(accounts, (a, b) -> Integer.compare(a.getAccountNumber(), b.getAccountNumber()));
+        
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || accounts[unique - 1] != accounts[i]) {
+                accounts[unique++] = accounts[i];
+            }
+        }
+        return Arrays.copyOf(accounts, unique);
     }
 }
 
@@ -155,6 +403,176 @@ public class Q2_BankAccountPassbook {
         account1.displayAccountDetails();
         account2.displayAccountDetails();
         
+        // Concurrent transfers between many accounts
+        System.out.println("\n=== CONCURRENT TRANSFER TEST ===");
+        runConcurrentTransferTest(100, 2_000, 1_000_000);
+        
+        // Garbage produced by Transaction objects versus the pooled buffer
+        System.out.println("\n=== TRANSFER ALLOCATION BENCHMARK ===");
+        runTransferAllocationBenchmark(5_000_000);
+        
         scanner.close();
     }
+    
+    // Runs the same single-threaded transfer loop keeping the last 1024
+    // results, either as Transaction objects from transferTo(target, amount)
+    // or in a TransactionBuffer; each variant is run once to warm up and once
+    // measured. Allocation comes from the HotSpot per-thread counter, GC
+    // pauses from the collector MXBeans
+    private static void runTransferAllocationBenchmark(int transferCount) {
+        BankAccount[] accounts = new BankAccount[100];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new BankAccount("Bench Holder " + (i + 1), 1_000_000);
+        }
+        TransactionBuffer buffer = new TransactionBuffer(1024);
+        Transaction[] history = new Transaction[1024];
+        
+        for (int round = 0; round < 2; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                boolean pooled = mode == 1;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long gcCountBefore = gcCount();
+                long gcMillisBefore = gcMillis();
+                long allocatedBefore = threadAllocatedBytes();
+                long start = System.nanoTime();
+                int succeeded = 0;
+                for (int i = 0; i < transferCount; i++) {
+                    BankAccount from = accounts[random.nextInt(accounts.length)];
+                    BankAccount to = accounts[random.nextInt(accounts.length)];
+                    double amount = 1 + random.nextInt(100);
+                    boolean success;
+                    if (pooled) {
+                        success = from.transferTo(to, amount, buffer);
+                    } else {
+                        Transaction transaction = from.transferTo(to, amount);
+                        history[i & (history.length - 1)] = transaction;
+                        success = transaction.isSuccessful();
+                    }
+                    if (success) {
+                        succeeded++;
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                long allocated = allocatedBefore < 0 ? -1 : threadAllocatedBytes() - allocatedBefore;
+                if (round == 1) {
+                    System.out.println((pooled ? "Pooled buffer:      " : "Transaction object: ") +
+                                       String.format("%.0f", transferCount / seconds) + " transfers/sec, " +
+                                       (allocated < 0 ? "n/a" : String.format("%.1f", allocated / (double) transferCount)) +
+                                       " bytes/transfer, " +
+                                       (allocated < 0 ? "n/a" : String.format("%.0f", allocated / seconds / (1024 * 1024))) +
+                                       " MB/s allocated, GCs: " + (gcCount() - gcCountBefore) +
+                                       " (" + (gcMillis() - gcMillisBefore) + " ms paused), ok: " + succeeded);
+                }
+            }
+        }
+    }
+    
+    private static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+        if (bean != null && bean.isThreadAllocatedMemorySupported()) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+    
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+    
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+    
+    // Thousands of threads transfer between random account pairs at once,
+    // released together by a start gate; one operation in ten is a two-leg
+    // batch whose second leg often fails and is rolled back. With ordered
+    // locking nothing deadlocks and the total balance is unchanged. If the
+    // threads have not finished within two minutes the test reports a
+    // failure instead of a summary
+    private static void runConcurrentTransferTest(int accountTotal, int threadCount, int transferCount) {
+        BankAccount[] accounts = new BankAccount[accountTotal];
+        for (int i = 0; i < accountTotal; i++) {
+            accounts[i] = new BankAccount("Test Holder " + (i + 1), 1000);
+        }
+        double initialTotal = accountTotal * 1000.0;
+        
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger rolledBack = new AtomicInteger();
+        int perThread = transferCount / threadCount;
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch startGate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ready.countDown();
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    BankAccount from = accounts[random.nextInt(accountTotal)];
+                    BankAccount to = accounts[random.nextInt(accountTotal)];
+                    if (from == to) {
+                        continue;
+                    }
+                    if (random.nextInt(10) == 0) {
+                        BankAccount third = accounts[random.nextInt(accountTotal)];
+                        Transaction[] batch = TransferService.transferBatch(new TransferService.TransferLeg[] {
+                            new TransferService.TransferLeg(from, to, random.nextInt(1, 200)),
+                            new TransferService.TransferLeg(to, third, random.nextInt(1, 2000))
+                        });
+                        if (batch[0].isSuccessful()) {
+                            succeeded.incrementAndGet();
+                        } else {
+                            rolledBack.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    Transaction transaction = from.transferTo(to, random.nextInt(1, 200));
+                    if (transaction.isSuccessful()) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            });
+        }
+        long start;
+        try {
+            ready.await();
+            start = System.nanoTime();
+            startGate.countDown();
+            executor.shutdown();
+            if (!executor.awaitTermination(2, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+                System.out.println("FAILED: transfers did not finish within 2 minutes (possible deadlock)");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        double finalTotal = 0;
+        for (BankAccount account : accounts) {
+            finalTotal += account.getBalance();
+        }
+        
+        System.out.println("Accounts: " + accountTotal + ", threads: " + threadCount +
+                           ", transfers attempted: " + (perThread * threadCount));
+        System.out.println("Successful transfers: " + succeeded.get() + ", batches rolled back or refused: " + rolledBack.get());
+        System.out.println("Throughput: " + String.format("%.0f", perThread * threadCount / elapsedSeconds) +
+                           " transfers/sec");
+        System.out.println("Total balance conserved: " + (finalTotal == initialTotal ? "Yes" : "NO"));
+    }
 }
\ No newline at end of file
@@ -1,75 +1,715 @@
 package c03;
 
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
 // Q12: Advanced Bank Account System
 // Comprehensive banking system demonstrating advanced OOP concepts
 
+// Fixed-point money helpers
+// Amounts are held as a primitive long number of cents and rates as long
+// basis points (1/100 of a percent), so arithmetic is exact and allocation
+// free; doubles only appear at the public API edges
+final class Money {
+    static final long CENTS_PER_UNIT = 100;
+    
+    private Money() {
+    }
+    
+    public static long of(double amount) {
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+    
+    public static double toDouble(long cents) {
+        return cents / (double) CENTS_PER_UNIT;
+    }
+    
+    public static long basisPoints(double percent) {
+        return Math.round(percent * 100);
+    }
+    
+    public static double toPercent(long basisPoints) {
+        return basisPoints / 100.0;
+    }
+    
+    // cents * basisPoints / 10000, rounded half away from zero
+    public static long percentOf(long cents, long basisPoints) {
+        return divideRounded(cents * basisPoints, 10_000);
+    }
+    
+    // One month of simple interest at an annual rate
+    public static long monthlyInterest(long cents, long annualBasisPoints) {
+        return divideRounded(cents * annualBasisPoints, 120_000);
+    }
+    
+    private static long divideRounded(long value, long divisor) {
+        long half = divisor / 2;
+        return value >= 0 ? (value + half) / divisor : -((-value + half) / divisor);
+    }
+    
+    // Appends "1234.56" style text without going through String.format
+    public static StringBuilder appendTo(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % CENTS_PER_UNIT;
+        out.append(cents / CENTS_PER_UNIT).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+    
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+    
+    public static String format(double amount) {
+        return format(of(amount));
+    }
+}
+
 // Abstract base class for all bank accounts
 abstract class BankAccount {
     protected String accountNumber;
     protected String accountHolderName;
-    protected double balance;
+    protected long balanceCents;
     protected String accountType;
-    protected java.util.Date dateCreated;
-    protected boolean isActive;
-    protected double interestRate;
+    protected Date dateCreated;
+    protected volatile boolean isActive; // closed only under balanceLock
+    protected long interestRateBps;
+    
+    // Static variable to track total number of accounts; accounts are
+    // opened from many threads, so the count is atomic
+    protected static final AtomicInteger totalAccounts = new AtomicInteger();
+    
+    // Running totals for this account's type; set when added to a bank.
+    // Changed and added to only under the write lock (see attachStatistics)
+    private volatile BankStatistics.TypeTotals typeTotals;
+    
+    // Change feed for the bank's read replica; null when none is enabled
+    private volatile ChangeFeed changeFeed;
+    
+    // Write-ahead log of the owning bank; null when it runs in memory
+    private volatile BankPersistence persistence;
+    
+    // Velocity monitor of the owning bank; null when it has none
+    private volatile VelocityMonitor velocityMonitor;
     
-    // Static variable to track total number of accounts
-    protected static int totalAccounts = 0;
+    // Committed request ids of the owning bank; null outside a bank
+    private volatile RequestWindow requestWindow;
+    
+    // Order in which the owning bank registered the account, for listings
+    private volatile long registration;
+    
+    // Where emit() sends events; replaced by the bank holding the account
+    private volatile AccountEventSink eventSink = ConsoleEventSink.INSTANCE;
+    
+    // Newest month-end step applied to this account (see applyMonthEnd)
+    private long monthEndStep = -1;
+    
+    // Step value for credits and fees made outside a month-end run
+    static final long NO_MONTH_END = -1;
+    
+    // Returned instead of a balance by credit, debit and applyMonthEnd when
+    // nothing was applied
+    static final long REFUSED = Long.MIN_VALUE;
+    
+    // Guards balanceCents and subclass fields read together with it (such
+    // as overdraft limits). Writers take the write lock; readers validate
+    // an optimistic stamp and only lock when a write raced with them
+    protected final StampedLock balanceLock = new StampedLock();
+    
+    // Held by TransactionEngine.execute around operations of several steps;
+    // single deposits and withdrawals do not take it
+    final ReentrantLock operationLock = new ReentrantLock();
     
     public BankAccount(String accountNumber, String accountHolderName, double initialBalance) {
+        this(accountNumber, accountHolderName);
+        this.balanceCents = Money.of(initialBalance);
+        totalAccounts.incrementAndGet();
+    }
+    
+    // Rebuilds an account that already exists in a snapshot or log: it is
+    // not counted as a new account and readState supplies its balance
+    BankAccount(String accountNumber, String accountHolderName) {
         this.accountNumber = accountNumber;
         this.accountHolderName = accountHolderName;
-        this.balance = initialBalance;
-        this.dateCreated = new java.util.Date();
+        this.dateCreated = new Date();
         this.isActive = true;
-        totalAccounts++;
     }
     
     // Abstract methods that must be implemented by subclasses
     public abstract void calculateInterest();
-    public abstract boolean withdraw(double amount);
+    public abstract boolean withdrawCents(long cents);
     public abstract void displayAccountDetails();
     public abstract double getMinimumBalance();
     
     // Concrete methods available to all account types
-    public final void deposit(double amount) {
-        if (amount > 0 && isActive) {
-            balance += amount;
-            System.out.println("Deposited $" + String.format("%.2f", amount) + 
-                             " to account " + accountNumber);
-            System.out.println("New balance: $" + String.format("%.2f", balance));
-        } else {
-            System.out.println("Invalid deposit amount or account is inactive");
+    public final boolean deposit(double amount) {
+        return depositCents(Money.of(amount));
+    }
+    
+    public final boolean withdraw(double amount) {
+        return withdrawCents(Money.of(amount));
+    }
+    
+    public final boolean depositCents(long cents) {
+        long balance = cents > 0 ? credit(cents) : REFUSED;
+        if (balance != REFUSED) {
+            emit(AccountEventType.DEPOSIT, cents, balance);
+            return true;
+        }
+        emit(AccountEventType.DEPOSIT_REJECTED, cents);
+        return false;
+    }
+    
+    // Deposit step: the active check and the credit happen under one write
+    // lock, like debit, so a deposit never lands on an account that
+    // closeAccount has just closed. Returns the new balance, or REFUSED when
+    // the account is closed
+    private long credit(long cents) {
+        long stamp = balanceLock.writeLock();
+        try {
+            if (!isActive) {
+                return REFUSED;
+            }
+            String request = claimRequest();
+            if (request == null) {
+                return REFUSED;
+            }
+            applyLocked(BankPersistence.OP_ADJUST, cents, 0, request);
+            return balanceCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
         }
     }
     
     public final double getBalance() {
+        return Money.toDouble(getBalanceCents());
+    }
+    
+    // Runs the bank's velocity check for a withdrawal; false means decline.
+    // Only withdrawals that go through stay in the window: a declined one is
+    // taken out here, and one that then fails must call forgetVelocity with
+    // the same time
+    protected final boolean passesVelocityCheck(long amountCents, long nowMillis) {
+        VelocityMonitor monitor = velocityMonitor;
+        if (monitor == null || !monitor.recordAndCheck(accountNumber, amountCents, nowMillis)) {
+            return true;
+        }
+        emit(AccountEventType.VELOCITY_ALERT, amountCents);
+        if (monitor.isDeclining()) {
+            monitor.forget(accountNumber, amountCents, nowMillis);
+            return false;
+        }
+        return true;
+    }
+    
+    // Takes a failed or reversed withdrawal back out of the velocity window
+    protected final void forgetVelocity(long amountCents, long sinceMillis) {
+        VelocityMonitor monitor = velocityMonitor;
+        if (monitor != null) {
+            monitor.forget(accountNumber, amountCents, sinceMillis);
+        }
+    }
+    
+    // Gives back the limit slots a withdrawal made at or after sinceMillis
+    // used, when it is reversed (an aborted two-phase transfer). The refund
+    // itself is a deposit; accounts without limits have nothing to do
+    void releaseWithdrawal(long amountCents, long sinceMillis) {
+    }
+    
+    // Hands a structured event to the account's sink instead of printing.
+    // Events that did not change the balance carry its current value
+    protected final void emit(AccountEventType type, long amountCents) {
+        emit(type, amountCents, getBalanceCents());
+    }
+    
+    // For changes: balanceAfter is the balance the change left, as read
+    // under its write lock
+    protected final void emit(AccountEventType type, long amountCents, long balanceAfter) {
+        eventSink.onEvent(type, accountType, accountNumber, amountCents, balanceAfter);
+    }
+    
+    final void attachEventSink(AccountEventSink sink) {
+        eventSink = sink;
+    }
+    
+    // Optimistic read: no lock is taken unless a write raced with the read,
+    // so balance polling never holds up deposits and withdrawals
+    public final long getBalanceCents() {
+        long stamp = balanceLock.tryOptimisticRead();
+        long cents = balanceCents;
+        if (!balanceLock.validate(stamp)) {
+            stamp = balanceLock.readLock();
+            try {
+                cents = balanceCents;
+            } finally {
+                balanceLock.unlockRead(stamp);
+            }
+        }
+        return cents;
+    }
+    
+    // All balance changes go through here so bank-wide totals stay current
+    protected final void adjustBalance(long deltaCents) {
+        long stamp = balanceLock.writeLock();
+        try {
+            applyLocked(BankPersistence.OP_ADJUST, deltaCents, 0);
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    // Month-end credit or charge. Steps increase from run to run and phase
+    // to phase; one that this account already has is skipped. The checks,
+    // the balance change and the new step are applied under one write lock
+    // and logged as one record, so re-running a month-end after a crash
+    // never applies a step twice, and nothing lands on an account closed
+    // in between. NO_MONTH_END skips the step check. Returns the new
+    // balance, or REFUSED when the account is closed or the step was skipped
+    protected final long applyMonthEnd(long step, long deltaCents) {
+        long stamp = balanceLock.writeLock();
+        try {
+            if (!isActive) {
+                return REFUSED;
+            }
+            if (step == NO_MONTH_END) {
+                applyLocked(BankPersistence.OP_ADJUST, deltaCents, 0);
+            } else if (monthEndStep >= step) {
+                return REFUSED;
+            } else {
+                monthEndStep = step;
+                applyLocked(BankPersistence.OP_MONTH_END, deltaCents, step);
+            }
+            return balanceCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    // Bulk month-end interest: interestCents was computed by a columnar pass
+    // from seenBalanceCents and seenRateBps, read without the lock. Under the
+    // write lock the account must still be active and at its interest floor;
+    // if the balance or rate moved since the read, the interest is computed
+    // again from the current values, so it is never credited on a stale
+    // balance or to an account closed in between. Journal and event follow
+    // via interestCredited. Returns false when nothing was credited
+    final boolean creditAccruedInterest(long step, long seenBalanceCents, long seenRateBps, long interestCents) {
+        long credited = interestCents;
+        long balance;
+        long stamp = balanceLock.writeLock();
+        try {
+            if (!isActive || balanceCents < interestFloorCents() ||
+                (step != NO_MONTH_END && monthEndStep >= step)) {
+                return false;
+            }
+            if (balanceCents != seenBalanceCents || interestRateBps != seenRateBps) {
+                credited = Money.monthlyInterest(balanceCents, interestRateBps);
+            }
+            if (step == NO_MONTH_END) {
+                applyLocked(BankPersistence.OP_ADJUST, credited, 0);
+            } else {
+                monthEndStep = step;
+                applyLocked(BankPersistence.OP_MONTH_END, credited, step);
+            }
+            balance = balanceCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+        interestCredited(credited, balance);
+        return true;
+    }
+    
+    // Single-account interest (calculateInterest): a month of interest is
+    // computed from the balance and rate read under the write lock and
+    // credited in the same section, so a concurrent withdrawal or close
+    // cannot leave it computed on a stale balance or paid to a closed
+    // account. Returns false when nothing was credited
+    protected final boolean creditInterest() {
+        long credited;
+        long balance;
+        long stamp = balanceLock.writeLock();
+        try {
+            if (!isActive || balanceCents < interestFloorCents()) {
+                return false;
+            }
+            credited = Money.monthlyInterest(balanceCents, interestRateBps);
+            applyLocked(BankPersistence.OP_ADJUST, credited, 0);
+            balance = balanceCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+        interestCredited(credited, balance);
+        return true;
+    }
+    
+    // Lowest balance that still earns interest
+    protected long interestFloorCents() {
+        return Long.MIN_VALUE;
+    }
+    
+    // Runs after interest is credited on either path, with the balance the
+    // credit left
+    protected void interestCredited(long interestCents, long balanceAfter) {
+        emit(AccountEventType.INTEREST, interestCents, balanceAfter);
+    }
+    
+    // Withdrawal step: checks the balance and takes cents plus any charge
+    // from debitChargeCents under one write lock, so a concurrent writer
+    // cannot slip in between the check and the debit. Returns the new
+    // balance, or REFUSED when the balance would fall below debitFloorCents()
+    // or the account was closed after the caller checked, or when the
+    // ingested command being applied was already committed (see
+    // claimRequest). A charge is reported to chargeTaken once unlocked
+    protected final long debit(long cents) {
+        long charge;
+        long balance;
+        long stamp = balanceLock.writeLock();
+        try {
+            if (!isActive || balanceCents - cents < debitFloorCents()) {
+                return REFUSED;
+            }
+            String request = claimRequest();
+            if (request == null) {
+                return REFUSED;
+            }
+            charge = debitChargeCents(balanceCents, cents);
+            applyLocked(BankPersistence.OP_WITHDRAW, -(cents + charge), System.currentTimeMillis(), request);
+            balance = balanceCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+        if (charge > 0) {
+            chargeTaken(charge, balance);
+        }
         return balance;
     }
     
+    // Lowest balance a withdrawal may leave; called under the write lock
+    protected long debitFloorCents() {
+        return 0;
+    }
+    
+    // Fee or penalty taken along with a withdrawal of cents from balance;
+    // called under the write lock
+    protected long debitChargeCents(long balance, long cents) {
+        return 0;
+    }
+    
+    // Runs after a withdrawal that took a charge, with the balance it left
+    protected void chargeTaken(long chargeCents, long balanceAfter) {
+    }
+    
+    // Called under the write lock just before a deposit or withdrawal is
+    // applied. When the calling thread is applying an ingested command
+    // (RequestWindow.tag) its request id is recorded here, so two threads
+    // applying the same command cannot both move money: the second finds
+    // the id taken and the change is refused. Returns "" when no command is
+    // being applied, the id when it was recorded, and null for a duplicate
+    private String claimRequest() {
+        RequestWindow window = requestWindow;
+        return window == null ? "" : window.claimTagged();
+    }
+    
+    private void applyLocked(byte op, long deltaCents, long detail) {
+        applyLocked(op, deltaCents, detail, "");
+    }
+    
+    // Caller holds the write lock. Changes are added to the type totals,
+    // published to the feed and logged under it, so the totals, the replica
+    // and the log see one account's changes in the order they were applied.
+    // request is the ingested command's id logged with the change, "" when
+    // there is none
+    private void applyLocked(byte op, long deltaCents, long detail, String request) {
+        BankPersistence log = persistence;
+        if (log != null) {
+            log.beginChange(accountNumber);
+        }
+        try {
+            balanceCents += deltaCents;
+            addToTotals(deltaCents);
+            ChangeFeed feed = changeFeed;
+            if (feed != null) {
+                feed.publish(ChangeFeed.BALANCE, this, balanceCents);
+            }
+            if (log != null) {
+                log.appendBalance(op, accountNumber, deltaCents, detail, request);
+            }
+        } finally {
+            if (log != null) {
+                log.endChange(accountNumber);
+            }
+        }
+    }
+    
+    // Changes fields other than the balance (rates, limits, flags) under the
+    // write lock and logs the account's whole state after them, so recovery
+    // restores the setting exactly. The change must not take balanceLock
+    protected final void changeSettings(Runnable change) {
+        BankPersistence log = persistence;
+        long stamp = balanceLock.writeLock();
+        if (log != null) {
+            log.beginChange(accountNumber);
+        }
+        try {
+            change.run();
+            if (log != null) {
+                log.appendState(this);
+            }
+        } finally {
+            if (log != null) {
+                log.endChange(accountNumber);
+            }
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    private void addToTotals(long deltaCents) {
+        BankStatistics.TypeTotals totals = typeTotals;
+        if (totals != null) {
+            totals.balanceCents.add(deltaCents);
+        }
+    }
+    
+    // Moves the balance and closed flag from the current totals to totals
+    // (either may be null) under the write lock, so a change racing with
+    // the move is counted exactly once
+    final void attachStatistics(BankStatistics.TypeTotals totals) {
+        long stamp = balanceLock.writeLock();
+        try {
+            BankStatistics.TypeTotals previous = typeTotals;
+            if (previous != null) {
+                previous.balanceCents.add(-balanceCents);
+                if (!isActive) {
+                    previous.closed.decrement();
+                }
+            }
+            if (totals != null) {
+                totals.balanceCents.add(balanceCents);
+                if (!isActive) {
+                    totals.closed.increment();
+                }
+            }
+            typeTotals = totals;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    final BankStatistics.TypeTotals getStatistics() {
+        return typeTotals;
+    }
+    
+    final void attachChangeFeed(ChangeFeed feed) {
+        this.changeFeed = feed;
+    }
+    
+    final ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+    
+    final void attachPersistence(BankPersistence log) {
+        this.persistence = log;
+    }
+    
+    final void attachVelocityMonitor(VelocityMonitor monitor) {
+        this.velocityMonitor = monitor;
+    }
+    
+    final void attachRequestWindow(RequestWindow window) {
+        this.requestWindow = window;
+    }
+    
+    final void setRegistration(long registration) {
+        this.registration = registration;
+    }
+    
+    final long getRegistration() {
+        return registration;
+    }
+    
+    // Called by entry points once they hold no account lock: returns when
+    // every change this thread has logged is durable and the bank's read
+    // replica, if it was given a lag bound, is back within it
+    final void awaitSettled() {
+        BankPersistence log = persistence;
+        if (log != null) {
+            log.awaitOwnAppends();
+        }
+        ChangeFeed feed = changeFeed;
+        if (feed != null) {
+            feed.throttle();
+        }
+    }
+    
+    // Recovery: re-applies a logged balance change as recorded, without
+    // limits, velocity checks or events, which already ran the first time
+    final void replayChange(long deltaCents) {
+        adjustBalance(deltaCents);
+    }
+    
+    // Logged withdrawals also restore the limiter slot they used
+    void replayWithdrawal(long deltaCents, long timeMillis) {
+        replayChange(deltaCents);
+    }
+    
+    final void replayClose() {
+        long stamp = balanceLock.writeLock();
+        try {
+            markClosed();
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    final void replayMonthEnd(long deltaCents, long step) {
+        replayChange(deltaCents);
+        monthEndStep = step;
+    }
+    
     public final void closeAccount() {
+        BankPersistence log = persistence;
+        long stamp = balanceLock.writeLock();
+        if (log != null) {
+            log.beginChange(accountNumber);
+        }
+        try {
+            markClosed();
+            ChangeFeed feed = changeFeed;
+            if (feed != null) {
+                feed.publish(ChangeFeed.CLOSE, this, balanceCents);
+            }
+            if (log != null) {
+                log.appendClose(accountNumber);
+            }
+        } finally {
+            if (log != null) {
+                log.endChange(accountNumber);
+            }
+            balanceLock.unlockWrite(stamp);
+        }
+        emit(AccountEventType.ACCOUNT_CLOSED, 0);
+    }
+    
+    // Caller holds the write lock
+    private void markClosed() {
+        if (isActive && typeTotals != null) {
+            typeTotals.closed.increment();
+        }
         isActive = false;
-        System.out.println("Account " + accountNumber + " has been closed");
     }
     
     public final void displayBasicInfo() {
         System.out.println("Account Number: " + accountNumber);
         System.out.println("Account Holder: " + accountHolderName);
         System.out.println("Account Type: " + accountType);
-        System.out.println("Balance: $" + String.format("%.2f", balance));
+        System.out.println("Balance: $" + Money.format(getBalanceCents()));
         System.out.println("Status: " + (isActive ? "Active" : "Closed"));
         System.out.println("Date Created: " + dateCreated);
     }
     
     // Static method
     public static int getTotalAccounts() {
-        return totalAccounts;
+        return totalAccounts.get();
     }
     
     // Getters
     public String getAccountNumber() { return accountNumber; }
     public String getAccountHolderName() { return accountHolderName; }
     public boolean isActive() { return isActive; }
+    
+    // Binary state used by snapshots and the write-ahead log; subclasses
+    // append their own fields after calling super
+    void writeState(ByteBuffer out) {
+        out.putLong(balanceCents);
+        out.put((byte) (isActive ? 1 : 0));
+        out.putLong(interestRateBps);
+        out.putLong(dateCreated.getTime());
+        out.putLong(monthEndStep);
+    }
+    
+    void readState(ByteBuffer in) {
+        long stamp = balanceLock.writeLock();
+        try {
+            balanceCents = in.getLong();
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+        isActive = in.get() == 1;
+        interestRateBps = in.getLong();
+        dateCreated = new Date(in.getLong());
+        monthEndStep = in.getLong();
+    }
 }
 
 // Interface for accounts that can earn interest
@@ -78,6 +718,15 @@ interface InterestEarning {
     void setInterestRate(double rate);
     double getInterestRate();
     
+    // Split out of calculateInterest so the bulk accrual path can decide
+    // eligibility up front and credit precomputed interest afterwards;
+    // crediting journals and emits the INTEREST event on either path
+    boolean isEligibleForInterest();
+    void creditMonthlyInterest(long interestCents);
+    
+    // Month-end variant; false when the step was already applied
+    boolean creditMonthlyInterest(long interestCents, long monthEndStep);
+    
     default void displayInterestInfo() {
         System.out.println("Interest Rate: " + getInterestRate() + "%");
     }
@@ -96,10 +745,18 @@ interface OverdraftProtection {
     boolean isOverdrawn();
     
     default void displayOverdraftInfo() {
-        System.out.println("Overdraft Limit: $" + String.format("%.2f", getOverdraftLimit()));
-        System.out.println("Available Credit: $" + String.format("%.2f", getAvailableCredit()));
+        System.out.println("Overdraft Limit: $" + Money.format(getOverdraftLimit()));
+        System.out.println("Available Credit: $" + Money.format(getAvailableCredit()));
         System.out.println("Overdrawn: " + (isOverdrawn() ? "Yes" : "No"));
     }
+    
+    // The same report for a limit and balance taken from an event
+    static void displayOverdraftInfo(long limitCents, long balanceCents) {
+        System.out.println("Overdraft Limit: $" + Money.format(limitCents));
+        System.out.println("Available Credit: $" +
+                         Money.format(balanceCents < 0 ? limitCents + balanceCents : limitCents));
+        System.out.println("Overdrawn: " + (balanceCents < 0 ? "Yes" : "No"));
+    }
 }
 
 // Interface for premium account features
@@ -120,544 +777,902 @@ interface TransactionTracking {
     void displayTransactionHistory();
     void generateMonthlyStatement();
     
+    // Journal position of the newest entry, or -1 when there is none, and
+    // the journal holding it; both are read under the account's lock
+    long getLatestJournalEntry();
+    TransactionJournal getJournal();
+    
+    // Moves the history into journal: adopts the chain journal recovered
+    // for this account, otherwise copies the current one over
+    void attachJournal(TransactionJournal journal);
+    
     default String formatTransaction(String type, double amount, String description) {
+        return formatTransaction(System.currentTimeMillis(), type, amount, description);
+    }
+    
+    default String formatTransaction(long timestamp, String type, double amount, String description) {
         return String.format("[%s] %s: $%.2f - %s", 
-                           new java.util.Date().toString(), type, amount, description);
+                           new Date(timestamp).toString(), type, amount, description);
     }
 }
 
-// Savings Account class
-class SavingsAccount extends BankAccount implements InterestEarning, TransactionTracking {
-    private final double MINIMUM_BALANCE = 100.0;
-    private final int MAX_WITHDRAWALS_PER_MONTH = 6;
-    private int withdrawalsThisMonth;
-    private String[] transactionHistory;
-    private int transactionCount;
-    private static final int MAX_TRANSACTIONS = 100;
+// Append-only binary transaction journal
+// Each entry is a fixed 32-byte record in a memory-mapped segment file:
+//   [previous entry of same account:4][account id:4][timestamp:8][amount in cents:8][type id:4][description id:4]
+// The previous entry is a record index (-1 for none). Accounts only keep
+// the position of their latest entry and walk the chain backwards when
+// history is displayed, so history has no length cap, appends do not
+// allocate, and records are decoded only when printed.
+// Account numbers, types and descriptions are written once to a codes file
+// and referenced by their byte offset in it. The code index is rebuilt from
+// that file on open, so a code is never written twice and the file grows
+// with the distinct codes, not the records; a description is cut to
+// MAX_CODE_CHARS.
+// A bank with persistence keeps its journal in the persistence directory,
+// and open() rebuilds each account's latest entry from the records. The
+// shared() journal is a scratch journal in a temporary directory for
+// accounts that are not persisted
+class TransactionJournal {
+    static final int RECORD_SIZE = 32;
+    static final int MAX_CODE_CHARS = 256;
+    private static final int SEGMENT_SHIFT = 20; // 1 MB segments
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
     
-    public SavingsAccount(String accountNumber, String accountHolderName, double initialBalance) {
-        super(accountNumber, accountHolderName, initialBalance);
-        this.accountType = "Savings";
-        this.interestRate = 2.5; // 2.5% annual interest
-        this.withdrawalsThisMonth = 0;
-        this.transactionHistory = new String[MAX_TRANSACTIONS];
-        this.transactionCount = 0;
-        addTransaction("ACCOUNT_OPENING", initialBalance, "Initial deposit");
+    private static TransactionJournal shared;
+    
+    private final Path directory;
+    private final boolean temporary;
+    private final AtomicLong nextPosition = new AtomicLong();
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    
+    // Codes file: [length:2][UTF-8 bytes] per code; ids are byte offsets
+    private final FileChannel codesFile;
+    private long codesEnd;
+    private final Map<String, Integer> codeIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> codeText = new ConcurrentHashMap<>();
+    
+    // Latest entry and entry count per account number, found by open()
+    private final Map<String, long[]> recoveredHeads = new ConcurrentHashMap<>();
+    
+    private TransactionJournal(Path directory, boolean temporary) throws IOException {
+        this.directory = directory;
+        this.temporary = temporary;
+        Path codes = directory.resolve("journal.codes");
+        this.codesFile = FileChannel.open(codes, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (temporary) {
+            codes.toFile().deleteOnExit();
+        }
     }
     
-    @Override
-    public void calculateInterest() {
-        if (isActive && balance >= MINIMUM_BALANCE) {
-            double monthlyInterest = (balance * interestRate / 100) / 12;
-            balance += monthlyInterest;
-            addTransaction("INTEREST", monthlyInterest, "Monthly interest credit");
-            System.out.println("Interest calculated and credited: $" + 
-                             String.format("%.2f", monthlyInterest));
+    public static synchronized TransactionJournal shared() {
+        if (shared == null) {
+            try {
+                Path directory = Files.createTempDirectory("bank-journal");
+                directory.toFile().deleteOnExit();
+                shared = new TransactionJournal(directory, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create transaction journal", e);
+            }
         }
+        return shared;
     }
     
-    @Override
-    public boolean withdraw(double amount) {
-        if (!isActive) {
-            System.out.println("Account is not active");
-            return false;
+    // Opens the journal kept in directory, continuing after its last record;
+    // with recoverHeads, accounts attached later adopt their recorded chains
+    static TransactionJournal open(Path directory, boolean recoverHeads) {
+        try {
+            TransactionJournal journal = new TransactionJournal(directory, false);
+            journal.recover();
+            if (!recoverHeads) {
+                journal.recoveredHeads.clear();
+            }
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open transaction journal in " + directory, e);
         }
-        
-        if (withdrawalsThisMonth >= MAX_WITHDRAWALS_PER_MONTH) {
-            System.out.println("Monthly withdrawal limit exceeded");
-            return false;
+    }
+    
+    // Reads the codes file back into the code index up to its first torn
+    // entry, then scans the segments up to the first unwritten record
+    // (timestamp 0) and notes each account's newest entry; a record with no
+    // previous entry starts a new chain, as when an account number is
+    // reopened
+    private void recover() throws IOException {
+        long size = codesFile.size();
+        if (size > 0) {
+            MappedByteBuffer codes = codesFile.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (codesEnd + 2 <= size) {
+                int bytes = codes.getShort((int) codesEnd) & 0xffff;
+                if (bytes == 0 || codesEnd + 2 + bytes > size) {
+                    break;
+                }
+                byte[] text = new byte[bytes];
+                codes.get((int) codesEnd + 2, text);
+                cache(new String(text, StandardCharsets.UTF_8), (int) codesEnd);
+                codesEnd += 2 + bytes;
+            }
         }
         
-        if (amount <= 0) {
-            System.out.println("Invalid withdrawal amount");
-            return false;
+        int segmentCount = 0;
+        while (Files.exists(segmentFile(segmentCount))) {
+            segmentCount++;
         }
-        
-        if (balance - amount < MINIMUM_BALANCE) {
-            System.out.println("Insufficient funds. Minimum balance required: $" + 
-                             String.format("%.2f", MINIMUM_BALANCE));
-            return false;
+        long position = 0;
+        long end = (long) segmentCount << SEGMENT_SHIFT;
+        while (position < end && timestampOf(position) != 0) {
+            long[] head = recoveredHeads.computeIfAbsent(accountOf(position), a -> new long[] {-1, 0});
+            head[1] = previousOf(position) < 0 ? 1 : head[1] + 1;
+            head[0] = position;
+            position += RECORD_SIZE;
         }
-        
-        balance -= amount;
-        withdrawalsThisMonth++;
-        addTransaction("WITHDRAWAL", amount, "ATM/Branch withdrawal");
-        System.out.println("Withdrew $" + String.format("%.2f", amount) + 
-                         " from savings account " + accountNumber);
-        System.out.println("New balance: $" + String.format("%.2f", balance));
-        System.out.println("Remaining withdrawals this month: " + 
-                         (MAX_WITHDRAWALS_PER_MONTH - withdrawalsThisMonth));
-        return true;
+        nextPosition.set(position);
     }
     
-    @Override
-    public void displayAccountDetails() {
-        System.out.println("\n=== Savings Account Details ===");
-        displayBasicInfo();
-        System.out.println("Minimum Balance: $" + String.format("%.2f", MINIMUM_BALANCE));
-        System.out.println("Interest Rate: " + interestRate + "% per annum");
-        System.out.println("Withdrawals this month: " + withdrawalsThisMonth + "/" + 
-                         MAX_WITHDRAWALS_PER_MONTH);
-        displayInterestInfo();
+    // Latest entry and entry count of accountNumber found when the journal
+    // was opened, or null; each is handed out once
+    long[] takeRecoveredHead(String accountNumber) {
+        return recoveredHeads.remove(accountNumber);
     }
     
-    @Override
-    public double getMinimumBalance() {
-        return MINIMUM_BALANCE;
+    // Appends a record and returns its position; pass the returned value as
+    // previousEntry on the account's next append (-1 for the first entry)
+    public long append(long previousEntry, String accountNumber, String type, long amountCents, String description) {
+        return append(previousEntry, accountNumber, System.currentTimeMillis(), type, amountCents, description);
     }
     
-    // InterestEarning implementation
-    @Override
-    public void compoundInterest() {
-        calculateInterest();
+    private long append(long previousEntry, String accountNumber, long timestamp,
+                        String type, long amountCents, String description) {
+        long position = nextPosition.getAndAdd(RECORD_SIZE);
+        MappedByteBuffer segment = segmentFor(position);
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        segment.putInt(offset, previousEntry < 0 ? -1 : (int) (previousEntry / RECORD_SIZE));
+        segment.putInt(offset + 4, codeId(accountNumber));
+        segment.putLong(offset + 16, amountCents);
+        segment.putInt(offset + 24, codeId(type));
+        segment.putInt(offset + 28, codeId(description));
+        // Written last: recovery stops at the first record without one
+        segment.putLong(offset + 8, timestamp);
+        return position;
     }
     
-    @Override
-    public void setInterestRate(double rate) {
-        if (rate >= 0 && rate <= 10) {
-            this.interestRate = rate;
-            System.out.println("Interest rate updated to " + rate + "%");
-        } else {
-            System.out.println("Invalid interest rate");
+    // Copies one account's chain from source, oldest first and with the
+    // original timestamps; returns the position of the newest copy
+    long copyChain(TransactionJournal source, long latestEntry, String accountNumber) {
+        List<Long> positions = new ArrayList<>();
+        for (long p = latestEntry; p >= 0; p = source.previousOf(p)) {
+            positions.add(p);
         }
-    }
-    
-    @Override
-    public double getInterestRate() {
-        return interestRate;
-    }
-    
-    // TransactionTracking implementation
-    @Override
-    public void addTransaction(String transactionType, double amount, String description) {
-        if (transactionCount < MAX_TRANSACTIONS) {
-            transactionHistory[transactionCount] = formatTransaction(transactionType, amount, description);
-            transactionCount++;
+        long copied = -1;
+        for (int i = positions.size() - 1; i >= 0; i--) {
+            long p = positions.get(i);
+            copied = append(copied, accountNumber, source.timestampOf(p), source.typeOf(p),
+                    source.amountOf(p), source.descriptionOf(p));
         }
+        return copied;
     }
     
-    @Override
-    public void displayTransactionHistory() {
-        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
-        for (int i = Math.max(0, transactionCount - 10); i < transactionCount; i++) {
-            System.out.println(transactionHistory[i]);
+    // Prints up to 'limit' most recent entries of one account, oldest first
+    public void printRecent(long latestEntry, int limit, TransactionTracking formatter) {
+        long[] positions = new long[limit];
+        int found = 0;
+        for (long p = latestEntry; p >= 0 && found < limit; p = previousOf(p)) {
+            positions[found++] = p;
         }
-        if (transactionCount > 10) {
-            System.out.println("... showing last 10 transactions");
+        for (int i = found - 1; i >= 0; i--) {
+            long p = positions[i];
+            System.out.println(formatter.formatTransaction(timestampOf(p), typeOf(p),
+                    Money.toDouble(amountOf(p)), descriptionOf(p)));
         }
     }
     
-    @Override
-    public void generateMonthlyStatement() {
-        System.out.println("\n=== Monthly Statement - Savings Account ===");
-        displayBasicInfo();
-        System.out.println("Withdrawals this month: " + withdrawalsThisMonth);
-        displayTransactionHistory();
+    public long previousOf(long position) {
+        int index = segmentFor(position).getInt((int) (position & (SEGMENT_SIZE - 1)));
+        return index < 0 ? -1 : (long) index * RECORD_SIZE;
     }
     
-    public void resetMonthlyLimits() {
-        withdrawalsThisMonth = 0;
-        System.out.println("Monthly withdrawal limit reset for account " + accountNumber);
+    public long timestampOf(long position) {
+        return segmentFor(position).getLong((int) (position & (SEGMENT_SIZE - 1)) + 8);
     }
-}
-
-// Checking Account class
-class CheckingAccount extends BankAccount implements OverdraftProtection, TransactionTracking, PremiumFeatures {
-    private final double MINIMUM_BALANCE = 25.0;
-    private double overdraftLimit;
-    private double monthlyFee;
-    private boolean hasPremium;
-    private String[] transactionHistory;
-    private int transactionCount;
-    private static final int MAX_TRANSACTIONS = 200;
     
-    public CheckingAccount(String accountNumber, String accountHolderName, double initialBalance) {
-        super(accountNumber, accountHolderName, initialBalance);
-        this.accountType = "Checking";
-        this.overdraftLimit = 500.0;
-        this.monthlyFee = 12.0;
-        this.hasPremium = false;
-        this.transactionHistory = new String[MAX_TRANSACTIONS];
-        this.transactionCount = 0;
-        addTransaction("ACCOUNT_OPENING", initialBalance, "Initial deposit");
+    public long amountOf(long position) {
+        return segmentFor(position).getLong((int) (position & (SEGMENT_SIZE - 1)) + 16);
     }
     
-    @Override
-    public void calculateInterest() {
-        // Checking accounts typically don't earn interest
-        System.out.println("Checking accounts do not earn interest");
+    public String accountOf(long position) {
+        return code(segmentFor(position).getInt((int) (position & (SEGMENT_SIZE - 1)) + 4));
     }
     
-    @Override
-    public boolean withdraw(double amount) {
-        if (!isActive) {
-            System.out.println("Account is not active");
-            return false;
+    public String typeOf(long position) {
+        return code(segmentFor(position).getInt((int) (position & (SEGMENT_SIZE - 1)) + 24));
+    }
+    
+    public String descriptionOf(long position) {
+        return code(segmentFor(position).getInt((int) (position & (SEGMENT_SIZE - 1)) + 28));
+    }
+    
+    public long getRecordCount() {
+        return nextPosition.get() / RECORD_SIZE;
+    }
+    
+    // Bytes of distinct codes written so far
+    public long getCodeBytes() {
+        synchronized (codesFile) {
+            return codesEnd;
         }
-        
-        if (amount <= 0) {
-            System.out.println("Invalid withdrawal amount");
-            return false;
+    }
+    
+    private int codeId(String code) {
+        if (code.length() > MAX_CODE_CHARS) {
+            code = code.substring(0, MAX_CODE_CHARS);
         }
-        
-        double availableBalance = balance + overdraftLimit;
-        
-        if (amount > availableBalance) {
-            System.out.println("Insufficient funds including overdraft protection");
-            return false;
+        Integer id = codeIds.get(code);
+        if (id != null) {
+            return id;
         }
-        
-        balance -= amount;
-        
-        if (balance < 0) {
-            double overdraftFee = 35.0;
-            if (!hasPremium) {
-                balance -= overdraftFee;
-                addTransaction("OVERDRAFT_FEE", overdraftFee, "Overdraft fee charged");
-                System.out.println("Overdraft fee charged: $" + String.format("%.2f", overdraftFee));
+        synchronized (codesFile) {
+            id = codeIds.get(code);
+            if (id != null) {
+                return id;
             }
+            byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(2 + bytes.length);
+            entry.putShort((short) bytes.length).put(bytes).flip();
+            try {
+                long at = codesEnd;
+                while (entry.hasRemaining()) {
+                    at += codesFile.write(entry, at);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write journal codes in " + directory, e);
+            }
+            if (codesEnd > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Journal codes file is full in " + directory);
+            }
+            int offset = (int) codesEnd;
+            codesEnd += entry.limit();
+            cache(code, offset);
+            return offset;
         }
-        
-        addTransaction("WITHDRAWAL", amount, "Debit/Check withdrawal");
-        System.out.println("Withdrew $" + String.format("%.2f", amount) + 
-                         " from checking account " + accountNumber);
-        System.out.println("New balance: $" + String.format("%.2f", balance));
-        
-        if (isOverdrawn()) {
-            System.out.println("⚠️ Account is overdrawn");
-            displayOverdraftInfo();
-        }
-        
-        return true;
     }
     
-    @Override
-    public void displayAccountDetails() {
-        System.out.println("\n=== Checking Account Details ===");
-        displayBasicInfo();
-        System.out.println("Monthly Fee: $" + String.format("%.2f", monthlyFee));
-        System.out.println("Premium Features: " + (hasPremium ? "Enabled" : "Disabled"));
-        displayOverdraftInfo();
-        if (hasPremium) {
-            displayPremiumBenefits();
+    private String code(int offset) {
+        String text = codeText.get(offset);
+        if (text != null) {
+            return text;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(2);
+            codesFile.read(length, offset);
+            ByteBuffer bytes = ByteBuffer.allocate(length.getShort(0) & 0xffff);
+            while (bytes.hasRemaining() && codesFile.read(bytes, offset + 2 + bytes.position()) > 0) {
+                // read until the code is complete
+            }
+            text = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read journal codes in " + directory, e);
         }
+        cache(text, offset);
+        return text;
     }
     
-    @Override
-    public double getMinimumBalance() {
-        return MINIMUM_BALANCE;
+    // Both maps hold every distinct code, mostly account numbers, so they
+    // grow with the accounts and not with the records
+    private void cache(String text, int offset) {
+        codeIds.putIfAbsent(text, offset);
+        codeText.put(offset, text);
     }
     
-    // OverdraftProtection implementation
-    @Override
-    public void setOverdraftLimit(double limit) {
-        if (limit >= 0 && limit <= 2000) {
-            this.overdraftLimit = limit;
-            System.out.println("Overdraft limit set to $" + String.format("%.2f", limit));
-        } else {
-            System.out.println("Invalid overdraft limit");
+    private Path segmentFile(int index) {
+        return directory.resolve(String.format("journal-%05d.seg", index));
+    }
+    
+    private MappedByteBuffer segmentFor(long position) {
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] current = segments;
+        if (index < current.length) {
+            return current[index];
         }
+        return mapSegments(index);
     }
     
+    private synchronized MappedByteBuffer mapSegments(int index) {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length) {
+            return current[index];
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(current, index + 1);
+        for (int i = current.length; i <= index; i++) {
+            Path file = segmentFile(i);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map journal segment " + file, e);
+            }
+            if (temporary) {
+                file.toFile().deleteOnExit();
+            }
+        }
+        segments = grown;
+        return grown[index];
+    }
+}
+
+// Account events
+// Transaction methods report what happened as structured events instead of
+// printing. The sink decides what to do with them: print, hand them to a
+// background thread, or drop them for maximum throughput. Each account has
+// its own sink, console output by default; a bank sets the sink of every
+// account it holds
+enum AccountEventType {
+    DEPOSIT, DEPOSIT_REJECTED, WITHDRAWAL, ACCOUNT_INACTIVE, LIMIT_EXCEEDED,
+    INVALID_AMOUNT, INSUFFICIENT_FUNDS, OVERDRAFT_FEE,
+    EARLY_WITHDRAWAL_PENALTY, INTEREST, NO_INTEREST, MONTHLY_FEE,
+    LIMIT_RESET, CD_MATURED, VELOCITY_ALERT, ACCOUNT_ADDED, ACCOUNT_CLOSED, ACCOUNT_REMOVED,
+    // The amount carries a count rather than cents
+    WITHDRAWALS_REMAINING, TRANSACTIONS_REMAINING,
+    // The amount carries the account's minimum balance or overdraft limit
+    BELOW_MINIMUM_BALANCE, OVERDRAWN
+}
+
+interface AccountEventSink {
+    // No arguments are built per event, so emitting never allocates
+    void onEvent(AccountEventType type, String accountType, String accountNumber, long amountCents, long balanceCents);
+}
+
+class NoOpEventSink implements AccountEventSink {
     @Override
-    public double getOverdraftLimit() {
-        return overdraftLimit;
+    public void onEvent(AccountEventType type, String accountType, String accountNumber, long amountCents, long balanceCents) {
     }
+}
+
+// Stateless, so one instance serves every account that has no other sink
+class ConsoleEventSink implements AccountEventSink {
+    static final ConsoleEventSink INSTANCE = new ConsoleEventSink();
     
     @Override
-    public double getAvailableCredit() {
-        return balance < 0 ? overdraftLimit + balance : overdraftLimit;
+    public void onEvent(AccountEventType type, String accountType, String accountNumber, long amountCents, long balanceCents) {
+        switch (type) {
+            case DEPOSIT:
+                System.out.println("Deposited $" + Money.format(amountCents) + " to account " + accountNumber);
+                System.out.println("New balance: $" + Money.format(balanceCents));
+                break;
+            case DEPOSIT_REJECTED:
+                System.out.println("Invalid deposit amount or account is inactive");
+                break;
+            case WITHDRAWAL:
+                System.out.println("Withdrew $" + Money.format(amountCents) + " from " + kindOf(accountType) +
+                                 " account " + accountNumber);
+                System.out.println("New balance: $" + Money.format(balanceCents));
+                break;
+            case WITHDRAWALS_REMAINING:
+                System.out.println("Remaining withdrawals this month: " + amountCents);
+                break;
+            case TRANSACTIONS_REMAINING:
+                System.out.println("Remaining transactions this month: " + amountCents);
+                break;
+            case ACCOUNT_INACTIVE:
+                System.out.println("Account is not active");
+                break;
+            case LIMIT_EXCEEDED:
+                System.out.println("Monthly " + limitOf(accountType) + " limit exceeded");
+                break;
+            case INVALID_AMOUNT:
+                System.out.println("Invalid withdrawal amount");
+                break;
+            case BELOW_MINIMUM_BALANCE:
+                System.out.println("Insufficient funds. Minimum balance required: $" + Money.format(amountCents));
+                break;
+            case INSUFFICIENT_FUNDS:
+                System.out.println("Insufficient funds including overdraft protection");
+                break;
+            case OVERDRAFT_FEE:
+                System.out.println("Overdraft fee charged: $" + Money.format(amountCents));
+                break;
+            case OVERDRAWN:
+                System.out.println("⚠️ Account is overdrawn");
+                OverdraftProtection.displayOverdraftInfo(amountCents, balanceCents);
+                break;
+            case EARLY_WITHDRAWAL_PENALTY:
+                System.out.println("⚠️ Early withdrawal penalty applies!");
+                System.out.println("Early withdrawal penalty: $" + Money.format(amountCents));
+                break;
+            case INTEREST:
+                System.out.println("Interest calculated and credited: $" + Money.format(amountCents));
+                break;
+            case NO_INTEREST:
+                System.out.println("Checking".equals(accountType)
+                                 ? "Checking accounts do not earn interest"
+                                 : "No interest earned - balance below minimum");
+                break;
+            case MONTHLY_FEE:
+                System.out.println("Monthly fee charged: $" + Money.format(amountCents));
+                break;
+            case LIMIT_RESET:
+                System.out.println("Monthly " + limitOf(accountType) + " limit reset for account " + accountNumber);
+                break;
+            case CD_MATURED:
+                System.out.println("🎉 CD account " + accountNumber + " has matured!");
+                System.out.println("You can now withdraw without penalty");
+                break;
+            case VELOCITY_ALERT:
+                System.out.println("🚨 Unusual withdrawal activity on account " + accountNumber +
+                                 ": $" + Money.format(amountCents));
+                break;
+            case ACCOUNT_ADDED:
+                System.out.println("Account added to bank system: " + accountNumber);
+                break;
+            case ACCOUNT_CLOSED:
+                System.out.println("Account " + accountNumber + " has been closed");
+                break;
+            case ACCOUNT_REMOVED:
+                System.out.println("Account removed from bank system: " + accountNumber);
+                break;
+        }
     }
     
-    @Override
-    public boolean isOverdrawn() {
-        return balance < 0;
+    // "savings", "checking", "CD", "money market"
+    private static String kindOf(String accountType) {
+        return "Certificate of Deposit".equals(accountType) ? "CD" : accountType.toLowerCase();
     }
     
-    // PremiumFeatures implementation
-    @Override
-    public void enablePremiumFeatures() {
-        hasPremium = true;
-        monthlyFee += getPremiumFee();
-        overdraftLimit += 500; // Increased overdraft limit
-        System.out.println("Premium features enabled");
-        displayPremiumBenefits();
+    // Savings accounts limit withdrawals, money market accounts transactions
+    private static String limitOf(String accountType) {
+        return "Savings".equals(accountType) ? "withdrawal" : "transaction";
     }
+}
+
+// Asynchronous sink backed by a bounded lock-free ring buffer
+// Producers claim a slot with a CAS on the claim sequence, fill the
+// preallocated column arrays and publish the slot; a single background
+// thread drains slots in order into the delegate. When the ring is full the
+// event is dropped and counted, so the transaction path never waits on I/O.
+// The drain thread parks once the ring is empty and the producer that
+// publishes next unparks it; producers skip the unpark while it is running
+class AsyncEventSink implements AccountEventSink {
+    private final AccountEventSink delegate;
+    private final int mask;
+    private final AccountEventType[] types;
+    private final String[] accountTypes;
+    private final String[] accountNumbers;
+    private final long[] amounts;
+    private final long[] balances;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    private volatile boolean parked;
+    private final Thread consumer;
     
-    @Override
-    public void disablePremiumFeatures() {
-        hasPremium = false;
-        monthlyFee -= getPremiumFee();
-        overdraftLimit -= 500;
-        System.out.println("Premium features disabled");
+    public AsyncEventSink(AccountEventSink delegate, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.delegate = delegate;
+        this.mask = size - 1;
+        this.types = new AccountEventType[size];
+        this.accountTypes = new String[size];
+        this.accountNumbers = new String[size];
+        this.amounts = new long[size];
+        this.balances = new long[size];
+        this.published = new AtomicLongArray(size);
+        this.consumer = new Thread(this::drain, "account-event-sink");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
     }
     
     @Override
-    public boolean hasPremiumFeatures() {
-        return hasPremium;
+    public void onEvent(AccountEventType type, String accountType, String accountNumber, long amountCents, long balanceCents) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        
+        int slot = (int) seq & mask;
+        types[slot] = type;
+        accountTypes[slot] = accountType;
+        accountNumbers[slot] = accountNumber;
+        amounts[slot] = amountCents;
+        balances[slot] = balanceCents;
+        // A volatile store, so it cannot pass the read of parked: either the
+        // drain thread sees the slot before parking or this sees it parked
+        published.set(slot, seq + 1);
+        if (parked) {
+            LockSupport.unpark(consumer);
+        }
     }
     
-    @Override
-    public void displayPremiumBenefits() {
-        System.out.println("Premium Benefits:");
-        System.out.println("  ✓ No overdraft fees");
-        System.out.println("  ✓ Increased overdraft limit");
-        System.out.println("  ✓ Free wire transfers");
-        System.out.println("  ✓ 24/7 premium customer support");
+    public long getDroppedCount() {
+        return dropped.sum();
     }
     
-    // TransactionTracking implementation
-    @Override
-    public void addTransaction(String transactionType, double amount, String description) {
-        if (transactionCount < MAX_TRANSACTIONS) {
-            transactionHistory[transactionCount] = formatTransaction(transactionType, amount, description);
-            transactionCount++;
+    // Waits until every published event has been delivered, then stops
+    public void close() {
+        while (consumed < claimed.get()) {
+            Thread.onSpinWait();
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    @Override
-    public void displayTransactionHistory() {
-        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
-        for (int i = Math.max(0, transactionCount - 15); i < transactionCount; i++) {
-            System.out.println(transactionHistory[i]);
-        }
-        if (transactionCount > 15) {
-            System.out.println("... showing last 15 transactions");
+    private void drain() {
+        long next = 0;
+        while (running || next < claimed.get()) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next + 1) {
+                parked = true;
+                if (published.get(slot) != next + 1 && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            AccountEventType type = types[slot];
+            String accountType = accountTypes[slot];
+            String accountNumber = accountNumbers[slot];
+            long amount = amounts[slot];
+            long balance = balances[slot];
+            accountNumbers[slot] = null;
+            next++;
+            consumed = next;
+            delegate.onEvent(type, accountType, accountNumber, amount, balance);
         }
     }
+}
+
+// Rolling-window withdrawal limiter
+// Keeps the timestamps of the most recent accepted withdrawals in a ring
+// sized to the limit. Entries older than the window are dropped lazily when
+// the limiter is next used, so no month-end reset pass is needed
+final class RollingWindowLimiter {
+    static final long THIRTY_DAYS_MILLIS = 30L * 24 * 60 * 60 * 1000;
     
-    @Override
-    public void generateMonthlyStatement() {
-        System.out.println("\n=== Monthly Statement - Checking Account ===");
-        displayBasicInfo();
-        System.out.println("Monthly Fee: $" + String.format("%.2f", monthlyFee));
-        displayTransactionHistory();
+    private final long[] timestamps;
+    private final long windowMillis;
+    private int head;
+    private int size;
+    
+    RollingWindowLimiter(int limit, long windowMillis) {
+        this.timestamps = new long[limit];
+        this.windowMillis = windowMillis;
     }
     
-    public void chargeMonthlyFee() {
-        if (isActive) {
-            balance -= monthlyFee;
-            addTransaction("MONTHLY_FEE", monthlyFee, "Monthly maintenance fee");
-            System.out.println("Monthly fee charged: $" + String.format("%.2f", monthlyFee));
+    // Records a withdrawal at the given time if the window has room
+    synchronized boolean tryAcquire(long now) {
+        expire(now);
+        if (size == timestamps.length) {
+            return false;
         }
+        timestamps[(head + size) % timestamps.length] = now;
+        size++;
+        return true;
     }
-}
-
-// Certificate of Deposit (CD) Account
-class CertificateOfDeposit extends BankAccount implements InterestEarning {
-    private final double MINIMUM_BALANCE = 1000.0;
-    private int termInMonths;
-    private java.util.Date maturityDate;
-    private boolean isMatured;
-    private double penaltyRate;
     
-    public CertificateOfDeposit(String accountNumber, String accountHolderName, 
-                               double initialBalance, int termInMonths) {
-        super(accountNumber, accountHolderName, initialBalance);
-        this.accountType = "Certificate of Deposit";
-        this.termInMonths = termInMonths;
-        this.isMatured = false;
-        this.penaltyRate = 0.5; // 0.5% penalty for early withdrawal
-        
-        // Set interest rate based on term
-        if (termInMonths <= 6) {
-            this.interestRate = 3.0;
-        } else if (termInMonths <= 12) {
-            this.interestRate = 3.5;
-        } else if (termInMonths <= 24) {
-            this.interestRate = 4.0;
-        } else {
-            this.interestRate = 4.5;
+    // Gives back the most recent permit when the withdrawal did not go through
+    synchronized void release() {
+        if (size > 0) {
+            size--;
         }
-        
-        // Calculate maturity date
-        java.util.Calendar cal = java.util.Calendar.getInstance();
-        cal.setTime(dateCreated);
-        cal.add(java.util.Calendar.MONTH, termInMonths);
-        this.maturityDate = cal.getTime();
     }
     
-    @Override
-    public void calculateInterest() {
-        if (isActive) {
-            double monthlyInterest = (balance * interestRate / 100) / 12;
-            balance += monthlyInterest;
-            System.out.println("Interest calculated and credited: $" + 
-                             String.format("%.2f", monthlyInterest));
+    // Gives back the newest permit taken at or after the given time, for a
+    // withdrawal that was reversed after it went through
+    synchronized void releaseSince(long sinceMillis) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (timestamps[(head + i) % timestamps.length] >= sinceMillis) {
+                for (int j = i; j < size - 1; j++) {
+                    timestamps[(head + j) % timestamps.length] = timestamps[(head + j + 1) % timestamps.length];
+                }
+                size--;
+                return;
+            }
         }
     }
     
-    @Override
-    public boolean withdraw(double amount) {
-        if (!isActive) {
-            System.out.println("Account is not active");
-            return false;
+    synchronized int used(long now) {
+        expire(now);
+        return size;
+    }
+    
+    int getLimit() {
+        return timestamps.length;
+    }
+    
+    synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+    
+    synchronized void writeTo(ByteBuffer out) {
+        out.putInt(size);
+        for (int i = 0; i < size; i++) {
+            out.putLong(timestamps[(head + i) % timestamps.length]);
         }
-        
-        if (amount <= 0 || amount > balance) {
-            System.out.println("Invalid withdrawal amount");
-            return false;
+    }
+    
+    synchronized void readFrom(ByteBuffer in) {
+        clear();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long timestamp = in.getLong();
+            if (size < timestamps.length) {
+                timestamps[size++] = timestamp;
+            }
         }
-        
-        if (!isMatured) {
-            System.out.println("⚠️ Early withdrawal penalty applies!");
-            double penalty = balance * penaltyRate / 100;
-            balance -= penalty;
-            System.out.println("Early withdrawal penalty: $" + String.format("%.2f", penalty));
+    }
+    
+    private void expire(long now) {
+        while (size > 0 && timestamps[head] <= now - windowMillis) {
+            head = (head + 1) % timestamps.length;
+            size--;
         }
-        
-        balance -= amount;
-        System.out.println("Withdrew $" + String.format("%.2f", amount) + 
-                         " from CD account " + accountNumber);
-        System.out.println("New balance: $" + String.format("%.2f", balance));
-        
-        return true;
     }
+}
+
+// Velocity check for the withdraw path
+// Counts and sums withdrawals per account over a sliding window with one
+// count-min sketch per time bucket: each account hashes to one column in
+// each of DEPTH rows, and the estimate is the smallest row total over the
+// live buckets. Memory is fixed however many accounts are tracked and an
+// estimate can only over-count, so a real burst is never missed; a wider
+// sketch lowers false alarms. The counts and sums of all buckets for one
+// cell sit next to each other, so a check touches about one cache line per
+// row, and it reads all rows before its first CAS so their cache misses
+// overlap instead of queueing behind each fence. Every counter carries the
+// low bits of the epoch it counts, so the first writer of a new epoch
+// resets a stale counter with the same CAS that adds to it: there is no
+// sketch-wide clear when the clock moves on, and a writer still on an
+// older epoch cannot wipe newer counts.
+// Monitoring is opt-in per bank (BankManagementSystem.setVelocityMonitor)
+class VelocityMonitor {
+    enum Action { FLAG, DECLINE }
     
-    @Override
-    public void displayAccountDetails() {
-        System.out.println("\n=== Certificate of Deposit Details ===");
-        displayBasicInfo();
-        System.out.println("Minimum Balance: $" + String.format("%.2f", MINIMUM_BALANCE));
-        System.out.println("Term: " + termInMonths + " months");
-        System.out.println("Interest Rate: " + interestRate + "% per annum");
-        System.out.println("Maturity Date: " + maturityDate);
-        System.out.println("Matured: " + (isMatured ? "Yes" : "No"));
-        System.out.println("Early Withdrawal Penalty: " + penaltyRate + "%");
+    // recordAndCheck handles the rows one by one, so this is fixed at four
+    static final int DEPTH = 4;
+    
+    // Counter layout: [epoch tag:24][value:40]
+    private static final int VALUE_BITS = 40;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+    private static final long TAG_MASK = (1L << (Long.SIZE - VALUE_BITS)) - 1;
+    
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int width;
+    private final int maxCount;
+    private final long maxAmountCents;
+    private final Action action;
+    private final int cellSize;
+    private final AtomicLongArray cells; // [row][column][bucket counts..., bucket sums...]
+    private final LongAdder alerts = new LongAdder();
+    
+    public VelocityMonitor(long windowMillis, int bucketCount, int width, int maxCount, long maxAmountCents,
+                           Action action) {
+        this.bucketMillis = windowMillis / bucketCount;
+        this.bucketCount = bucketCount;
+        this.width = Integer.highestOneBit(width);
+        this.maxCount = maxCount;
+        this.maxAmountCents = maxAmountCents;
+        this.action = action;
+        this.cellSize = 2 * bucketCount;
+        this.cells = new AtomicLongArray(DEPTH * this.width * cellSize);
     }
     
-    @Override
-    public double getMinimumBalance() {
-        return MINIMUM_BALANCE;
+    public boolean isDeclining() {
+        return action == Action.DECLINE;
     }
     
-    // InterestEarning implementation
-    @Override
-    public void compoundInterest() {
-        calculateInterest();
+    public long getAlertCount() {
+        return alerts.sum();
     }
     
-    @Override
-    public void setInterestRate(double rate) {
-        System.out.println("Interest rate for CDs cannot be changed after opening");
+    // Records a withdrawal and reports whether the account's activity in the
+    // window, this withdrawal included, is over the count or amount limit
+    public boolean recordAndCheck(String accountNumber, long amountCents, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int current = (int) (epoch % bucketCount);
+        int hash = accountNumber.hashCode();
+        // Read every row before any CAS: the loads can miss the cache in
+        // parallel, while a CAS is a full fence that would make each row's
+        // miss wait for the one before. The rows are kept in locals rather
+        // than arrays so a check allocates nothing
+        int cell0 = cell(hash, 0);
+        int cell1 = cell(hash, 1);
+        int cell2 = cell(hash, 2);
+        int cell3 = cell(hash, 3);
+        long count0 = otherBuckets(cell0, current, epoch);
+        long count1 = otherBuckets(cell1, current, epoch);
+        long count2 = otherBuckets(cell2, current, epoch);
+        long count3 = otherBuckets(cell3, current, epoch);
+        long sum0 = otherBuckets(cell0 + bucketCount, current, epoch);
+        long sum1 = otherBuckets(cell1 + bucketCount, current, epoch);
+        long sum2 = otherBuckets(cell2 + bucketCount, current, epoch);
+        long sum3 = otherBuckets(cell3 + bucketCount, current, epoch);
+        
+        long count = Math.min(Math.min(count0 + add(cell0 + current, epoch, 1),
+                                       count1 + add(cell1 + current, epoch, 1)),
+                              Math.min(count2 + add(cell2 + current, epoch, 1),
+                                       count3 + add(cell3 + current, epoch, 1)));
+        int sums = bucketCount + current;
+        long sum = Math.min(Math.min(sum0 + add(cell0 + sums, epoch, amountCents),
+                                     sum1 + add(cell1 + sums, epoch, amountCents)),
+                            Math.min(sum2 + add(cell2 + sums, epoch, amountCents),
+                                     sum3 + add(cell3 + sums, epoch, amountCents)));
+        if (count > maxCount || sum > maxAmountCents) {
+            alerts.increment();
+            return true;
+        }
+        return false;
     }
     
-    @Override
-    public double getInterestRate() {
-        return interestRate;
+    // First counter of the account's cell in one row
+    private int cell(int hash, int row) {
+        return (row * width + column(hash, row)) * cellSize;
     }
     
-    public void checkMaturity() {
-        java.util.Date now = new java.util.Date();
-        if (now.after(maturityDate) && !isMatured) {
-            isMatured = true;
-            System.out.println("🎉 CD account " + accountNumber + " has matured!");
-            System.out.println("You can now withdraw without penalty");
+    // Total of the live buckets other than current in one row's counts or
+    // sums starting at index
+    private long otherBuckets(int index, int current, long epoch) {
+        long total = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            if (b != current) {
+                total += valueAt(index + b, epoch - (current - b + bucketCount) % bucketCount);
+            }
         }
+        return total;
     }
     
-    public boolean isMatured() {
-        return isMatured;
+    // Takes a withdrawal recorded at the given time back out of the window,
+    // for a withdrawal that did not go through or was reversed. Nothing to
+    // do once its bucket has moved on to a newer epoch
+    public void forget(String accountNumber, long amountCents, long atMillis) {
+        long epoch = atMillis / bucketMillis;
+        int bucket = (int) (epoch % bucketCount);
+        int hash = accountNumber.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            int cell = cell(hash, row);
+            subtract(cell + bucket, epoch, 1);
+            subtract(cell + bucketCount + bucket, epoch, amountCents);
+        }
     }
     
-    public java.util.Date getMaturityDate() {
-        return maturityDate;
+    // Adds to the counter for the epoch and returns its new value. A counter
+    // still holding an older epoch starts again from zero; one already taken
+    // over by a newer epoch is left alone, since this write has left the
+    // window as far as that epoch's writers are concerned
+    private long add(int index, long epoch, long delta) {
+        long tag = epoch & TAG_MASK;
+        while (true) {
+            long word = cells.get(index);
+            long wordTag = word >>> VALUE_BITS;
+            long value = word & VALUE_MASK;
+            if (wordTag != tag) {
+                if (value != 0 && ((wordTag - tag) & TAG_MASK) < TAG_MASK / 2) {
+                    return delta;
+                }
+                value = 0;
+            }
+            value = Math.min(value + delta, VALUE_MASK);
+            if (cells.compareAndSet(index, word, tag << VALUE_BITS | value)) {
+                return value;
+            }
+        }
+    }
+    
+    private void subtract(int index, long epoch, long delta) {
+        long tag = epoch & TAG_MASK;
+        while (true) {
+            long word = cells.get(index);
+            if (word >>> VALUE_BITS != tag) {
+                return;
+            }
+            long value = Math.max((word & VALUE_MASK) - delta, 0);
+            if (cells.compareAndSet(index, word, tag << VALUE_BITS | value)) {
+                return;
+            }
+        }
+    }
+    
+    private long valueAt(int index, long epoch) {
+        long word = cells.getOpaque(index);
+        return word >>> VALUE_BITS == (epoch & TAG_MASK) ? word & VALUE_MASK : 0;
+    }
+    
+    // Independent column per row from one hash (multiply-shift with a
+    // different odd constant per row)
+    private int column(int hash, int row) {
+        long mixed = (hash + 0x9E3779B97F4A7C15L * (row + 1)) * 0xBF58476D1CE4E5B9L;
+        return (int) (mixed >>> 40) & (width - 1);
     }
 }
 
-// Money Market Account
-class MoneyMarketAccount extends BankAccount implements InterestEarning, OverdraftProtection, TransactionTracking {
-    private final double MINIMUM_BALANCE = 2500.0;
-    private final int MAX_TRANSACTIONS_PER_MONTH = 10;
-    private int transactionsThisMonth;
-    private double overdraftLimit;
-    private String[] transactionHistory;
+// Savings Account class
+class SavingsAccount extends BankAccount implements InterestEarning, TransactionTracking {
+    private final long MINIMUM_BALANCE_CENTS = 10_000;
+    private final int MAX_WITHDRAWALS_PER_MONTH = 6;
+    private final RollingWindowLimiter withdrawalLimiter =
+        new RollingWindowLimiter(MAX_WITHDRAWALS_PER_MONTH, RollingWindowLimiter.THIRTY_DAYS_MILLIS);
+    private TransactionJournal journal = TransactionJournal.shared();
+    private long lastJournalEntry = -1;
     private int transactionCount;
-    private static final int MAX_TRANSACTION_RECORDS = 150;
     
-    public MoneyMarketAccount(String accountNumber, String accountHolderName, double initialBalance) {
+    public SavingsAccount(String accountNumber, String accountHolderName, double initialBalance) {
         super(accountNumber, accountHolderName, initialBalance);
-        this.accountType = "Money Market";
-        this.interestRate = 3.2; // Higher interest rate
-        this.transactionsThisMonth = 0;
-        this.overdraftLimit = 1000.0;
-        this.transactionHistory = new String[MAX_TRANSACTION_RECORDS];
+        this.accountType = "Savings";
+        this.interestRateBps = 250; // 2.5% annual interest
         this.transactionCount = 0;
         addTransaction("ACCOUNT_OPENING", initialBalance, "Initial deposit");
     }
     
+    // Recovery constructor; the state comes from readState
+    SavingsAccount(String accountNumber, String accountHolderName) {
+        super(accountNumber, accountHolderName);
+        this.accountType = "Savings";
+    }
+    
     @Override
     public void calculateInterest() {
-        if (isActive && balance >= MINIMUM_BALANCE) {
-            double monthlyInterest = (balance * interestRate / 100) / 12;
-            balance += monthlyInterest;
-            addTransaction("INTEREST", monthlyInterest, "Monthly interest credit");
-            System.out.println("Interest calculated and credited: $" + 
-                             String.format("%.2f", monthlyInterest));
-        } else if (balance < MINIMUM_BALANCE) {
-            System.out.println("No interest earned - balance below minimum");
-        }
+        creditInterest();
     }
     
     @Override
-    public boolean withdraw(double amount) {
+    public boolean withdrawCents(long cents) {
         if (!isActive) {
-            System.out.println("Account is not active");
+            emit(AccountEventType.ACCOUNT_INACTIVE, cents);
             return false;
         }
         
-        if (transactionsThisMonth >= MAX_TRANSACTIONS_PER_MONTH) {
-            System.out.println("Monthly transaction limit exceeded");
+        if (cents <= 0) {
+            emit(AccountEventType.INVALID_AMOUNT, cents);
             return false;
         }
         
-        if (amount <= 0) {
-            System.out.println("Invalid withdrawal amount");
+        if (!withdrawalLimiter.tryAcquire(System.currentTimeMillis())) {
+            emit(AccountEventType.LIMIT_EXCEEDED, cents);
             return false;
         }
         
-        double availableBalance = balance + overdraftLimit;
-        
-        if (amount > availableBalance) {
-            System.out.println("Insufficient funds including overdraft protection");
+        long balance = debit(cents);
+        if (balance == REFUSED) {
+            withdrawalLimiter.release();
+            emit(AccountEventType.BELOW_MINIMUM_BALANCE, MINIMUM_BALANCE_CENTS);
             return false;
         }
         
-        balance -= amount;
-        transactionsThisMonth++;
-        
-        if (balance < 0) {
-            double overdraftFee = 25.0;
-            balance -= overdraftFee;
-            addTransaction("OVERDRAFT_FEE", overdraftFee, "Overdraft fee charged");
-            System.out.println("Overdraft fee charged: $" + String.format("%.2f", overdraftFee));
-        }
-        
-        addTransaction("WITHDRAWAL", amount, "Money market withdrawal");
-        System.out.println("Withdrew $" + String.format("%.2f", amount) + 
-                         " from money market account " + accountNumber);
-        System.out.println("New balance: $" + String.format("%.2f", balance));
-        System.out.println("Remaining transactions this month: " + 
-                         (MAX_TRANSACTIONS_PER_MONTH - transactionsThisMonth));
-        
+        addTransaction("WITHDRAWAL", Money.toDouble(cents), "ATM/Branch withdrawal");
+        emit(AccountEventType.WITHDRAWAL, cents, balance);
+        emit(AccountEventType.WITHDRAWALS_REMAINING,
+             MAX_WITHDRAWALS_PER_MONTH - withdrawalLimiter.used(System.currentTimeMillis()), balance);
         return true;
     }
     
+    @Override
+    protected long debitFloorCents() {
+        return MINIMUM_BALANCE_CENTS;
+    }
+    
     @Override
     public void displayAccountDetails() {
-        System.out.println("\n=== Money Market Account Details ===");
+        System.out.println("\n=== Savings Account Details ===");
         displayBasicInfo();
-        System.out.println("Minimum Balance: $" + String.format("%.2f", MINIMUM_BALANCE));
-        System.out.println("Interest Rate: " + interestRate + "% per annum");
-        System.out.println("Transactions this month: " + transactionsThisMonth + "/" + 
-                         MAX_TRANSACTIONS_PER_MONTH);
-        displayOverdraftInfo();
+        System.out.println("Minimum Balance: $" + Money.format(MINIMUM_BALANCE_CENTS));
+        System.out.println("Interest Rate: " + getInterestRate() + "% per annum");
+        System.out.println("Withdrawals in last 30 days: " + getRecentWithdrawals() + "/" + 
+                         MAX_WITHDRAWALS_PER_MONTH);
         displayInterestInfo();
     }
     
     @Override
     public double getMinimumBalance() {
-        return MINIMUM_BALANCE;
+        return Money.toDouble(MINIMUM_BALANCE_CENTS);
     }
     
     // InterestEarning implementation
@@ -668,8 +1683,9 @@ class MoneyMarketAccount extends BankAccount implements InterestEarning, Overdra
     
     @Override
     public void setInterestRate(double rate) {
-        if (rate >= 0 && rate <= 8) {
-            this.interestRate = rate;
+        if (rate >= 0 && rate <= 10) {
+            long rateBps = Money.basisPoints(rate);
+            changeSettings(() -> interestRateBps = rateBps);
             System.out.println("Interest rate updated to " + rate + "%");
         } else {
             System.out.println("Invalid interest rate");
@@ -678,175 +1694,4618 @@ class MoneyMarketAccount extends BankAccount implements InterestEarning, Overdra
     
     @Override
     public double getInterestRate() {
-        return interestRate;
+        return Money.toPercent(interestRateBps);
     }
     
-    // OverdraftProtection implementation
     @Override
-    public void setOverdraftLimit(double limit) {
-        if (limit >= 0 && limit <= 5000) {
-            this.overdraftLimit = limit;
-            System.out.println("Overdraft limit set to $" + String.format("%.2f", limit));
-        } else {
-            System.out.println("Invalid overdraft limit");
+    public boolean isEligibleForInterest() {
+        return isActive && getBalanceCents() >= MINIMUM_BALANCE_CENTS;
+    }
+    
+    @Override
+    public void creditMonthlyInterest(long interestCents) {
+        creditMonthlyInterest(interestCents, NO_MONTH_END);
+    }
+    
+    @Override
+    public boolean creditMonthlyInterest(long interestCents, long monthEndStep) {
+        long balance = applyMonthEnd(monthEndStep, interestCents);
+        if (balance == REFUSED) {
+            return false;
+        }
+        interestCredited(interestCents, balance);
+        return true;
+    }
+    
+    @Override
+    protected long interestFloorCents() {
+        return MINIMUM_BALANCE_CENTS;
+    }
+    
+    @Override
+    protected void interestCredited(long interestCents, long balanceAfter) {
+        addTransaction("INTEREST", Money.toDouble(interestCents), "Monthly interest credit");
+        super.interestCredited(interestCents, balanceAfter);
+    }
+    
+    // TransactionTracking implementation
+    @Override
+    public synchronized void addTransaction(String transactionType, double amount, String description) {
+        lastJournalEntry = journal.append(lastJournalEntry, accountNumber, transactionType,
+                Money.of(amount), description);
+        transactionCount++;
+    }
+    
+    @Override
+    public synchronized long getLatestJournalEntry() {
+        return lastJournalEntry;
+    }
+    
+    @Override
+    public synchronized TransactionJournal getJournal() {
+        return journal;
+    }
+    
+    @Override
+    public synchronized void attachJournal(TransactionJournal target) {
+        if (target == journal) {
+            return;
+        }
+        long[] recovered = target.takeRecoveredHead(accountNumber);
+        if (recovered != null) {
+            lastJournalEntry = recovered[0];
+            transactionCount = (int) recovered[1];
+        } else {
+            lastJournalEntry = target.copyChain(journal, lastJournalEntry, accountNumber);
+        }
+        journal = target;
+    }
+    
+    @Override
+    public void displayTransactionHistory() {
+        TransactionJournal history;
+        long latest;
+        int count;
+        synchronized (this) {
+            history = journal;
+            latest = lastJournalEntry;
+            count = transactionCount;
+        }
+        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
+        history.printRecent(latest, 10, this);
+        if (count > 10) {
+            System.out.println("... showing last 10 transactions");
+        }
+    }
+    
+    @Override
+    public void generateMonthlyStatement() {
+        System.out.println("\n=== Monthly Statement - Savings Account ===");
+        displayBasicInfo();
+        System.out.println("Withdrawals in last 30 days: " + getRecentWithdrawals());
+        displayTransactionHistory();
+    }
+    
+    public int getRecentWithdrawals() {
+        return withdrawalLimiter.used(System.currentTimeMillis());
+    }
+    
+    // Limits expire on their own; this only clears the window early
+    public void resetMonthlyLimits() {
+        changeSettings(withdrawalLimiter::clear);
+        emit(AccountEventType.LIMIT_RESET, 0);
+    }
+    
+    @Override
+    void writeState(ByteBuffer out) {
+        super.writeState(out);
+        withdrawalLimiter.writeTo(out);
+    }
+    
+    @Override
+    void readState(ByteBuffer in) {
+        super.readState(in);
+        withdrawalLimiter.readFrom(in);
+    }
+    
+    @Override
+    void replayWithdrawal(long deltaCents, long timeMillis) {
+        super.replayWithdrawal(deltaCents, timeMillis);
+        withdrawalLimiter.tryAcquire(timeMillis);
+    }
+    
+    @Override
+    void releaseWithdrawal(long amountCents, long sinceMillis) {
+        withdrawalLimiter.releaseSince(sinceMillis);
+    }
+}
+
+// Checking Account class
+class CheckingAccount extends BankAccount implements OverdraftProtection, TransactionTracking, PremiumFeatures {
+    private final long MINIMUM_BALANCE_CENTS = 2_500;
+    private final long OVERDRAFT_FEE_CENTS = 3_500;
+    private long overdraftLimitCents;
+    // Written only under the write lock; volatile for the unlocked reads
+    private volatile long monthlyFeeCents;
+    private volatile boolean hasPremium;
+    private TransactionJournal journal = TransactionJournal.shared();
+    private long lastJournalEntry = -1;
+    private int transactionCount;
+    
+    public CheckingAccount(String accountNumber, String accountHolderName, double initialBalance) {
+        super(accountNumber, accountHolderName, initialBalance);
+        this.accountType = "Checking";
+        this.overdraftLimitCents = 50_000;
+        this.monthlyFeeCents = 1_200;
+        this.hasPremium = false;
+        this.transactionCount = 0;
+        addTransaction("ACCOUNT_OPENING", initialBalance, "Initial deposit");
+    }
+    
+    // Recovery constructor; the state comes from readState
+    CheckingAccount(String accountNumber, String accountHolderName) {
+        super(accountNumber, accountHolderName);
+        this.accountType = "Checking";
+    }
+    
+    @Override
+    public void calculateInterest() {
+        // Checking accounts typically don't earn interest
+        emit(AccountEventType.NO_INTEREST, 0);
+    }
+    
+    @Override
+    public boolean withdrawCents(long cents) {
+        if (!isActive) {
+            emit(AccountEventType.ACCOUNT_INACTIVE, cents);
+            return false;
+        }
+        
+        if (cents <= 0) {
+            emit(AccountEventType.INVALID_AMOUNT, cents);
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (!passesVelocityCheck(cents, now)) {
+            return false;
+        }
+        
+        long balance = debit(cents);
+        if (balance == REFUSED) {
+            forgetVelocity(cents, now);
+            emit(AccountEventType.INSUFFICIENT_FUNDS, cents);
+            return false;
+        }
+        
+        addTransaction("WITHDRAWAL", Money.toDouble(cents), "Debit/Check withdrawal");
+        emit(AccountEventType.WITHDRAWAL, cents, balance);
+        
+        if (balance < 0) {
+            emit(AccountEventType.OVERDRAWN, overdraftLimitCents, balance);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected void chargeTaken(long feeCents, long balanceAfter) {
+        addTransaction("OVERDRAFT_FEE", Money.toDouble(feeCents), "Overdraft fee charged");
+        emit(AccountEventType.OVERDRAFT_FEE, feeCents, balanceAfter);
+    }
+    
+    // The overdraft limit is read under the same write lock as the balance
+    @Override
+    protected long debitFloorCents() {
+        return -overdraftLimitCents;
+    }
+    
+    @Override
+    protected long debitChargeCents(long balance, long cents) {
+        return balance - cents < 0 && !hasPremium ? OVERDRAFT_FEE_CENTS : 0;
+    }
+    
+    @Override
+    public void displayAccountDetails() {
+        System.out.println("\n=== Checking Account Details ===");
+        displayBasicInfo();
+        System.out.println("Monthly Fee: $" + Money.format(monthlyFeeCents));
+        System.out.println("Premium Features: " + (hasPremium ? "Enabled" : "Disabled"));
+        displayOverdraftInfo();
+        if (hasPremium) {
+            displayPremiumBenefits();
+        }
+    }
+    
+    @Override
+    public double getMinimumBalance() {
+        return Money.toDouble(MINIMUM_BALANCE_CENTS);
+    }
+    
+    // OverdraftProtection implementation
+    @Override
+    public void setOverdraftLimit(double limit) {
+        if (limit >= 0 && limit <= 2000) {
+            long limitCents = Money.of(limit);
+            changeSettings(() -> overdraftLimitCents = limitCents);
+            System.out.println("Overdraft limit set to $" + Money.format(limitCents));
+        } else {
+            System.out.println("Invalid overdraft limit");
+        }
+    }
+    
+    @Override
+    public double getOverdraftLimit() {
+        return Money.toDouble(overdraftLimitCents);
+    }
+    
+    @Override
+    public double getAvailableCredit() {
+        long stamp = balanceLock.tryOptimisticRead();
+        long balance = balanceCents;
+        long limit = overdraftLimitCents;
+        if (!balanceLock.validate(stamp)) {
+            stamp = balanceLock.readLock();
+            try {
+                balance = balanceCents;
+                limit = overdraftLimitCents;
+            } finally {
+                balanceLock.unlockRead(stamp);
+            }
+        }
+        return Money.toDouble(balance < 0 ? limit + balance : limit);
+    }
+    
+    @Override
+    public boolean isOverdrawn() {
+        return getBalanceCents() < 0;
+    }
+    
+    private void updateOverdraftLimit(long limitCents) {
+        long stamp = balanceLock.writeLock();
+        try {
+            overdraftLimitCents = limitCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    // PremiumFeatures implementation
+    @Override
+    public void enablePremiumFeatures() {
+        long feeCents = Money.of(getPremiumFee());
+        changeSettings(() -> {
+            hasPremium = true;
+            monthlyFeeCents += feeCents;
+            overdraftLimitCents += 50_000; // Increased overdraft limit
+        });
+        System.out.println("Premium features enabled");
+        displayPremiumBenefits();
+    }
+    
+    @Override
+    public void disablePremiumFeatures() {
+        long feeCents = Money.of(getPremiumFee());
+        changeSettings(() -> {
+            hasPremium = false;
+            monthlyFeeCents -= feeCents;
+            overdraftLimitCents -= 50_000;
+        });
+        System.out.println("Premium features disabled");
+    }
+    
+    @Override
+    public boolean hasPremiumFeatures() {
+        return hasPremium;
+    }
+    
+    @Override
+    public void displayPremiumBenefits() {
+        System.out.println("Premium Benefits:");
+        System.out.println("  ✓ No overdraft fees");
+        System.out.println("  ✓ Increased overdraft limit");
+        System.out.println("  ✓ Free wire transfers");
+        System.out.println("  ✓ 24/7 premium customer support");
+    }
+    
+    // TransactionTracking implementation
+    @Override
+    public synchronized void addTransaction(String transactionType, double amount, String description) {
+        lastJournalEntry = journal.append(lastJournalEntry, accountNumber, transactionType,
+                Money.of(amount), description);
+        transactionCount++;
+    }
+    
+    @Override
+    public synchronized long getLatestJournalEntry() {
+        return lastJournalEntry;
+    }
+    
+    @Override
+    public synchronized TransactionJournal getJournal() {
+        return journal;
+    }
+    
+    @Override
+    public synchronized void attachJournal(TransactionJournal target) {
+        if (target == journal) {
+            return;
+        }
+        long[] recovered = target.takeRecoveredHead(accountNumber);
+        if (recovered != null) {
+            lastJournalEntry = recovered[0];
+            transactionCount = (int) recovered[1];
+        } else {
+            lastJournalEntry = target.copyChain(journal, lastJournalEntry, accountNumber);
+        }
+        journal = target;
+    }
+    
+    @Override
+    public void displayTransactionHistory() {
+        TransactionJournal history;
+        long latest;
+        int count;
+        synchronized (this) {
+            history = journal;
+            latest = lastJournalEntry;
+            count = transactionCount;
+        }
+        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
+        history.printRecent(latest, 15, this);
+        if (count > 15) {
+            System.out.println("... showing last 15 transactions");
+        }
+    }
+    
+    @Override
+    public void generateMonthlyStatement() {
+        System.out.println("\n=== Monthly Statement - Checking Account ===");
+        displayBasicInfo();
+        System.out.println("Monthly Fee: $" + Money.format(monthlyFeeCents));
+        displayTransactionHistory();
+    }
+    
+    public void chargeMonthlyFee() {
+        chargeMonthlyFee(NO_MONTH_END);
+    }
+    
+    // Month-end variant; false when inactive or the step was already applied.
+    // applyMonthEnd checks the account is still open under its write lock,
+    // so a fee never lands on an account closed after the run picked it up
+    boolean chargeMonthlyFee(long monthEndStep) {
+        long feeCents = monthlyFeeCents;
+        long balance = applyMonthEnd(monthEndStep, -feeCents);
+        if (balance == REFUSED) {
+            return false;
+        }
+        addTransaction("MONTHLY_FEE", Money.toDouble(feeCents), "Monthly maintenance fee");
+        emit(AccountEventType.MONTHLY_FEE, feeCents, balance);
+        return true;
+    }
+    
+    @Override
+    void writeState(ByteBuffer out) {
+        super.writeState(out);
+        out.putLong(overdraftLimitCents);
+        out.putLong(monthlyFeeCents);
+        out.put((byte) (hasPremium ? 1 : 0));
+    }
+    
+    @Override
+    void readState(ByteBuffer in) {
+        super.readState(in);
+        updateOverdraftLimit(in.getLong());
+        monthlyFeeCents = in.getLong();
+        hasPremium = in.get() == 1;
+    }
+    
+    @Override
+    void releaseWithdrawal(long amountCents, long sinceMillis) {
+        forgetVelocity(amountCents, sinceMillis);
+    }
+}
+
+// Certificate of Deposit (CD) Account
+class CertificateOfDeposit extends BankAccount implements InterestEarning {
+    private final long MINIMUM_BALANCE_CENTS = 100_000;
+    private int termInMonths;
+    private Date maturityDate;
+    private volatile boolean isMatured;
+    private long penaltyRateBps;
+    
+    public CertificateOfDeposit(String accountNumber, String accountHolderName, 
+                               double initialBalance, int termInMonths) {
+        super(accountNumber, accountHolderName, initialBalance);
+        this.accountType = "Certificate of Deposit";
+        this.termInMonths = termInMonths;
+        this.isMatured = false;
+        this.penaltyRateBps = 50; // 0.5% penalty for early withdrawal
+        
+        // Set interest rate based on term
+        if (termInMonths <= 6) {
+            this.interestRateBps = 300;
+        } else if (termInMonths <= 12) {
+            this.interestRateBps = 350;
+        } else if (termInMonths <= 24) {
+            this.interestRateBps = 400;
+        } else {
+            this.interestRateBps = 450;
+        }
+        
+        // Calculate maturity date
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(dateCreated);
+        cal.add(Calendar.MONTH, termInMonths);
+        this.maturityDate = cal.getTime();
+    }
+    
+    // Recovery constructor; rate, maturity date and state come from readState
+    CertificateOfDeposit(String accountNumber, String accountHolderName, int termInMonths) {
+        super(accountNumber, accountHolderName);
+        this.accountType = "Certificate of Deposit";
+        this.termInMonths = termInMonths;
+        this.penaltyRateBps = 50;
+    }
+    
+    @Override
+    public void calculateInterest() {
+        creditInterest();
+    }
+    
+    @Override
+    public boolean withdrawCents(long cents) {
+        if (!isActive) {
+            emit(AccountEventType.ACCOUNT_INACTIVE, cents);
+            return false;
+        }
+        
+        long balance = cents > 0 ? debit(cents) : REFUSED;
+        if (balance == REFUSED) {
+            emit(AccountEventType.INVALID_AMOUNT, cents);
+            return false;
+        }
+        
+        emit(AccountEventType.WITHDRAWAL, cents, balance);
+        
+        return true;
+    }
+    
+    @Override
+    protected void chargeTaken(long penaltyCents, long balanceAfter) {
+        emit(AccountEventType.EARLY_WITHDRAWAL_PENALTY, penaltyCents, balanceAfter);
+    }
+    
+    // Early withdrawals pay a penalty on the balance they are taken from
+    @Override
+    protected long debitChargeCents(long balance, long cents) {
+        return isMatured ? 0 : Money.percentOf(balance, penaltyRateBps);
+    }
+    
+    @Override
+    public void displayAccountDetails() {
+        System.out.println("\n=== Certificate of Deposit Details ===");
+        displayBasicInfo();
+        System.out.println("Minimum Balance: $" + Money.format(MINIMUM_BALANCE_CENTS));
+        System.out.println("Term: " + termInMonths + " months");
+        System.out.println("Interest Rate: " + getInterestRate() + "% per annum");
+        System.out.println("Maturity Date: " + maturityDate);
+        System.out.println("Matured: " + (isMatured ? "Yes" : "No"));
+        System.out.println("Early Withdrawal Penalty: " + Money.toPercent(penaltyRateBps) + "%");
+    }
+    
+    @Override
+    public double getMinimumBalance() {
+        return Money.toDouble(MINIMUM_BALANCE_CENTS);
+    }
+    
+    // InterestEarning implementation
+    @Override
+    public void compoundInterest() {
+        calculateInterest();
+    }
+    
+    @Override
+    public void setInterestRate(double rate) {
+        System.out.println("Interest rate for CDs cannot be changed after opening");
+    }
+    
+    @Override
+    public double getInterestRate() {
+        return Money.toPercent(interestRateBps);
+    }
+    
+    @Override
+    public boolean isEligibleForInterest() {
+        return isActive;
+    }
+    
+    @Override
+    public void creditMonthlyInterest(long interestCents) {
+        creditMonthlyInterest(interestCents, NO_MONTH_END);
+    }
+    
+    @Override
+    public boolean creditMonthlyInterest(long interestCents, long monthEndStep) {
+        long balance = applyMonthEnd(monthEndStep, interestCents);
+        if (balance == REFUSED) {
+            return false;
+        }
+        interestCredited(interestCents, balance);
+        return true;
+    }
+    
+    public void checkMaturity() {
+        Date now = new Date();
+        if (now.after(maturityDate)) {
+            markMatured();
+        }
+    }
+    
+    // Called by checkMaturity or by the maturity scheduler when the date passes
+    void markMatured() {
+        if (!isMatured) {
+            changeSettings(() -> isMatured = true);
+            emit(AccountEventType.CD_MATURED, getBalanceCents());
+        }
+    }
+    
+    public boolean isMatured() {
+        return isMatured;
+    }
+    
+    public Date getMaturityDate() {
+        return maturityDate;
+    }
+    
+    int getTermInMonths() {
+        return termInMonths;
+    }
+    
+    @Override
+    void writeState(ByteBuffer out) {
+        super.writeState(out);
+        out.putLong(maturityDate.getTime());
+        out.put((byte) (isMatured ? 1 : 0));
+    }
+    
+    @Override
+    void readState(ByteBuffer in) {
+        super.readState(in);
+        maturityDate = new Date(in.getLong());
+        isMatured = in.get() == 1;
+    }
+}
+
+// Money Market Account
+class MoneyMarketAccount extends BankAccount implements InterestEarning, OverdraftProtection, TransactionTracking {
+    private final long MINIMUM_BALANCE_CENTS = 250_000;
+    private final long OVERDRAFT_FEE_CENTS = 2_500;
+    private final int MAX_TRANSACTIONS_PER_MONTH = 10;
+    private final RollingWindowLimiter transactionLimiter =
+        new RollingWindowLimiter(MAX_TRANSACTIONS_PER_MONTH, RollingWindowLimiter.THIRTY_DAYS_MILLIS);
+    private long overdraftLimitCents;
+    private TransactionJournal journal = TransactionJournal.shared();
+    private long lastJournalEntry = -1;
+    private int transactionCount;
+    
+    public MoneyMarketAccount(String accountNumber, String accountHolderName, double initialBalance) {
+        super(accountNumber, accountHolderName, initialBalance);
+        this.accountType = "Money Market";
+        this.interestRateBps = 320; // Higher interest rate
+        this.overdraftLimitCents = 100_000;
+        this.transactionCount = 0;
+        addTransaction("ACCOUNT_OPENING", initialBalance, "Initial deposit");
+    }
+    
+    // Recovery constructor; the state comes from readState
+    MoneyMarketAccount(String accountNumber, String accountHolderName) {
+        super(accountNumber, accountHolderName);
+        this.accountType = "Money Market";
+    }
+    
+    @Override
+    public void calculateInterest() {
+        if (!creditInterest() && getBalanceCents() < MINIMUM_BALANCE_CENTS) {
+            emit(AccountEventType.NO_INTEREST, 0);
+        }
+    }
+    
+    @Override
+    public boolean withdrawCents(long cents) {
+        if (!isActive) {
+            emit(AccountEventType.ACCOUNT_INACTIVE, cents);
+            return false;
+        }
+        
+        if (cents <= 0) {
+            emit(AccountEventType.INVALID_AMOUNT, cents);
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (!transactionLimiter.tryAcquire(now)) {
+            emit(AccountEventType.LIMIT_EXCEEDED, cents);
+            return false;
+        }
+        
+        if (!passesVelocityCheck(cents, now)) {
+            transactionLimiter.release();
+            return false;
+        }
+        
+        long balance = debit(cents);
+        if (balance == REFUSED) {
+            transactionLimiter.release();
+            forgetVelocity(cents, now);
+            emit(AccountEventType.INSUFFICIENT_FUNDS, cents);
+            return false;
+        }
+        
+        addTransaction("WITHDRAWAL", Money.toDouble(cents), "Money market withdrawal");
+        emit(AccountEventType.WITHDRAWAL, cents, balance);
+        emit(AccountEventType.TRANSACTIONS_REMAINING,
+             MAX_TRANSACTIONS_PER_MONTH - transactionLimiter.used(now), balance);
+        
+        return true;
+    }
+    
+    @Override
+    protected void chargeTaken(long feeCents, long balanceAfter) {
+        addTransaction("OVERDRAFT_FEE", Money.toDouble(feeCents), "Overdraft fee charged");
+        emit(AccountEventType.OVERDRAFT_FEE, feeCents, balanceAfter);
+    }
+    
+    @Override
+    protected long debitFloorCents() {
+        return -overdraftLimitCents;
+    }
+    
+    @Override
+    protected long debitChargeCents(long balance, long cents) {
+        return balance - cents < 0 ? OVERDRAFT_FEE_CENTS : 0;
+    }
+    
+    @Override
+    public void displayAccountDetails() {
+        System.out.println("\n=== Money Market Account Details ===");
+        displayBasicInfo();
+        System.out.println("Minimum Balance: $" + Money.format(MINIMUM_BALANCE_CENTS));
+        System.out.println("Interest Rate: " + getInterestRate() + "% per annum");
+        System.out.println("Transactions in last 30 days: " + getRecentTransactions() + "/" + 
+                         MAX_TRANSACTIONS_PER_MONTH);
+        displayOverdraftInfo();
+        displayInterestInfo();
+    }
+    
+    @Override
+    public double getMinimumBalance() {
+        return Money.toDouble(MINIMUM_BALANCE_CENTS);
+    }
+    
+    // InterestEarning implementation
+    @Override
+    public void compoundInterest() {
+        calculateInterest();
+    }
+    
+    @Override
+    public void setInterestRate(double rate) {
+        if (rate >= 0 && rate <= 8) {
+            long rateBps = Money.basisPoints(rate);
+            changeSettings(() -> interestRateBps = rateBps);
+            System.out.println("Interest rate updated to " + rate + "%");
+        } else {
+            System.out.println("Invalid interest rate");
+        }
+    }
+    
+    @Override
+    public double getInterestRate() {
+        return Money.toPercent(interestRateBps);
+    }
+    
+    @Override
+    public boolean isEligibleForInterest() {
+        return isActive && getBalanceCents() >= MINIMUM_BALANCE_CENTS;
+    }
+    
+    @Override
+    public void creditMonthlyInterest(long interestCents) {
+        creditMonthlyInterest(interestCents, NO_MONTH_END);
+    }
+    
+    @Override
+    public boolean creditMonthlyInterest(long interestCents, long monthEndStep) {
+        long balance = applyMonthEnd(monthEndStep, interestCents);
+        if (balance == REFUSED) {
+            return false;
+        }
+        interestCredited(interestCents, balance);
+        return true;
+    }
+    
+    @Override
+    protected long interestFloorCents() {
+        return MINIMUM_BALANCE_CENTS;
+    }
+    
+    @Override
+    protected void interestCredited(long interestCents, long balanceAfter) {
+        addTransaction("INTEREST", Money.toDouble(interestCents), "Monthly interest credit");
+        super.interestCredited(interestCents, balanceAfter);
+    }
+    
+    // OverdraftProtection implementation
+    @Override
+    public void setOverdraftLimit(double limit) {
+        if (limit >= 0 && limit <= 5000) {
+            long limitCents = Money.of(limit);
+            changeSettings(() -> overdraftLimitCents = limitCents);
+            System.out.println("Overdraft limit set to $" + Money.format(limitCents));
+        } else {
+            System.out.println("Invalid overdraft limit");
+        }
+    }
+    
+    @Override
+    public double getOverdraftLimit() {
+        return Money.toDouble(overdraftLimitCents);
+    }
+    
+    @Override
+    public double getAvailableCredit() {
+        long stamp = balanceLock.tryOptimisticRead();
+        long balance = balanceCents;
+        long limit = overdraftLimitCents;
+        if (!balanceLock.validate(stamp)) {
+            stamp = balanceLock.readLock();
+            try {
+                balance = balanceCents;
+                limit = overdraftLimitCents;
+            } finally {
+                balanceLock.unlockRead(stamp);
+            }
+        }
+        return Money.toDouble(balance < 0 ? limit + balance : limit);
+    }
+    
+    @Override
+    public boolean isOverdrawn() {
+        return getBalanceCents() < 0;
+    }
+    
+    private void updateOverdraftLimit(long limitCents) {
+        long stamp = balanceLock.writeLock();
+        try {
+            overdraftLimitCents = limitCents;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+    
+    // TransactionTracking implementation
+    @Override
+    public synchronized void addTransaction(String transactionType, double amount, String description) {
+        lastJournalEntry = journal.append(lastJournalEntry, accountNumber, transactionType,
+                Money.of(amount), description);
+        transactionCount++;
+    }
+    
+    @Override
+    public synchronized long getLatestJournalEntry() {
+        return lastJournalEntry;
+    }
+    
+    @Override
+    public synchronized TransactionJournal getJournal() {
+        return journal;
+    }
+    
+    @Override
+    public synchronized void attachJournal(TransactionJournal target) {
+        if (target == journal) {
+            return;
+        }
+        long[] recovered = target.takeRecoveredHead(accountNumber);
+        if (recovered != null) {
+            lastJournalEntry = recovered[0];
+            transactionCount = (int) recovered[1];
+        } else {
+            lastJournalEntry = target.copyChain(journal, lastJournalEntry, accountNumber);
+        }
+        journal = target;
+    }
+    
+    @Override
+    public void displayTransactionHistory() {
+        TransactionJournal history;
+        long latest;
+        int count;
+        synchronized (this) {
+            history = journal;
+            latest = lastJournalEntry;
+            count = transactionCount;
+        }
+        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
+        history.printRecent(latest, 12, this);
+        if (count > 12) {
+            System.out.println("... showing last 12 transactions");
+        }
+    }
+    
+    @Override
+    public void generateMonthlyStatement() {
+        System.out.println("\n=== Monthly Statement - Money Market Account ===");
+        displayBasicInfo();
+        System.out.println("Transactions in last 30 days: " + getRecentTransactions());
+        displayTransactionHistory();
+    }
+    
+    public int getRecentTransactions() {
+        return transactionLimiter.used(System.currentTimeMillis());
+    }
+    
+    // Limits expire on their own; this only clears the window early
+    public void resetMonthlyLimits() {
+        changeSettings(transactionLimiter::clear);
+        emit(AccountEventType.LIMIT_RESET, 0);
+    }
+    
+    @Override
+    void writeState(ByteBuffer out) {
+        super.writeState(out);
+        transactionLimiter.writeTo(out);
+        out.putLong(overdraftLimitCents);
+    }
+    
+    @Override
+    void readState(ByteBuffer in) {
+        super.readState(in);
+        transactionLimiter.readFrom(in);
+        updateOverdraftLimit(in.getLong());
+    }
+    
+    @Override
+    void replayWithdrawal(long deltaCents, long timeMillis) {
+        super.replayWithdrawal(deltaCents, timeMillis);
+        transactionLimiter.tryAcquire(timeMillis);
+    }
+    
+    @Override
+    void releaseWithdrawal(long amountCents, long sinceMillis) {
+        transactionLimiter.releaseSince(sinceMillis);
+        forgetVelocity(amountCents, sinceMillis);
+    }
+}
+
+// Bank Management System
+class BankManagementSystem {
+    // Accounts indexed by account number for constant-time lookup that is
+    // safe from many threads at once; listings sort by registration order
+    private ConcurrentHashMap<String, BankAccount> accounts;
+    private final AtomicLong registrations = new AtomicLong();
+    private BankStatistics statistics;
+    private volatile BankPersistence persistence; // null when running purely in memory
+    private volatile VelocityMonitor velocityMonitor; // null: no velocity checks
+    private MaturityScheduler maturities;
+    private volatile ChangeFeed changeFeed; // null until a read replica is enabled
+    private volatile AccountEventSink eventSink = ConsoleEventSink.INSTANCE;
+    private ReadReplica replica;
+    private final RequestWindow requests = new RequestWindow(RequestWindow.DEFAULT_CAPACITY);
+    
+    public BankManagementSystem() {
+        accounts = new ConcurrentHashMap<>();
+        statistics = new BankStatistics();
+        maturities = new MaturityScheduler(System.currentTimeMillis());
+    }
+    
+    public void addAccount(BankAccount account) {
+        if (accounts.containsKey(account.getAccountNumber())) {
+            System.out.println("Account number already exists: " + account.getAccountNumber());
+            return;
+        }
+        boolean[] added = new boolean[1];
+        Runnable add = () -> added[0] = register(account);
+        if (persistence != null) {
+            awaitDurable(persistence.logOpen(account, add, added));
+        } else {
+            add.run();
+        }
+        if (added[0]) {
+            account.emit(AccountEventType.ACCOUNT_ADDED, 0);
+        } else {
+            System.out.println("Account number already exists: " + account.getAccountNumber());
+        }
+    }
+    
+    // Add/remove without logging or console output; used directly by recovery.
+    // Returns false when another thread registered the same number first
+    boolean register(BankAccount account) {
+        if (accounts.putIfAbsent(account.getAccountNumber(), account) != null) {
+            return false;
+        }
+        account.setRegistration(registrations.incrementAndGet());
+        statistics.register(account);
+        account.attachPersistence(persistence);
+        attachJournal(account);
+        account.attachEventSink(eventSink);
+        account.attachVelocityMonitor(velocityMonitor);
+        account.attachRequestWindow(requests);
+        if (changeFeed != null) {
+            account.attachChangeFeed(changeFeed);
+            changeFeed.publish(ChangeFeed.OPEN, account, account.getBalanceCents());
+        }
+        if (account instanceof CertificateOfDeposit) {
+            maturities.schedule((CertificateOfDeposit) account);
+            maturities.start();
+        }
+        return true;
+    }
+    
+    BankAccount unregister(String accountNumber) {
+        BankAccount removed = accounts.remove(accountNumber);
+        if (removed != null) {
+            statistics.unregister(removed);
+            removed.attachPersistence(null);
+            removed.attachVelocityMonitor(null);
+            removed.attachRequestWindow(null);
+            if (changeFeed != null) {
+                removed.attachChangeFeed(null);
+                changeFeed.publish(ChangeFeed.REMOVE, removed, 0);
+            }
+            if (removed instanceof CertificateOfDeposit) {
+                maturities.cancel(accountNumber);
+            }
+        }
+        return removed;
+    }
+    
+    public BankAccount findAccount(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+    
+    public BankAccount removeAccount(String accountNumber) {
+        BankAccount[] removed = new BankAccount[1];
+        Runnable remove = () -> removed[0] = unregister(accountNumber);
+        if (persistence != null) {
+            awaitDurable(persistence.logRemove(accountNumber, remove));
+        } else {
+            remove.run();
+        }
+        if (removed[0] != null) {
+            removed[0].emit(AccountEventType.ACCOUNT_REMOVED, 0);
+        } else {
+            System.out.println("Account not found: " + accountNumber);
+        }
+        return removed[0];
+    }
+    
+    // Entry points for money movement; accounts log their own changes, so
+    // with persistence enabled each call returns once its record is durable
+    public boolean deposit(String accountNumber, double amount) {
+        return depositCents(accountNumber, Money.of(amount));
+    }
+    
+    public boolean withdraw(String accountNumber, double amount) {
+        return withdrawCents(accountNumber, Money.of(amount));
+    }
+    
+    public boolean depositCents(String accountNumber, long cents) {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null) {
+            System.out.println("Account not found: " + accountNumber);
+            return false;
+        }
+        boolean applied = account.depositCents(cents);
+        account.awaitSettled();
+        return applied;
+    }
+    
+    public boolean withdrawCents(String accountNumber, long cents) {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null) {
+            System.out.println("Account not found: " + accountNumber);
+            return false;
+        }
+        boolean applied = account.withdrawCents(cents);
+        account.awaitSettled();
+        return applied;
+    }
+    
+    // Applies an ingested command to its account, already looked up by the
+    // caller. The request id is checked and recorded under the account's
+    // write lock together with the change (see BankAccount.claimRequest),
+    // so it is remembered only when the change goes through and never
+    // applied twice, even by two pipelines on one bank. With persistence
+    // enabled it is logged in the same record as the change, so a committed
+    // id is still known after recovery. Does not wait for the log: callers
+    // apply many commands and then call awaitOwnChanges() once, after
+    // releasing their locks
+    boolean apply(BankAccount account, TransactionCommand command) {
+        requests.tag(command.requestId);
+        try {
+            return command.type == TransactionCommand.Type.DEPOSIT
+                ? account.depositCents(command.amountCents)
+                : account.withdrawCents(command.amountCents);
+        } finally {
+            requests.tag(null);
+        }
+    }
+    
+    // Returns once every change the calling thread has logged is durable
+    // and the read replica, if it was given a lag bound, is back within it
+    void awaitOwnChanges() {
+        BankPersistence log = persistence;
+        if (log != null) {
+            log.awaitOwnAppends();
+        }
+        ChangeFeed feed = changeFeed;
+        if (feed != null) {
+            feed.throttle();
+        }
+    }
+    
+    boolean hasApplied(String requestId) {
+        return requests.contains(requestId);
+    }
+    
+    RequestWindow getRequestWindow() {
+        return requests;
+    }
+    
+    public void closeAccount(String accountNumber) {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null) {
+            System.out.println("Account not found: " + accountNumber);
+            return;
+        }
+        account.closeAccount();
+        account.awaitSettled();
+    }
+    
+    // Sends the events of this bank's accounts, and of accounts added
+    // later, to sink
+    public void setEventSink(AccountEventSink sink) {
+        eventSink = sink;
+        for (BankAccount account : accounts.values()) {
+            account.attachEventSink(sink);
+        }
+    }
+    
+    // Turns on velocity checks for this bank's withdrawals; null turns them off
+    public void setVelocityMonitor(VelocityMonitor monitor) {
+        velocityMonitor = monitor;
+        for (BankAccount account : accounts.values()) {
+            account.attachVelocityMonitor(monitor);
+        }
+    }
+    
+    // Starts writing snapshots and a write-ahead log under directory
+    public void enablePersistence(Path directory) {
+        persistence = BankPersistence.create(directory, this);
+        attachPersistence();
+        persistence.snapshot();
+    }
+    
+    // Rebuilds a bank from the latest snapshot plus the log written after it
+    public static BankManagementSystem recover(Path directory) {
+        BankManagementSystem bank = new BankManagementSystem();
+        bank.persistence = BankPersistence.recover(directory, bank);
+        bank.attachPersistence();
+        return bank;
+    }
+    
+    private void attachPersistence() {
+        for (BankAccount account : accounts.values()) {
+            account.attachPersistence(persistence);
+            attachJournal(account);
+        }
+    }
+    
+    // History stays in the journal it was moved to when persistence stops
+    private void attachJournal(BankAccount account) {
+        if (persistence != null && account instanceof TransactionTracking) {
+            ((TransactionTracking) account).attachJournal(persistence.getJournal());
+        }
+    }
+    
+    public void snapshot() {
+        if (persistence != null) {
+            persistence.snapshot();
+        }
+    }
+    
+    // Snapshots every everyRecords log records or everyMillis, whichever
+    // comes first; applies to the persistence enabled now
+    public void setSnapshotPolicy(long everyRecords, long everyMillis) {
+        if (persistence != null) {
+            persistence.setSnapshotPolicy(everyRecords, everyMillis);
+        }
+    }
+    
+    BankPersistence getPersistence() {
+        return persistence;
+    }
+    
+    public long getLogCommitCount() {
+        return persistence != null ? persistence.getCommitCount() : 0;
+    }
+    
+    public void shutdownPersistence() {
+        if (persistence != null) {
+            persistence.close();
+            persistence = null;
+            attachPersistence();
+        }
+    }
+    
+    Collection<BankAccount> getAccounts() {
+        return accounts.values();
+    }
+    
+    private void awaitDurable(long seq) {
+        if (persistence != null && seq > 0) {
+            persistence.awaitDurable(seq);
+        }
+    }
+    
+    public int getAccountCount() {
+        return accounts.size();
+    }
+    
+    public long getTotalBalanceCents() {
+        return statistics.getTotalBalanceCents();
+    }
+    
+    // Starts a read replica fed by every account mutation; once enabled,
+    // reports and listings are served from the replica instead of the
+    // live accounts. feedCapacity should cover the writes made while the
+    // replica thread is not running (write rate x scheduling stall).
+    // Writers are never held back; changes that do not fit are resynced
+    public ReadReplica enableReadReplica(int feedCapacity) {
+        return enableReadReplica(feedCapacity, ChangeFeed.UNBOUNDED);
+    }
+    
+    // As above, but writers wait once more than maxBehind changes are queued
+    public ReadReplica enableReadReplica(int feedCapacity, long maxBehind) {
+        if (replica == null) {
+            changeFeed = new ChangeFeed(feedCapacity, maxBehind);
+            replica = new ReadReplica(changeFeed);
+            for (BankAccount account : accounts.values()) {
+                account.attachChangeFeed(changeFeed);
+                changeFeed.publish(ChangeFeed.OPEN, account, account.getBalanceCents());
+            }
+        }
+        return replica;
+    }
+    
+    public ReadReplica getReadReplica() {
+        return replica;
+    }
+    
+    public void displayAllAccounts() {
+        if (replica != null) {
+            replica.displayAllAccounts();
+            return;
+        }
+        System.out.println("\n=== All Bank Accounts ===");
+        BankAccount[] listed = accounts.values().toArray(new BankAccount[0]);
+        Arrays.sort(listed, Comparator.comparingLong(BankAccount::getRegistration));
+        for (BankAccount account : listed) {
+            account.displayAccountDetails();
+        }
+    }
+    
+    public void calculateAllInterests() {
+        System.out.println("\n=== Calculating Interest for All Eligible Accounts ===");
+        BankAccount[] snapshot = accounts.values().toArray(new BankAccount[0]);
+        int credited = new BulkInterestAccrual().accrue(snapshot, 0, snapshot.length);
+        System.out.println("Interest credited to " + credited + " accounts");
+    }
+    
+    public void generateBankReport() {
+        if (replica != null) {
+            replica.generateReport();
+            return;
+        }
+        System.out.println("\n=== Bank Management Report ===");
+        System.out.println("Total Accounts: " + accounts.size());
+        System.out.println("System Total Accounts Ever Created: " + BankAccount.getTotalAccounts());
+        
+        System.out.println("Total Bank Balance: $" + Money.format(statistics.getTotalBalanceCents()));
+        System.out.println("Savings Accounts: " + statistics.getCount("Savings"));
+        System.out.println("Checking Accounts: " + statistics.getCount("Checking"));
+        System.out.println("Certificate of Deposits: " + statistics.getCount("Certificate of Deposit"));
+        System.out.println("Money Market Accounts: " + statistics.getCount("Money Market"));
+        System.out.println("Closed Accounts: " + statistics.getClosedCount());
+    }
+    
+    // Month-end for the current month; accounts that already had this
+    // month's interest or fees are skipped. CD maturity is not part of the
+    // batch: the maturity scheduler fires each CD when it matures, and is
+    // only caught up here
+    public void processMonthlyOperations() {
+        System.out.println("\n=== Processing Monthly Operations ===");
+        new MonthlyBatchRunner(accounts.values(), YearMonth.now(), null).run();
+        maturities.advanceTo(System.currentTimeMillis());
+        System.out.println("Monthly operations completed");
+    }
+    
+    // Writes every account's statement for period into directory, one file
+    // per shard of accounts; returns the number of files written
+    public int generateStatements(Path directory, YearMonth period) {
+        return new StatementGenerator(directory, period).generate(accounts.values());
+    }
+    
+    // Resumable variant: completed shards are recorded in checkpointFile so a
+    // crashed run picks up where it stopped when called again
+    public void processMonthlyOperations(Path checkpointFile) {
+        System.out.println("\n=== Processing Monthly Operations ===");
+        new MonthlyBatchRunner(accounts.values(), YearMonth.now(), checkpointFile).run();
+        maturities.advanceTo(System.currentTimeMillis());
+        System.out.println("Monthly operations completed");
+    }
+}
+
+// Snapshot + write-ahead log persistence for a BankManagementSystem
+// Accounts log each change under their balance lock, with a sequence number
+// and a CRC32C so a record torn by a crash ends recovery. A background
+// snapshot copies one stripe at a time under its write lock, notes the log
+// sequence each stripe reached and then drops the covered records from the
+// log; recovery replays only the records a stripe's image lacks
+//
+// Snapshot: [magic:4][version:4][generation:8][stripe count:4], per stripe
+// [log sequence:8][account count:4][records], then [id count:4][request ids]
+// Snapshot record: [length:4][crc:4][op:1][payload]
+// Log: [generation:8] then [length:4][crc:4][sequence:8][op:1][payload]
+// Account: [type:1][number][holder][term months:4][state]
+// Balance: [number][delta cents:8][time:8 if withdrawal][step:8 if month
+// end][request id]; State: [number][state]; strings [length:2][UTF-8]
+class BankPersistence {
+    static final byte OP_OPEN = 1;
+    static final byte OP_ADJUST = 2;
+    static final byte OP_WITHDRAW = 3;
+    static final byte OP_CLOSE = 4;
+    static final byte OP_REMOVE = 5;
+    static final byte OP_MONTH_END = 6;
+    static final byte OP_STATE = 7;
+    
+    static final long DEFAULT_SNAPSHOT_RECORDS = 1_000_000;
+    static final long DEFAULT_SNAPSHOT_MILLIS = 10 * 60_000;
+    
+    private static final int SNAPSHOT_MAGIC = 0x42414e4b; // "BANK"
+    private static final int SNAPSHOT_VERSION = 6;
+    private static final int MAX_RECORD_SIZE = 4096;
+    private static final int STRIPES = 64;
+    private static final int CHUNK_SIZE = 1 << 18;
+    
+    private final Path snapshotFile;
+    private final BankManagementSystem bank;
+    private final WriteAheadLog log;
+    private final TransactionJournal journal;
+    private long generation;
+    
+    // Sequence number of the newest record each thread appended
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    
+    // One snapshot at a time; the fields below belong to the snapshot thread
+    private final Object snapshotting = new Object();
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bank-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotQueued = new AtomicBoolean();
+    private volatile long snapshotEveryRecords = DEFAULT_SNAPSHOT_RECORDS;
+    private volatile long snapshotEveryMillis = DEFAULT_SNAPSHOT_MILLIS;
+    private volatile long snapshotSequence;
+    private volatile long snapshotTakenAt = System.currentTimeMillis();
+    private volatile long longestStripeCopyNanos;
+    private volatile long longestSnapshotNanos;
+    private final LongAdder snapshots = new LongAdder();
+    
+    private BankPersistence(Path directory, BankManagementSystem bank, long generation, long sequence,
+                            TransactionJournal journal) {
+        this.snapshotFile = directory.resolve("bank.snapshot");
+        this.bank = bank;
+        this.generation = generation;
+        this.log = new WriteAheadLog(directory.resolve("bank.wal"), generation, sequence);
+        this.journal = journal;
+        this.snapshotSequence = sequence;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        snapshotter.scheduleWithFixedDelay(this::snapshotIfDue, 1, 1, TimeUnit.SECONDS);
+    }
+    
+    // Starts persisting into directory under a generation newer than any
+    // state already there
+    static BankPersistence create(Path directory, BankManagementSystem bank) {
+        try {
+            Files.createDirectories(directory);
+            return new BankPersistence(directory, bank, snapshotGeneration(directory.resolve("bank.snapshot")) + 1, 0,
+                    TransactionJournal.open(directory, false));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create persistence directory " + directory, e);
+        }
+    }
+    
+    static BankPersistence recover(Path directory, BankManagementSystem bank) {
+        Path snapshotFile = directory.resolve("bank.snapshot");
+        Path logFile = directory.resolve("bank.wal");
+        long start = System.nanoTime();
+        long snapshotGeneration = 0;
+        long[] covered = new long[STRIPES];
+        int restored = 0;
+        long[] replayed = new long[2]; // records applied, newest sequence seen
+        try {
+            if (Files.exists(snapshotFile)) {
+                snapshotGeneration = snapshotGeneration(snapshotFile);
+                restored = loadSnapshot(snapshotFile, bank, covered);
+            }
+            for (long sequence : covered) {
+                replayed[1] = Math.max(replayed[1], sequence);
+            }
+            // A log one generation behind is the one the last snapshot did
+            // not get to rewrite; it still holds every record after it
+            long logGeneration = WriteAheadLog.readGeneration(logFile);
+            if (logGeneration >= 0 &&
+                (logGeneration == snapshotGeneration || logGeneration == snapshotGeneration - 1)) {
+                replayLog(logFile, bank, covered, replayed);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Recovery failed in " + directory, e);
+        }
+        System.out.println("Recovered " + restored + " accounts and replayed " + replayed[0] +
+                         " log records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new BankPersistence(directory, bank, snapshotGeneration, replayed[1],
+                                   TransactionJournal.open(directory, true));
+    }
+    
+    // Snapshots every everyRecords log records or everyMillis, whichever
+    // comes first
+    void setSnapshotPolicy(long everyRecords, long everyMillis) {
+        snapshotEveryRecords = everyRecords;
+        snapshotEveryMillis = everyMillis;
+    }
+    
+    long logOpen(BankAccount account, Runnable apply, boolean[] applied) {
+        return logged(account.getAccountNumber(), apply,
+                      () -> applied[0] ? log.append(OP_OPEN, out -> writeAccount(out, account)) : 0);
+    }
+    
+    long logRemove(String accountNumber, Runnable apply) {
+        return logged(accountNumber, apply, () -> log.append(OP_REMOVE, out -> putString(out, accountNumber)));
+    }
+    
+    private long logged(String accountNumber, Runnable apply, LongSupplier append) {
+        ReentrantReadWriteLock.ReadLock lock = stripeOf(accountNumber).readLock();
+        lock.lock();
+        try {
+            apply.run();
+            return appended(append.getAsLong());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Accounts bracket each change with these while holding their own
+    // balance write lock
+    void beginChange(String accountNumber) {
+        stripeOf(accountNumber).readLock().lock();
+    }
+    
+    void endChange(String accountNumber) {
+        stripeOf(accountNumber).readLock().unlock();
+    }
+    
+    void appendBalance(byte op, String accountNumber, long deltaCents, long detail, String request) {
+        lastAppended.get()[0] = appended(log.append(op, out -> {
+            putString(out, accountNumber);
+            out.putLong(deltaCents);
+            if (op != OP_ADJUST) {
+                out.putLong(detail);
+            }
+            putString(out, request);
+        }));
+    }
+    
+    void appendState(BankAccount account) {
+        lastAppended.get()[0] = appended(log.append(OP_STATE, out -> {
+            putString(out, account.getAccountNumber());
+            account.writeState(out);
+        }));
+    }
+    
+    void appendClose(String accountNumber) {
+        lastAppended.get()[0] = appended(log.append(OP_CLOSE, out -> putString(out, accountNumber)));
+    }
+    
+    // Hands a snapshot to the background thread once enough records piled
+    // up; the appending thread holds locks a snapshot would wait for
+    private long appended(long sequence) {
+        if (sequence - snapshotSequence >= snapshotEveryRecords && snapshotQueued.compareAndSet(false, true)) {
+            snapshotter.execute(this::snapshotQuietly);
+        }
+        return sequence;
+    }
+    
+    private void snapshotIfDue() {
+        if (System.currentTimeMillis() - snapshotTakenAt >= snapshotEveryMillis &&
+            log.getSequence() > snapshotSequence && snapshotQueued.compareAndSet(false, true)) {
+            snapshotQuietly();
+        }
+    }
+    
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (UncheckedIOException | IllegalStateException e) {
+            System.out.println("Automatic snapshot failed: " + e.getMessage());
+        } finally {
+            snapshotQueued.set(false);
+        }
+    }
+    
+    // Waits until every record the calling thread appended is durable
+    void awaitOwnAppends() {
+        log.awaitDurable(lastAppended.get()[0]);
+    }
+    
+    void awaitDurable(long seq) {
+        log.awaitDurable(seq);
+    }
+    
+    long getCommitCount() {
+        return log.getCommitCount();
+    }
+    
+    long getSnapshotCount() {
+        return snapshots.sum();
+    }
+    
+    // Records appended since the log was opened or last cut by a snapshot
+    long getLogRecordCount() {
+        return log.getRecordCount();
+    }
+    
+    // Longest time a stripe was locked by a snapshot
+    long getLongestStripeCopyNanos() {
+        return longestStripeCopyNanos;
+    }
+    
+    // Longest snapshot from start to the rewritten log
+    long getLongestSnapshotNanos() {
+        return longestSnapshotNanos;
+    }
+    
+    // Transaction history of the bank's tracking accounts
+    TransactionJournal getJournal() {
+        return journal;
+    }
+    
+    public void snapshot() {
+        synchronized (snapshotting) {
+            long start = System.nanoTime();
+            long next = generation + 1;
+            long[] covered = new long[STRIPES];
+            Path temp = snapshotFile.resolveSibling("bank.snapshot.tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(next).putInt(STRIPES);
+                drain(channel, buffer);
+                for (int stripe = 0; stripe < STRIPES; stripe++) {
+                    List<ByteBuffer> chunks = new ArrayList<>();
+                    int count = copyStripe(stripe, chunks, covered);
+                    buffer.putLong(covered[stripe]).putInt(count);
+                    drain(channel, buffer);
+                    for (ByteBuffer chunk : chunks) {
+                        writeFully(channel, chunk);
+                    }
+                }
+                List<String> requests = bank.getRequestWindow().inOrder();
+                buffer.putInt(requests.size());
+                for (String request : requests) {
+                    if (buffer.remaining() < MAX_RECORD_SIZE) {
+                        drain(channel, buffer);
+                    }
+                    putString(buffer, request);
+                }
+                drain(channel, buffer);
+                channel.force(true);
+                Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // A crash before this line leaves a log of the old
+                // generation, which recovery still replays in full
+                long oldest = Long.MAX_VALUE;
+                for (long sequence : covered) {
+                    oldest = Math.min(oldest, sequence);
+                }
+                log.truncateThrough(oldest, next);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Snapshot failed", e);
+            }
+            generation = next;
+            snapshotSequence = log.getSequence();
+            snapshotTakenAt = System.currentTimeMillis();
+            snapshots.increment();
+            longestSnapshotNanos = Math.max(longestSnapshotNanos, System.nanoTime() - start);
+        }
+    }
+    
+    // Copies the stripe's accounts into heap chunks under its write lock and
+    // notes how far the log had got; returns the number of accounts
+    private int copyStripe(int stripe, List<ByteBuffer> chunks, long[] covered) {
+        ReentrantReadWriteLock.WriteLock lock = stripes[stripe].writeLock();
+        lock.lock();
+        long start = System.nanoTime();
+        try {
+            covered[stripe] = log.getSequence();
+            ByteBuffer chunk = null;
+            int count = 0;
+            for (BankAccount account : bank.getAccounts()) {
+                if (stripeIndex(account.getAccountNumber()) != stripe) {
+                    continue;
+                }
+                if (chunk == null || chunk.remaining() < MAX_RECORD_SIZE) {
+                    if (chunk != null) {
+                        chunk.flip();
+                    }
+                    chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                    chunks.add(chunk);
+                }
+                writeRecord(chunk, OP_OPEN, out -> writeAccount(out, account));
+                count++;
+            }
+            if (chunk != null) {
+                chunk.flip();
+            }
+            return count;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            lock.unlock();
+            longestStripeCopyNanos = Math.max(longestStripeCopyNanos, nanos);
+        }
+    }
+    
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+    
+    private ReentrantReadWriteLock stripeOf(String accountNumber) {
+        return stripes[stripeIndex(accountNumber)];
+    }
+    
+    private static int stripeIndex(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+    
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    static void writeRecord(ByteBuffer out, byte op, Consumer<ByteBuffer> payload) {
+        int start = out.position();
+        out.putInt(0).putInt(0).put(op);
+        payload.accept(out);
+        sealRecord(out, start);
+    }
+    
+    // Fills in the length and CRC of the record written from start on
+    static void sealRecord(ByteBuffer out, int start) {
+        int end = out.position();
+        out.putInt(start, end - start - 4);
+        out.putInt(start + 4, checksum(out, start + 8, end));
+    }
+    
+    static int checksum(ByteBuffer buffer, int from, int to) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to).position(from);
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+    
+    // Generation stamped in a snapshot file, or 0 when there is none
+    private static long snapshotGeneration(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the fixed header
+            }
+            header.flip();
+            if (header.remaining() < 16 || header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a bank snapshot: " + file);
+            }
+            return header.getLong();
+        }
+    }
+    
+    // Fills covered with the log sequence each stripe's image reaches
+    private static int loadSnapshot(Path file, BankManagementSystem bank, long[] covered) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.position(16); // header, checked by snapshotGeneration
+            if (in.getInt() != STRIPES) {
+                throw new IOException("Snapshot has a different stripe count: " + file);
+            }
+            int total = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                covered[stripe] = in.getLong();
+                for (int i = in.getInt(); i > 0; i--) {
+                    int length = in.getInt();
+                    int crc = in.getInt();
+                    if (checksum(in, in.position(), in.position() + length - 4) != crc) {
+                        throw new IOException("Damaged snapshot record at " + (in.position() - 8) + ": " + file);
+                    }
+                    in.get(); // OP_OPEN
+                    applyRecord(OP_OPEN, in, bank);
+                    total++;
+                }
+            }
+            RequestWindow requests = bank.getRequestWindow();
+            for (int i = in.getInt(); i > 0; i--) {
+                requests.record(getString(in));
+            }
+            return total;
+        }
+    }
+    
+    // Applies every intact record after the header that its stripe's image
+    // does not hold yet. A short record or a CRC mismatch (crash in the
+    // middle of a write) ends the replay, and the log is cut there.
+    // replayed gets the number of records applied and the newest sequence
+    private static void replayLog(Path file, BankManagementSystem bank, long[] covered, long[] replayed)
+            throws IOException {
+        long validLength = WriteAheadLog.HEADER_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.position(WriteAheadLog.HEADER_SIZE);
+            while (in.remaining() >= 17) {
+                int start = in.position();
+                int length = in.getInt(start);
+                if (length < 13 || in.remaining() < 4 + length ||
+                    checksum(in, start + 8, start + 4 + length) != in.getInt(start + 4)) {
+                    break;
+                }
+                int end = start + 4 + length;
+                in.position(start + 8);
+                long sequence = in.getLong();
+                byte op = in.get();
+                replayed[1] = Math.max(replayed[1], sequence);
+                if (sequence > covered[stripeIndex(accountOf(op, in))]) {
+                    applyRecord(op, in, bank);
+                    replayed[0]++;
+                }
+                in.position(end);
+                validLength = end;
+            }
+        }
+        if (validLength < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+    
+    // Account number of the record at in's position, which is left unchanged
+    private static String accountOf(byte op, ByteBuffer in) {
+        ByteBuffer payload = in.duplicate();
+        if (op == OP_OPEN) {
+            payload.get(); // account type
+        }
+        return getString(payload);
+    }
+    
+    // A record that does not fit the rebuilt state means the files are
+    // damaged or out of step, so recovery stops rather than guessing
+    private static void applyRecord(byte op, ByteBuffer in, BankManagementSystem bank) {
+        if (op == OP_OPEN) {
+            BankAccount account = readAccount(in);
+            if (!bank.register(account)) {
+                throw new IllegalStateException("Account opened twice in saved state: " + account.getAccountNumber());
+            }
+            return;
+        }
+        String accountNumber = getString(in);
+        BankAccount account = bank.findAccount(accountNumber);
+        if (account == null) {
+            throw new IllegalStateException("Log record " + op + " for unknown account " + accountNumber);
+        }
+        switch (op) {
+            case OP_ADJUST:
+                account.replayChange(in.getLong());
+                replayRequest(in, bank);
+                break;
+            case OP_WITHDRAW: {
+                long deltaCents = in.getLong();
+                account.replayWithdrawal(deltaCents, in.getLong());
+                replayRequest(in, bank);
+                break;
+            }
+            case OP_MONTH_END: {
+                long deltaCents = in.getLong();
+                account.replayMonthEnd(deltaCents, in.getLong());
+                replayRequest(in, bank);
+                break;
+            }
+            case OP_CLOSE:
+                account.replayClose();
+                break;
+            case OP_STATE:
+                account.readState(in);
+                break;
+            case OP_REMOVE:
+                bank.unregister(accountNumber);
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + op);
+        }
+    }
+    
+    private static void replayRequest(ByteBuffer in, BankManagementSystem bank) {
+        String request = getString(in);
+        if (!request.isEmpty()) {
+            bank.getRequestWindow().record(request);
+        }
+    }
+    
+    static void writeAccount(ByteBuffer out, BankAccount account) {
+        byte type;
+        int term = 0;
+        if (account instanceof SavingsAccount) {
+            type = 1;
+        } else if (account instanceof CheckingAccount) {
+            type = 2;
+        } else if (account instanceof CertificateOfDeposit) {
+            type = 3;
+            term = ((CertificateOfDeposit) account).getTermInMonths();
+        } else if (account instanceof MoneyMarketAccount) {
+            type = 4;
+        } else {
+            throw new IllegalArgumentException("Unsupported account type: " + account.getClass().getName());
+        }
+        out.put(type);
+        putString(out, account.getAccountNumber());
+        putString(out, account.getAccountHolderName());
+        out.putInt(term);
+        account.writeState(out);
+    }
+    
+    static BankAccount readAccount(ByteBuffer in) {
+        byte type = in.get();
+        String number = getString(in);
+        String holder = getString(in);
+        int term = in.getInt();
+        BankAccount account;
+        switch (type) {
+            case 1: account = new SavingsAccount(number, holder); break;
+            case 2: account = new CheckingAccount(number, holder); break;
+            case 3: account = new CertificateOfDeposit(number, holder, term); break;
+            case 4: account = new MoneyMarketAccount(number, holder); break;
+            default: throw new IllegalStateException("Unknown account type " + type);
+        }
+        account.readState(in);
+        return account;
+    }
+    
+    static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+    
+    static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Append-only log with group commit
+// Writers copy their record into a shared buffer and get a sequence
+// number; a single committer thread swaps buffers, writes the batch and
+// issues one fsync for everything in it, then wakes the waiters whose
+// records are now durable. Only the first record of a batch wakes the
+// committer, and each commit wakes the waiters once, so the wakeups follow
+// the commit groups rather than the records. If a write or fsync fails the
+// log stops taking records and every waiter gets the error instead of
+// hanging
+class WriteAheadLog {
+    static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private final Path file;
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsPending = lock.newCondition();  // the committer waits here
+    private final Condition spaceFree = lock.newCondition();       // writers wait for room
+    private final Condition committed = lock.newCondition();       // awaitDurable waits here
+    private long appendedSeq;
+    private long durableSeq;
+    private long records;    // appended since the log was opened or last truncated
+    private long commits;
+    private boolean truncating;
+    private boolean closed;
+    private IOException failure;
+    private final Thread committer;
+    
+    // Continues a log of the given generation, or starts it afresh when the
+    // file is missing or belongs to another generation. Sequence numbers
+    // go on from sequence
+    WriteAheadLog(Path file, long generation, long sequence) {
+        this.file = file;
+        this.appendedSeq = sequence;
+        this.durableSeq = sequence;
+        try {
+            boolean current = readGeneration(file) == generation;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (!current) {
+                startGeneration(generation);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open write-ahead log " + file, e);
+        }
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+    
+    // Generation in the log header, or -1 when there is no complete header
+    static long readGeneration(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < HEADER_SIZE) {
+            return -1;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                // read the fixed header
+            }
+            return header.getLong(0);
+        }
+    }
+    
+    // Returns the record's sequence number for awaitDurable
+    long append(byte op, Consumer<ByteBuffer> payload) {
+        lock.lock();
+        try {
+            while ((pending.remaining() < 4096 || truncating) && !closed && failure == null) {
+                awaitQuietly(spaceFree);
+            }
+            checkUsable();
+            boolean first = pending.position() == 0;
+            int start = pending.position();
+            pending.putInt(0).putInt(0).putLong(++appendedSeq).put(op);
+            payload.accept(pending);
+            BankPersistence.sealRecord(pending, start);
+            records++;
+            if (first) {
+                recordsPending.signal();
+            }
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    void awaitDurable(long seq) {
+        lock.lock();
+        try {
+            while (durableSeq < seq && !closed && failure == null) {
+                awaitQuietly(committed);
+            }
+            if (durableSeq < seq && failure != null) {
+                throw new UncheckedIOException("Write-ahead log commit failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Sequence number of the newest record appended
+    long getSequence() {
+        lock.lock();
+        try {
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Drops every record up to sequence and stamps the log with generation.
+    // Appends wait while the records after sequence (those logged during
+    // the snapshot) are copied into a new file that replaces the log
+    void truncateThrough(long sequence, long generation) throws IOException {
+        lock.lock();
+        try {
+            checkUsable();
+            truncating = true;
+            while (durableSeq < appendedSeq && failure == null) {
+                awaitQuietly(committed);
+            }
+            checkUsable();
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            long kept = 0;
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer old = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(0, generation);
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                int position = HEADER_SIZE;
+                while (position < old.limit()) {
+                    int end = position + 4 + old.getInt(position);
+                    if (old.getLong(position + 8) > sequence) {
+                        ByteBuffer record = old.duplicate();
+                        record.limit(end).position(position);
+                        while (record.hasRemaining()) {
+                            out.write(record);
+                        }
+                        kept++;
+                    }
+                    position = end;
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            records = kept;
+        } finally {
+            truncating = false;
+            spaceFree.signalAll();
+            lock.unlock();
+        }
+    }
+    
+    long getCommitCount() {
+        lock.lock();
+        try {
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    long getRecordCount() {
+        lock.lock();
+        try {
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    void close() {
+        lock.lock();
+        try {
+            while (durableSeq < appendedSeq && failure == null) {
+                awaitQuietly(committed);
+            }
+            closed = true;
+            recordsPending.signal();
+            spaceFree.signalAll();
+            committed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Could not close write-ahead log: " + e.getMessage());
+        }
+    }
+    
+    private void startGeneration(long generation) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(0, generation);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+    }
+    
+    private void checkUsable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Write-ahead log commit failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+    }
+    
+    private void commitLoop() {
+        while (true) {
+            long batchSeq;
+            FileChannel target;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    awaitQuietly(recordsPending);
+                }
+                if (pending.position() == 0 && closed) {
+                    return;
+                }
+                ByteBuffer full = pending;
+                pending = flushing;
+                flushing = full;
+                batchSeq = appendedSeq;
+                target = channel;
+                spaceFree.signalAll(); // writers blocked on a full buffer can go on
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining()) {
+                    target.write(flushing);
+                }
+                target.force(false);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    spaceFree.signalAll();
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            } finally {
+                flushing.clear();
+            }
+            lock.lock();
+            try {
+                durableSeq = batchSeq;
+                commits++;
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    private void awaitQuietly(Condition condition) {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on write-ahead log", e);
+        }
+    }
+}
+
+// Columnar bulk interest accrual
+// Gathers balances (validated stamped reads) and rates of eligible
+// interest-earning accounts into primitive arrays, computes every month's
+// interest in one tight loop the JIT can unroll and vectorize, then
+// credits the results back. The kernel runs at tens of millions of
+// accounts per second; the full pass does not, because each credit takes
+// the account's write lock, appends its journal entry and emits its event,
+// and re-checks the gathered balance under that lock. Scratch arrays are
+// reused across calls, so one instance per thread
+class BulkInterestAccrual {
+    private BankAccount[] eligible = new BankAccount[0];
+    private long[] balances = new long[0];
+    private long[] rates = new long[0];
+    private long[] interest = new long[0];
+    
+    // Accrues interest for accounts[from, to); returns the number credited
+    public int accrue(BankAccount[] accounts, int from, int to) {
+        return accrue(accounts, from, to, BankAccount.NO_MONTH_END);
+    }
+    
+    // Month-end variant: accounts that already have the step are skipped
+    public int accrue(BankAccount[] accounts, int from, int to, long monthEndStep) {
+        ensureCapacity(to - from);
+        
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            BankAccount account = accounts[i];
+            if (account instanceof InterestEarning) {
+                InterestEarning earning = (InterestEarning) account;
+                if (earning.isEligibleForInterest()) {
+                    eligible[count] = account;
+                    balances[count] = account.getBalanceCents();
+                    rates[count] = account.interestRateBps;
+                    count++;
+                }
+            }
+        }
+        
+        computeMonthlyInterest(balances, rates, interest, count);
+        
+        int credited = 0;
+        for (int i = 0; i < count; i++) {
+            if (eligible[i].creditAccruedInterest(monthEndStep, balances[i], rates[i], interest[i])) {
+                credited++;
+            }
+            eligible[i] = null;
+        }
+        return credited;
+    }
+    
+    // Same rounding as Money.monthlyInterest; eligible balances are never
+    // negative, so the half-up form needs no sign branch
+    static void computeMonthlyInterest(long[] balances, long[] rates, long[] interest, int count) {
+        for (int i = 0; i < count; i++) {
+            interest[i] = (balances[i] * rates[i] + 60_000) / 120_000;
+        }
+    }
+    
+    private void ensureCapacity(int size) {
+        if (balances.length < size) {
+            eligible = new BankAccount[size];
+            balances = new long[size];
+            rates = new long[size];
+            interest = new long[size];
+        }
+    }
+}
+
+// Bank-wide statistics kept up to date as accounts change
+// Counts and balance sums (in cents) per account type live in striped
+// LongAdder cells, so writers on different threads rarely contend and
+// the report reads them in O(1) while transactions are in flight
+class BankStatistics {
+    static class TypeTotals {
+        final LongAdder count = new LongAdder();
+        final LongAdder closed = new LongAdder();
+        final LongAdder balanceCents = new LongAdder();
+    }
+    
+    private final Map<String, TypeTotals> byType = new ConcurrentHashMap<>();
+    
+    public void register(BankAccount account) {
+        TypeTotals totals = byType.computeIfAbsent(account.accountType, t -> new TypeTotals());
+        totals.count.increment();
+        account.attachStatistics(totals);
+    }
+    
+    public void unregister(BankAccount account) {
+        TypeTotals totals = account.getStatistics();
+        if (totals == null) {
+            return;
+        }
+        account.attachStatistics(null);
+        totals.count.decrement();
+    }
+    
+    public long getCount(String accountType) {
+        TypeTotals totals = byType.get(accountType);
+        return totals == null ? 0 : totals.count.sum();
+    }
+    
+    public long getClosedCount() {
+        long closed = 0;
+        for (TypeTotals totals : byType.values()) {
+            closed += totals.closed.sum();
+        }
+        return closed;
+    }
+    
+    public long getTotalBalanceCents() {
+        long total = 0;
+        for (TypeTotals totals : byType.values()) {
+            total += totals.balanceCents.sum();
+        }
+        return total;
+    }
+}
+
+// Change-data-capture feed of account mutations
+// Each change goes into a bounded ring as (kind, account, balance after),
+// claimed with a CAS as in AsyncEventSink and read by one replica thread.
+// Records carry the balance rather than the delta, so when the ring is full
+// the account is just marked for resync and publishing never waits.
+// Back-pressure (maxBehind) is opt-in; by default lag is only reported
+class ChangeFeed {
+    static final byte OPEN = 1;
+    static final byte BALANCE = 2;
+    static final byte CLOSE = 3;
+    static final byte REMOVE = 4;
+    
+    // maxBehind of a feed whose writers are never held back
+    static final long UNBOUNDED = Long.MAX_VALUE;
+    
+    private final int mask;
+    private final byte[] kinds;
+    private final BankAccount[] accounts;
+    private final long[] balances;
+    private final long[] publishNanos;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final Set<BankAccount> resync = ConcurrentHashMap.newKeySet();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final long maxBehind;
+    private volatile boolean consuming = true;
+    
+    ChangeFeed(int capacity, long maxBehind) {
+        this.maxBehind = maxBehind;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.kinds = new byte[size];
+        this.accounts = new BankAccount[size];
+        this.balances = new long[size];
+        this.publishNanos = new long[size];
+        this.published = new AtomicLongArray(size);
+    }
+    
+    void publish(byte kind, BankAccount account, long balanceAfterCents) {
+        long seq;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed <= mask) {
+                if (claimed.compareAndSet(seq, seq + 1)) {
+                    break;
+                }
+            } else {
+                overflows.increment();
+                resync.add(account);
+                return;
+            }
+        }
+        
+        int slot = (int) seq & mask;
+        kinds[slot] = kind;
+        accounts[slot] = account;
+        balances[slot] = balanceAfterCents;
+        publishNanos[slot] = System.nanoTime();
+        published.lazySet(slot, seq + 1);
+    }
+    
+    // Back-pressure for writers: waits while more than maxBehind changes
+    // are queued. The caller must hold no account lock, or the replica
+    // could not make progress on that account
+    void throttle() {
+        if (maxBehind == UNBOUNDED || claimed.get() - consumed <= maxBehind) {
+            return;
+        }
+        throttled.increment();
+        while (consuming && claimed.get() - consumed > maxBehind) {
+            LockSupport.parkNanos(20_000);
+        }
+    }
+    
+    // The consumer is gone; writers are no longer held back
+    void stopConsuming() {
+        consuming = false;
+    }
+    
+    long getMaxBehind() {
+        return maxBehind;
+    }
+    
+    long getThrottledCount() {
+        return throttled.sum();
+    }
+    
+    long getPublishedCount() {
+        return claimed.get();
+    }
+    
+    long getConsumedCount() {
+        return consumed;
+    }
+    
+    long getOverflowCount() {
+        return overflows.sum();
+    }
+    
+    boolean isPublished(long seq) {
+        return published.get((int) seq & mask) == seq + 1;
+    }
+    
+    byte kindAt(long seq) { return kinds[(int) seq & mask]; }
+    BankAccount accountAt(long seq) { return accounts[(int) seq & mask]; }
+    long balanceAt(long seq) { return balances[(int) seq & mask]; }
+    long publishNanosAt(long seq) { return publishNanos[(int) seq & mask]; }
+    
+    // Frees the slot for producers once the consumer has read it
+    void release(long seq) {
+        accounts[(int) seq & mask] = null;
+        consumed = seq + 1;
+    }
+    
+    Set<BankAccount> getResyncSet() {
+        return resync;
+    }
+}
+
+// Asynchronously maintained copy of account state for reporting
+// A background thread applies the change feed to its own rows and per-type
+// totals, so reports never read or lock the live account objects. Each row
+// remembers the sequence of the last change applied to it; a resync reads
+// the feed position before the account, so older queued changes that
+// arrive after it are skipped. Lag is tracked both as changes not yet
+// applied and as the time between publish and apply; a change applied more
+// than LAG_ALERT_NANOS after it was published starts a lag alert, which
+// the report shows until the replica is back under the threshold
+class ReadReplica {
+    static final class Row {
+        final BankAccount source;    // identity only, never read for state
+        final String accountNumber;
+        final String holderName;
+        final String accountType;
+        volatile long balanceCents;
+        volatile boolean active;
+        long version;
+        
+        Row(BankAccount account) {
+            this.source = account;
+            this.accountNumber = account.getAccountNumber();
+            this.holderName = account.getAccountHolderName();
+            this.accountType = account.accountType;
+        }
+    }
+    
+    private static final class TypeTotals {
+        volatile long count;
+        volatile long closed;
+        volatile long balanceCents;
+    }
+    
+    // Above this share of overflowing changes the report flags the feed
+    static final double OVERFLOW_WARNING_RATIO = 0.01;
+    
+    // Publish-to-apply delay above which the replica counts as lagging
+    static final long LAG_ALERT_NANOS = 50_000_000;
+    
+    private final ChangeFeed feed;
+    private final Map<String, Row> rows = new ConcurrentSkipListMap<>();
+    private final Map<String, TypeTotals> byType = new ConcurrentHashMap<>();
+    private final Thread applier;
+    private volatile boolean running = true;
+    private volatile long applied;
+    private volatile long resynced;
+    private volatile long maxLagNanos;
+    private long totalLagNanos;
+    private volatile long meanLagNanos;
+    private volatile boolean lagging;
+    private volatile long lagAlerts;
+    
+    ReadReplica(ChangeFeed feed) {
+        this.feed = feed;
+        this.applier = new Thread(this::applyLoop, "read-replica");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+    
+    public Row getRow(String accountNumber) {
+        return rows.get(accountNumber);
+    }
+    
+    public int getAccountCount() {
+        return rows.size();
+    }
+    
+    public long getCount(String accountType) {
+        TypeTotals totals = byType.get(accountType);
+        return totals == null ? 0 : totals.count;
+    }
+    
+    public long getClosedCount() {
+        long closed = 0;
+        for (TypeTotals totals : byType.values()) {
+            closed += totals.closed;
+        }
+        return closed;
+    }
+    
+    public long getTotalBalanceCents() {
+        long total = 0;
+        for (TypeTotals totals : byType.values()) {
+            total += totals.balanceCents;
+        }
+        return total;
+    }
+    
+    // Changes published but not yet applied, plus accounts awaiting resync
+    public long getLagChanges() {
+        return feed.getPublishedCount() - feed.getConsumedCount() + feed.getResyncSet().size();
+    }
+    
+    // Age of the oldest change not yet applied; zero when caught up
+    public long getLagNanos() {
+        long next = feed.getConsumedCount();
+        if (next < feed.getPublishedCount() && feed.isPublished(next)) {
+            return Math.max(0, System.nanoTime() - feed.publishNanosAt(next));
+        }
+        return 0;
+    }
+    
+    public long getMaxLagNanos() { return maxLagNanos; }
+    public long getMeanLagNanos() { return meanLagNanos; }
+    public long getAppliedCount() { return applied; }
+    public long getResyncCount() { return resynced; }
+    public long getOverflowCount() { return feed.getOverflowCount(); }
+    public long getThrottledCount() { return feed.getThrottledCount(); }
+    public long getMaxLagChanges() { return feed.getMaxBehind(); }
+    
+    // True while the latest applied change was older than LAG_ALERT_NANOS
+    public boolean isLagging() { return lagging; }
+    
+    // Times the replica went over LAG_ALERT_NANOS
+    public long getLagAlertCount() { return lagAlerts; }
+    
+    // Share of changes that missed the feed and had to be resynced from the
+    // live account; stays near zero when the ring fits the write rate
+    public double getOverflowRatio() {
+        long overflows = feed.getOverflowCount();
+        long total = feed.getPublishedCount() + overflows;
+        return total == 0 ? 0 : overflows / (double) total;
+    }
+    
+    public boolean isFeedHealthy() {
+        return getOverflowRatio() <= OVERFLOW_WARNING_RATIO;
+    }
+    
+    // Waits until every change published so far has been applied
+    public boolean awaitCaughtUp(long timeoutMillis) {
+        long target = feed.getPublishedCount();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (feed.getConsumedCount() < target || !feed.getResyncSet().isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(100_000);
+        }
+        return true;
+    }
+    
+    public void close() {
+        running = false;
+        feed.stopConsuming();
+        LockSupport.unpark(applier);
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public void displayAllAccounts() {
+        System.out.println("\n=== All Bank Accounts (read replica) ===");
+        for (Row row : rows.values()) {
+            System.out.println(row.accountNumber + " | " + row.holderName + " | " + row.accountType +
+                             " | $" + Money.format(row.balanceCents) + " | " + (row.active ? "Active" : "Closed"));
+        }
+    }
+    
+    public void generateReport() {
+        System.out.println("\n=== Bank Management Report (read replica, " + getLagChanges() + " changes behind) ===");
+        System.out.println("Total Accounts: " + rows.size());
+        System.out.println("System Total Accounts Ever Created: " + BankAccount.getTotalAccounts());
+        
+        System.out.println("Total Bank Balance: $" + Money.format(getTotalBalanceCents()));
+        System.out.println("Savings Accounts: " + getCount("Savings"));
+        System.out.println("Checking Accounts: " + getCount("Checking"));
+        System.out.println("Certificate of Deposits: " + getCount("Certificate of Deposit"));
+        System.out.println("Money Market Accounts: " + getCount("Money Market"));
+        System.out.println("Closed Accounts: " + getClosedCount());
+        System.out.println("Change Feed Overflow: " + String.format("%.2f", getOverflowRatio() * 100) + "%" +
+                         (isFeedHealthy() ? "" : " (feed too small for the write rate, replica is resyncing from live accounts)"));
+        if (lagging) {
+            System.out.println("Replica Lag Alert: changes are applied more than " + LAG_ALERT_NANOS / 1_000_000 +
+                             " ms after they were made");
+        }
+    }
+    
+    private void applyLoop() {
+        long next = 0;
+        while (running) {
+            boolean idle = true;
+            while (feed.isPublished(next)) {
+                apply(next);
+                feed.release(next);
+                next++;
+                idle = false;
+            }
+            if (!feed.getResyncSet().isEmpty()) {
+                resyncAccounts();
+                idle = false;
+            }
+            if (idle) {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+    
+    private void apply(long seq) {
+        BankAccount account = feed.accountAt(seq);
+        byte kind = feed.kindAt(seq);
+        Row row = rows.get(account.getAccountNumber());
+        if (kind == ChangeFeed.REMOVE) {
+            if (row != null && row.source == account && seq >= row.version) {
+                removeRow(row);
+            }
+        } else if (account.getChangeFeed() == feed) {
+            // A change can overtake the open record of an account that was
+            // attached while writes were running, so any change adds the row.
+            // A row left by an earlier account with the same number goes;
+            // changes of accounts detached since are skipped, as their row
+            // goes with the removal
+            if (row != null && row.source != account) {
+                removeRow(row);
+                row = null;
+            }
+            if (row == null) {
+                row = addRow(account);
+            }
+            if (seq >= row.version) {
+                if (kind == ChangeFeed.CLOSE) {
+                    setActive(row, false);
+                }
+                setBalance(row, feed.balanceAt(seq), seq);
+            }
+        }
+        
+        long lag = System.nanoTime() - feed.publishNanosAt(seq);
+        totalLagNanos += lag;
+        applied++;
+        meanLagNanos = totalLagNanos / applied;
+        if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+        }
+        if (lag > LAG_ALERT_NANOS != lagging) {
+            lagging = !lagging;
+            if (lagging) {
+                lagAlerts++;
+            }
+        }
+    }
+    
+    // Re-reads accounts whose changes did not fit in the feed. The version
+    // is taken first so only changes published after the read still apply.
+    // An account detached before that point was removed, so its row goes,
+    // unless the number now belongs to a different account object
+    private void resyncAccounts() {
+        Iterator<BankAccount> it = feed.getResyncSet().iterator();
+        while (it.hasNext()) {
+            BankAccount account = it.next();
+            it.remove();
+            long version = feed.getPublishedCount();
+            if (account.getChangeFeed() != feed) {
+                Row stale = rows.get(account.getAccountNumber());
+                if (stale != null && stale.source == account) {
+                    removeRow(stale);
+                    resynced++;
+                }
+                continue;
+            }
+            Row row = rows.get(account.getAccountNumber());
+            if (row != null && row.source != account) {
+                removeRow(row);
+                row = null;
+            }
+            if (row == null) {
+                row = addRow(account);
+            }
+            setActive(row, account.isActive());
+            setBalance(row, account.getBalanceCents(), version);
+            resynced++;
+        }
+    }
+    
+    private Row addRow(BankAccount account) {
+        Row row = new Row(account);
+        row.active = account.isActive();
+        TypeTotals totals = totalsFor(row.accountType);
+        totals.count++;
+        if (!row.active) {
+            totals.closed++;
+        }
+        rows.put(row.accountNumber, row);
+        return row;
+    }
+    
+    private void removeRow(Row row) {
+        TypeTotals totals = totalsFor(row.accountType);
+        totals.count--;
+        totals.balanceCents -= row.balanceCents;
+        if (!row.active) {
+            totals.closed--;
+        }
+        rows.remove(row.accountNumber);
+    }
+    
+    private void setBalance(Row row, long balanceCents, long version) {
+        totalsFor(row.accountType).balanceCents += balanceCents - row.balanceCents;
+        row.balanceCents = balanceCents;
+        row.version = version;
+    }
+    
+    private void setActive(Row row, boolean active) {
+        if (row.active != active) {
+            totalsFor(row.accountType).closed += active ? -1 : 1;
+            row.active = active;
+        }
+    }
+    
+    private TypeTotals totalsFor(String accountType) {
+        return byType.computeIfAbsent(accountType, t -> new TypeTotals());
+    }
+}
+
+// CD maturity scheduler: hierarchical timing wheel
+// Four wheels of 64 slots each, with one-minute ticks on the finest wheel,
+// cover about 31 years. A CD is linked into the slot for its maturity
+// tick on the coarsest wheel that can hold the remaining delay; when a
+// finer wheel wraps, the next slot of the coarser wheel is cascaded down.
+// Schedule and cancel are O(1) list operations, and advancing only touches
+// the slots that come due, so no pass over all CDs is needed. Advancing
+// also jumps straight to the next tick with an occupied slot to fire or
+// cascade, so empty stretches of the clock cost nothing per minute
+class MaturityScheduler {
+    static final long TICK_MILLIS = 60_000;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELAY_TICKS = 1L << (WHEEL_BITS * LEVELS);
+    
+    private static final class Timer {
+        final CertificateOfDeposit account;
+        final long deadline;
+        int level;
+        int slot;
+        Timer previous;
+        Timer next;
+        
+        Timer(CertificateOfDeposit account, long deadline) {
+            this.account = account;
+            this.deadline = deadline;
+        }
+    }
+    
+    private final Timer[][] slots = new Timer[LEVELS][WHEEL_SIZE];
+    private final Map<String, Timer> timers = new HashMap<>();
+    private long currentTick;
+    private ScheduledExecutorService ticker;
+    
+    public MaturityScheduler(long startMillis) {
+        this.currentTick = startMillis / TICK_MILLIS;
+    }
+    
+    // Advances the wheel with the wall clock once per tick in the background
+    public synchronized void start() {
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "cd-maturity-wheel");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(() -> advanceTo(System.currentTimeMillis()),
+                                       TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+    
+    public synchronized void schedule(CertificateOfDeposit account) {
+        cancel(account.getAccountNumber());
+        if (account.isMatured()) {
+            return;
+        }
+        // Round up so the CD never fires before its maturity time
+        long deadline = (account.getMaturityDate().getTime() + TICK_MILLIS - 1) / TICK_MILLIS;
+        Timer timer = new Timer(account, Math.max(deadline, currentTick + 1));
+        place(timer);
+        timers.put(account.getAccountNumber(), timer);
+    }
+    
+    public synchronized boolean cancel(String accountNumber) {
+        Timer timer = timers.remove(accountNumber);
+        if (timer == null) {
+            return false;
+        }
+        unlink(timer);
+        return true;
+    }
+    
+    public synchronized int getPendingCount() {
+        return timers.size();
+    }
+    
+    // Fires every CD whose maturity is at or before nowMillis; returns how many
+    public int advanceTo(long nowMillis) {
+        long target = nowMillis / TICK_MILLIS;
+        List<CertificateOfDeposit> due = new ArrayList<>();
+        synchronized (this) {
+            while (currentTick < target) {
+                // Ticks with no occupied slot to fire or cascade change
+                // nothing, so the wheel jumps straight past them
+                long eventTick = timers.isEmpty() ? Long.MAX_VALUE : nextEventTick();
+                if (eventTick > target) {
+                    currentTick = target;
+                    break;
+                }
+                currentTick = eventTick;
+                if ((currentTick & WHEEL_MASK) == 0) {
+                    cascade(1);
+                }
+                int slot = (int) (currentTick & WHEEL_MASK);
+                Timer timer = slots[0][slot];
+                while (timer != null) {
+                    Timer next = timer.next;
+                    unlink(timer);
+                    if (timer.deadline <= currentTick) {
+                        timers.remove(timer.account.getAccountNumber());
+                        due.add(timer.account);
+                    } else {
+                        // Not due yet, e.g. placed by a delay clamped to the
+                        // wheel's range: file it again by its real deadline
+                        place(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+        // Maturity handling runs outside the lock so sinks cannot stall scheduling
+        for (CertificateOfDeposit account : due) {
+            account.markMatured();
+        }
+        return due.size();
+    }
+    
+    // First tick after currentTick at which a step does any work: a level-0
+    // slot holding timers comes up, or a wheel boundary cascades a coarser
+    // slot holding timers. Each wheel is checked over one rotation, so this
+    // costs at most LEVELS * WHEEL_SIZE slot reads
+    private long nextEventTick() {
+        long best = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + WHEEL_SIZE; tick++) {
+            if (slots[0][(int) (tick & WHEEL_MASK)] != null) {
+                best = tick;
+                break;
+            }
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = WHEEL_BITS * level;
+            long boundary = ((currentTick >>> shift) + 1) << shift;
+            for (int i = 0; i < WHEEL_SIZE && boundary < best; i++, boundary += 1L << shift) {
+                if (slots[level][(int) ((boundary >>> shift) & WHEEL_MASK)] != null) {
+                    best = boundary;
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+    
+    // Moves the current slot of the given wheel down to finer wheels, and
+    // recurses to the next wheel when this one has wrapped as well
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Timer timer = slots[level][slot];
+        slots[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.previous = null;
+            timer.next = null;
+            place(timer);
+            timer = next;
+        }
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+    }
+    
+    private void place(Timer timer) {
+        long delay = timer.deadline - currentTick;
+        long tick = delay < MAX_DELAY_TICKS ? timer.deadline : currentTick + MAX_DELAY_TICKS - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && tick - currentTick >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        timer.level = level;
+        timer.slot = slot;
+        timer.previous = null;
+        timer.next = slots[level][slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[level][slot] = timer;
+    }
+    
+    private void unlink(Timer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.level][timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+    }
+}
+
+// Month-end batch runner
+// Splits accounts into fixed-size shards ordered by account number and runs
+// each phase over all shards in parallel on a fork/join pool. Every run is
+// for one month, and each (month, phase) pair is a month-end step that an
+// account records together with the balance change (see
+// BankAccount.applyMonthEnd), so running the same month again, in full or
+// after a crash part-way through a shard, never credits or charges twice.
+// When a checkpoint file is given, every finished (phase, shard) pair is
+// appended to it once the shard's changes are durable in the bank's log,
+// and is skipped on the next run of the same month; the file starts with
+// the month and shard layout and is deleted once all phases end
+class MonthlyBatchRunner {
+    enum Phase { INTEREST, FEES }
+    
+    static final int DEFAULT_SHARD_SIZE = 1024;
+    
+    private final BankAccount[] accounts;
+    private final YearMonth month;
+    private final int shardSize;
+    private final int shardCount;
+    private final Path checkpointFile;
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<BulkInterestAccrual> accrual = ThreadLocal.withInitial(BulkInterestAccrual::new);
+    private FileChannel checkpoint;
+    
+    public MonthlyBatchRunner(Collection<BankAccount> accounts, YearMonth month, Path checkpointFile) {
+        this(accounts, month, checkpointFile, DEFAULT_SHARD_SIZE);
+    }
+    
+    public MonthlyBatchRunner(Collection<BankAccount> accounts, YearMonth month, Path checkpointFile, int shardSize) {
+        this.accounts = accounts.toArray(new BankAccount[0]);
+        Arrays.sort(this.accounts, Comparator.comparing(BankAccount::getAccountNumber));
+        this.month = month;
+        this.shardSize = shardSize;
+        this.shardCount = (this.accounts.length + shardSize - 1) / shardSize;
+        this.checkpointFile = checkpointFile;
+    }
+    
+    public void run() {
+        openCheckpoint();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        try {
+            for (Phase phase : Phase.values()) {
+                long start = System.nanoTime();
+                int processed = pool.invoke(new ShardTask(phase, 0, shardCount));
+                reportThroughput(phase, processed, System.nanoTime() - start);
+            }
+        } finally {
+            closeCheckpoint();
+        }
+        if (checkpointFile != null) {
+            try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException e) {
+                System.out.println("Could not remove checkpoint file: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Month-end step of a phase in this run's month; increases with the
+    // month and with the phase order
+    long stepOf(Phase phase) {
+        return (month.getYear() * 12L + month.getMonthValue() - 1) * Phase.values().length + phase.ordinal();
+    }
+    
+    // Processes shards [from, to), splitting until a single shard remains;
+    // returns the number of accounts handled
+    private class ShardTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Phase phase;
+        private final int from;
+        private final int to;
+        
+        ShardTask(Phase phase, int from, int to) {
+            this.phase = phase;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected Integer compute() {
+            if (to - from <= 1) {
+                return from < to ? processShard(phase, from) : 0;
+            }
+            int mid = (from + to) >>> 1;
+            ShardTask left = new ShardTask(phase, from, mid);
+            left.fork();
+            int right = new ShardTask(phase, mid, to).compute();
+            return left.join() + right;
+        }
+    }
+    
+    private int processShard(Phase phase, int shard) {
+        String key = phase + " " + shard;
+        if (completed.contains(key)) {
+            return 0;
+        }
+        int start = shard * shardSize;
+        int end = Math.min(start + shardSize, accounts.length);
+        long step = stepOf(phase);
+        if (phase == Phase.INTEREST) {
+            accrual.get().accrue(accounts, start, end, step);
+        } else {
+            for (int i = start; i < end; i++) {
+                apply(phase, step, accounts[i]);
+            }
+        }
+        // The shard ran on this thread, so waiting for this thread's log
+        // records makes all of its changes durable before the checkpoint
+        accounts[start].awaitSettled();
+        markCompleted(key);
+        return end - start;
+    }
+    
+    private void apply(Phase phase, long step, BankAccount account) {
+        switch (phase) {
+            case FEES:
+                if (account instanceof CheckingAccount) {
+                    ((CheckingAccount) account).chargeMonthlyFee(step);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void reportThroughput(Phase phase, int processed, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        System.out.println("Phase " + phase + ": " + processed + " accounts in " +
+                         String.format("%.2f", elapsedNanos / 1_000_000.0) + " ms (" +
+                         String.format("%.0f", processed / seconds) + " accounts/sec)");
+    }
+    
+    private void openCheckpoint() {
+        if (checkpointFile == null) {
+            return;
+        }
+        try {
+            String header = "month=" + month + " accounts=" + accounts.length + " shardSize=" + shardSize;
+            if (Files.exists(checkpointFile)) {
+                List<String> lines = Files.readAllLines(checkpointFile);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    completed.addAll(lines.subList(1, lines.size()));
+                    System.out.println("Resuming month-end run for " + month + ": " + completed.size() +
+                                     " shard phases already completed");
+                } else {
+                    Files.delete(checkpointFile);
+                }
+            }
+            checkpoint = FileChannel.open(checkpointFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (completed.isEmpty() && checkpoint.size() == 0) {
+                writeCheckpointLine(header);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open checkpoint file " + checkpointFile, e);
+        }
+    }
+    
+    private void markCompleted(String key) {
+        completed.add(key);
+        if (checkpoint != null) {
+            writeCheckpointLine(key);
+        }
+    }
+    
+    private synchronized void writeCheckpointLine(String line) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                checkpoint.write(buffer);
+            }
+            checkpoint.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write checkpoint " + checkpointFile, e);
+        }
+    }
+    
+    private void closeCheckpoint() {
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                System.out.println("Could not close checkpoint file: " + e.getMessage());
+            }
+        }
+    }
+}
+
+// Streaming statement generator
+// Accounts are sorted by number and split into shards; each shard is written
+// to its own file by a fork/join worker. Journal entries are decoded one at
+// a time into a per-thread line builder and encoded into a fixed-size direct
+// buffer that is flushed to the file channel whenever it fills, so memory
+// stays bounded however long an account's history is. A statement covers
+// one calendar month (UTC days, as printed): the journal chain is newest
+// first, so entries after the month are skipped and the walk stops at the
+// first entry before it, leaving older history unread
+class StatementGenerator {
+    static final int DEFAULT_SHARD_SIZE = 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    
+    private final Path directory;
+    private final YearMonth period;
+    private final long periodStart;
+    private final long periodEnd;
+    private final int shardSize;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private final ThreadLocal<StringBuilder> lines = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder entriesWritten = new LongAdder();
+    
+    public StatementGenerator(Path directory, YearMonth period) {
+        this(directory, period, DEFAULT_SHARD_SIZE);
+    }
+    
+    public StatementGenerator(Path directory, YearMonth period, int shardSize) {
+        this.directory = directory;
+        this.period = period;
+        this.periodStart = period.atDay(1).toEpochDay() * MILLIS_PER_DAY;
+        this.periodEnd = period.plusMonths(1).atDay(1).toEpochDay() * MILLIS_PER_DAY;
+        this.shardSize = shardSize;
+    }
+    
+    // Returns the number of statement files written
+    public int generate(Collection<BankAccount> accounts) {
+        BankAccount[] sorted = accounts.toArray(new BankAccount[0]);
+        Arrays.sort(sorted, Comparator.comparing(BankAccount::getAccountNumber));
+        int shardCount = (sorted.length + shardSize - 1) / shardSize;
+        ForkJoinPool.commonPool().invoke(new ShardTask(sorted, 0, shardCount));
+        return shardCount;
+    }
+    
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    
+    public long getEntriesWritten() {
+        return entriesWritten.sum();
+    }
+    
+    private class ShardTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final BankAccount[] accounts;
+        private final int from;
+        private final int to;
+        
+        ShardTask(BankAccount[] accounts, int from, int to) {
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    writeShard(accounts, from);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ShardTask(accounts, from, mid), new ShardTask(accounts, mid, to));
+        }
+    }
+    
+    private void writeShard(BankAccount[] accounts, int shard) {
+        Path file = directory.resolve(String.format("statements-%05d.txt", shard));
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        int end = Math.min((shard + 1) * shardSize, accounts.length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = shard * shardSize; i < end; i++) {
+                writeStatement(channel, buffer, accounts[i]);
+            }
+            flush(channel, buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write statements to " + file, e);
+        }
+    }
+    
+    private void writeStatement(FileChannel channel, ByteBuffer buffer, BankAccount account) throws IOException {
+        StringBuilder line = lines.get();
+        line.setLength(0);
+        line.append("=== Monthly Statement - ").append(account.accountType).append(" Account ===\n")
+            .append("Account Number: ").append(account.getAccountNumber()).append('\n')
+            .append("Account Holder: ").append(account.getAccountHolderName()).append('\n')
+            .append("Period: ").append(period).append('\n')
+            .append("Balance: $");
+        Money.appendTo(line, account.getBalanceCents()).append('\n');
+        if (!(account instanceof TransactionTracking)) {
+            line.append("No transaction history tracked\n\n");
+            write(channel, buffer, line);
+            return;
+        }
+        line.append("Transactions (newest first):\n");
+        write(channel, buffer, line);
+        
+        TransactionTracking tracking = (TransactionTracking) account;
+        TransactionJournal journal;
+        long latest;
+        synchronized (account) {
+            journal = tracking.getJournal();
+            latest = tracking.getLatestJournalEntry();
+        }
+        long entries = 0;
+        for (long p = latest; p >= 0; p = journal.previousOf(p)) {
+            long timestamp = journal.timestampOf(p);
+            if (timestamp < periodStart) {
+                break;
+            }
+            if (timestamp >= periodEnd) {
+                continue;
+            }
+            line.setLength(0);
+            line.append("  ").append(LocalDate.ofEpochDay(Math.floorDiv(timestamp, MILLIS_PER_DAY)))
+                .append(' ').append(journal.typeOf(p)).append(": $");
+            Money.appendTo(line, journal.amountOf(p))
+                .append(" - ").append(journal.descriptionOf(p)).append('\n');
+            write(channel, buffer, line);
+            entries++;
+        }
+        entriesWritten.add(entries);
+        line.setLength(0);
+        write(channel, buffer, line.append('\n'));
+    }
+    
+    private void write(FileChannel channel, ByteBuffer buffer, StringBuilder text) throws IOException {
+        CharsetEncoder encoder = encoders.get().reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            flush(channel, buffer);
+        }
+    }
+    
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten.add(channel.write(buffer));
+        }
+        buffer.clear();
+    }
+}
+
+// Concurrent transaction engine
+// A deposit or withdrawal is already atomic under the account's own
+// balance lock, so the engine adds no lock around it and accounts never
+// wait on each other. Operations made of several steps (a withdrawal that
+// must be measured, a transfer) hold the account's operation lock, so two
+// such operations on one account never interleave
+class TransactionEngine {
+    // Both return once the change is durable when the account's bank
+    // keeps a write-ahead log, and once its read replica is within its lag
+    // bound when it has one
+    public void deposit(BankAccount account, double amount) {
+        account.deposit(amount);
+        account.awaitSettled();
+    }
+    
+    public boolean withdraw(BankAccount account, double amount) {
+        boolean applied = account.withdraw(amount);
+        account.awaitSettled();
+        return applied;
+    }
+    
+    // Runs any multi-step operation on one account under its operation lock
+    public <T> T execute(BankAccount account, Supplier<T> operation) {
+        ReentrantLock lock = account.operationLock;
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Two-account variant; the locks are taken in account number order so
+    // operations on the same pair in opposite directions cannot deadlock
+    public <T> T execute(BankAccount first, BankAccount second, Supplier<T> operation) {
+        boolean inOrder = first.getAccountNumber().compareTo(second.getAccountNumber()) <= 0;
+        ReentrantLock low = (inOrder ? first : second).operationLock;
+        ReentrantLock high = (inOrder ? second : first).operationLock;
+        low.lock();
+        try {
+            high.lock();
+            try {
+                return operation.get();
+            } finally {
+                high.unlock();
+            }
+        } finally {
+            low.unlock();
+        }
+    }
+    
+    // Balance reads are optimistic on the account itself and need no lock
+    public double getBalance(BankAccount account) {
+        return account.getBalance();
+    }
+}
+
+// Deposit or withdrawal command fed to the ingestion pipeline
+// The request id comes from the upstream system and identifies the command
+// across retries and re-sent files
+final class TransactionCommand {
+    enum Type { DEPOSIT, WITHDRAW }
+    
+    final String requestId;
+    final String accountNumber;
+    final Type type;
+    final long amountCents;
+    
+    TransactionCommand(String requestId, String accountNumber, Type type, long amountCents) {
+        this.requestId = requestId;
+        this.accountNumber = accountNumber;
+        this.type = type;
+        this.amountCents = amountCents;
+    }
+    
+    static TransactionCommand deposit(String requestId, String accountNumber, double amount) {
+        return new TransactionCommand(requestId, accountNumber, Type.DEPOSIT, Money.of(amount));
+    }
+    
+    static TransactionCommand withdraw(String requestId, String accountNumber, double amount) {
+        return new TransactionCommand(requestId, accountNumber, Type.WITHDRAW, Money.of(amount));
+    }
+}
+
+// Outcome of one ingestion run
+final class IngestionReport {
+    private final long accepted;
+    private final long rejected;
+    private final long duplicates;
+    private final long netCents;
+    private final long elapsedNanos;
+    
+    IngestionReport(long accepted, long rejected, long duplicates, long netCents, long elapsedNanos) {
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.duplicates = duplicates;
+        this.netCents = netCents;
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    public long getAccepted() { return accepted; }
+    public long getRejected() { return rejected; }
+    public long getDuplicates() { return duplicates; }
+    
+    // Deposits minus withdrawals over the accepted commands
+    public long getNetCents() { return netCents; }
+    
+    public long getElapsedNanos() { return elapsedNanos; }
+    
+    public double getCommandsPerSecond() {
+        return (accepted + rejected + duplicates) / (Math.max(elapsedNanos, 1) / 1_000_000_000.0);
+    }
+}
+
+// Bounded record of committed request ids
+// Remembers about the most recent 'capacity' ids whose command changed an
+// account. Ids are spread over stripes by hash and each stripe drops its
+// oldest id once it holds its share, so memory stays bounded however long
+// the bank runs. Lookups and the duplicate check are lock-free on one
+// concurrent set; only the eviction queue of the id's stripe is locked,
+// so lanes recording different ids rarely meet
+class RequestWindow {
+    static final int DEFAULT_CAPACITY = 1 << 21;
+    private static final int STRIPES = 64;
+    
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+    private final List<ArrayDeque<String>> order = new ArrayList<>(STRIPES);
+    private final int perStripe;
+    
+    // Id of the command the calling thread is applying; see tag
+    private final ThreadLocal<String> tagged = new ThreadLocal<>();
+    
+    RequestWindow(int capacity) {
+        this.perStripe = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            order.add(new ArrayDeque<>());
+        }
+    }
+    
+    boolean contains(String requestId) {
+        return ids.contains(requestId);
+    }
+    
+    // Returns false when the id was already recorded
+    boolean record(String requestId) {
+        if (!ids.add(requestId)) {
+            return false;
+        }
+        int h = requestId.hashCode();
+        ArrayDeque<String> stripe = order.get((h ^ (h >>> 16)) & (STRIPES - 1));
+        String evicted = null;
+        synchronized (stripe) {
+            stripe.addLast(requestId);
+            if (stripe.size() > perStripe) {
+                evicted = stripe.removeFirst();
+            }
+        }
+        if (evicted != null) {
+            ids.remove(evicted);
+        }
+        return true;
+    }
+    
+    // Marks the calling thread as applying the command with this id; null
+    // clears it. The account claims the id under its write lock
+    void tag(String requestId) {
+        tagged.set(requestId);
+    }
+    
+    // Records the tagged id and clears the tag: "" when nothing is tagged,
+    // the id when it was recorded now, null when it was already there
+    String claimTagged() {
+        String requestId = tagged.get();
+        if (requestId == null) {
+            return "";
+        }
+        tagged.set(null);
+        return record(requestId) ? requestId : null;
+    }
+    
+    // Oldest first within each stripe, for snapshots; recording them again
+    // in this order rebuilds every stripe as it was
+    List<String> inOrder() {
+        List<String> result = new ArrayList<>(ids.size());
+        for (ArrayDeque<String> stripe : order) {
+            synchronized (stripe) {
+                result.addAll(stripe);
+            }
+        }
+        return result;
+    }
+    
+    int size() {
+        return ids.size();
+    }
+}
+
+// Idempotent batch ingestion pipeline
+// The calling thread drops commands whose request id the bank has already
+// committed, or that is still in flight in this pipeline, and collects the
+// rest into batches. An id is only committed when its change applies, so a
+// rejected command can come back later and be tried again. Each batch is
+// grouped by account and every group goes to the single-threaded lane that
+// owns the account, so commands for one account keep their order. A group
+// looks its account up and takes its operation lock once; each command
+// still takes the account's own balance lock for its change. With
+// persistence a lane does not wait for the log inside a group: after its
+// groups of a batch it waits once, holding no lock, so all of them share
+// the flushes and nothing waits for the disk under a lock. Lanes apply one
+// batch while the caller builds the next; a semaphore bounds the number of
+// tasks in flight, and ingest returns once every change is durable
+class IngestionPipeline implements AutoCloseable {
+    static final int DEFAULT_BATCH_SIZE = 4096;
+    private static final int MAX_TASKS_IN_FLIGHT = 1 << 14;
+    
+    private final BankManagementSystem bank;
+    private final TransactionEngine engine;
+    private final int batchSize;
+    private final ExecutorService[] lanes;
+    private final Semaphore inFlight = new Semaphore(MAX_TASKS_IN_FLIGHT);
+    private final Set<String> inFlightRequests = ConcurrentHashMap.newKeySet();
+    
+    public IngestionPipeline(BankManagementSystem bank, TransactionEngine engine) {
+        this(bank, engine, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+    
+    public IngestionPipeline(BankManagementSystem bank, TransactionEngine engine, int laneCount, int batchSize) {
+        this.bank = bank;
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+    
+    // Applies every command not seen before and waits until all are done
+    public IngestionReport ingest(Iterator<TransactionCommand> commands) {
+        LongAdder accepted = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder netCents = new LongAdder();
+        LongAdder duplicates = new LongAdder();
+        long start = System.nanoTime();
+        
+        List<TransactionCommand> batch = new ArrayList<>(batchSize);
+        while (commands.hasNext()) {
+            TransactionCommand command = commands.next();
+            // Claim the id for this pipeline before asking the bank, so a
+            // lane that applies it and lets go in between cannot slip past
+            if (!inFlightRequests.add(command.requestId)) {
+                duplicates.increment();
+                continue;
+            }
+            if (bank.hasApplied(command.requestId)) {
+                inFlightRequests.remove(command.requestId);
+                duplicates.increment();
+                continue;
+            }
+            batch.add(command);
+            if (batch.size() == batchSize) {
+                dispatch(batch, accepted, rejected, duplicates, netCents);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        dispatch(batch, accepted, rejected, duplicates, netCents);
+        
+        // Every task holds a permit until it finishes, so owning all of
+        // them means the lanes are idle
+        inFlight.acquireUninterruptibly(MAX_TASKS_IN_FLIGHT);
+        inFlight.release(MAX_TASKS_IN_FLIGHT);
+        return new IngestionReport(accepted.sum(), rejected.sum(), duplicates.sum(), netCents.sum(),
+                                   System.nanoTime() - start);
+    }
+    
+    @Override
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ExecutorService lane : lanes) {
+                lane.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void dispatch(List<TransactionCommand> batch, LongAdder accepted, LongAdder rejected,
+                          LongAdder duplicates, LongAdder netCents) {
+        Map<String, List<TransactionCommand>> groups = new HashMap<>();
+        for (TransactionCommand command : batch) {
+            groups.computeIfAbsent(command.accountNumber, k -> new ArrayList<>()).add(command);
+        }
+        boolean[] used = new boolean[lanes.length];
+        for (Map.Entry<String, List<TransactionCommand>> group : groups.entrySet()) {
+            int lane = laneFor(group.getKey());
+            used[lane] = true;
+            submit(lane, () -> applyGroup(group.getKey(), group.getValue(), accepted, rejected, duplicates,
+                                          netCents));
+        }
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (used[lane]) {
+                submit(lane, bank::awaitOwnChanges);
+            }
+        }
+    }
+    
+    private void submit(int lane, Runnable task) {
+        inFlight.acquireUninterruptibly();
+        lanes[lane].execute(() -> {
+            try {
+                task.run();
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+    
+    // A command refused because another pipeline committed its id first
+    // counts as a duplicate, not a reject
+    private void applyGroup(String accountNumber, List<TransactionCommand> group, LongAdder accepted,
+                            LongAdder rejected, LongAdder duplicates, LongAdder netCents) {
+        BankAccount account = bank.findAccount(accountNumber);
+        if (account == null) {
+            for (TransactionCommand command : group) {
+                inFlightRequests.remove(command.requestId);
+            }
+            rejected.add(group.size());
+            return;
+        }
+        long[] net = new long[1];
+        int[] taken = new int[1];
+        int applied = engine.execute(account, () -> {
+            int count = 0;
+            for (TransactionCommand command : group) {
+                if (bank.apply(account, command)) {
+                    net[0] += command.type == TransactionCommand.Type.DEPOSIT
+                        ? command.amountCents : -command.amountCents;
+                    count++;
+                } else if (bank.hasApplied(command.requestId)) {
+                    taken[0]++;
+                }
+            }
+            return count;
+        });
+        for (TransactionCommand command : group) {
+            inFlightRequests.remove(command.requestId);
+        }
+        accepted.add(applied);
+        duplicates.add(taken[0]);
+        rejected.add(group.size() - applied - taken[0]);
+        netCents.add(net[0]);
+    }
+    
+    private int laneFor(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length;
+    }
+}
+
+// Consistent hash ring
+// Each node is placed on a 64-bit ring at many virtual points; an account
+// belongs to the first node point at or after the hash of its number.
+// Adding or removing a node only moves the accounts next to its points
+class ConsistentHashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+    
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int virtualNodes;
+    
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+    
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+    
+    public synchronized void addNode(String nodeId) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(nodeId + "#" + i), nodeId);
+        }
+    }
+    
+    public synchronized void removeNode(String nodeId) {
+        ring.values().removeIf(nodeId::equals);
+    }
+    
+    public synchronized String nodeFor(String accountNumber) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(accountNumber));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+    
+    // 64-bit FNV-1a followed by a finalizer so nearby strings spread out
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// Wire format shared by bank nodes and the sharded bank client
+// Request:  [op:1][transaction id:16][account:UTF][other account or holder:UTF][amount cents:8]
+//           OPEN appends [account type:1][term months:4]
+// Response: [ok:1][value:8]
+final class ShardProtocol {
+    static final byte OPEN = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte BALANCE = 4;
+    static final byte TRANSFER = 5;
+    static final byte PREPARE_DEBIT = 6;
+    static final byte PREPARE_CREDIT = 7;
+    static final byte COMMIT = 8;
+    static final byte ABORT = 9;
+    static final byte TOTAL = 10;
+    static final byte COUNT = 11;
+    
+    // Account type codes, the same as in BankPersistence
+    static final byte SAVINGS = 1;
+    static final byte CHECKING = 2;
+    static final byte CERTIFICATE = 3;
+    static final byte MONEY_MARKET = 4;
+    
+    // Transaction id sent with requests that are not part of a transfer
+    static final UUID NO_TRANSACTION = new UUID(0, 0);
+    
+    private ShardProtocol() {
+    }
+}
+
+// Durable state of a two-phase commit participant or coordinator
+// Maps transaction ids to small records. Every put and remove is appended
+// to the file and forced before it returns, so whatever a node voted or a
+// coordinator decided survives a crash. Opening the file replays it; a
+// torn last entry is cut off. Once COMPACT_AFTER entries have been written
+// the file is rewritten with only the live records
+// Entry layout: [op:1][transaction id:16], puts add [length:4][record]
+final class TwoPhaseLog implements AutoCloseable {
+    static final int COMPACT_AFTER = 10_000;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    
+    private final Path file;
+    private final Map<UUID, byte[]> live = new HashMap<>();
+    private FileChannel channel;
+    private int written;
+    
+    TwoPhaseLog(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (in.remaining() >= 17) {
+                byte op = in.get();
+                UUID id = new UUID(in.getLong(), in.getLong());
+                if (op == REMOVE) {
+                    live.remove(id);
+                    continue;
+                }
+                if (op != PUT || in.remaining() < 4) {
+                    break;
+                }
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.get(record);
+                live.put(id, record);
+            }
+        }
+        rewrite();
+    }
+    
+    // Live records as of opening, by transaction id
+    synchronized Map<UUID, byte[]> records() {
+        return new HashMap<>(live);
+    }
+    
+    synchronized void put(UUID id, byte[] record) throws IOException {
+        live.put(id, record);
+        ByteBuffer entry = ByteBuffer.allocate(21 + record.length);
+        entry.put(PUT).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits())
+             .putInt(record.length).put(record).flip();
+        append(entry);
+    }
+    
+    synchronized void remove(UUID id) throws IOException {
+        if (live.remove(id) == null) {
+            return;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(17);
+        entry.put(REMOVE).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).flip();
+        append(entry);
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+    
+    private void append(ByteBuffer entry) throws IOException {
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+        channel.force(false);
+        if (++written >= COMPACT_AFTER) {
+            channel.close();
+            rewrite();
+        }
+    }
+    
+    // Writes the live records to a temporary file and renames it over the
+    // log, so a crash leaves either the old file or the new one
+    private void rewrite() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<UUID, byte[]> record : live.entrySet()) {
+                ByteBuffer entry = ByteBuffer.allocate(21 + record.getValue().length);
+                entry.put(PUT).putLong(record.getKey().getMostSignificantBits())
+                     .putLong(record.getKey().getLeastSignificantBits())
+                     .putInt(record.getValue().length).put(record.getValue()).flip();
+                while (entry.hasRemaining()) {
+                    out.write(entry);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        written = 0;
+    }
+}
+
+// One shard: a BankManagementSystem served over a localhost socket, one
+// handler thread per connection. For two-phase commit a debit is applied
+// at prepare and refunded on abort, while a credit is only checked at
+// prepare and applied on commit. A node opened on a directory keeps its
+// bank there and its prepared legs in a TwoPhaseLog, written before it
+// votes yes
+class BankNode implements AutoCloseable {
+    // A prepared credit that hears nothing for this long expires and a late
+    // commit is refused; debits never expire, the credit may be committed
+    static final long PREPARED_TIMEOUT_MILLIS = 30_000;
+    
+    private static final class PreparedLeg {
+        // Holds the transaction id while its prepare is still running
+        static final PreparedLeg PENDING = new PreparedLeg("", false, 0, 0, 0);
+        // Left by an abort that arrived before (or instead of) the prepare
+        static final PreparedLeg ABORTED = new PreparedLeg("", false, 0, 0, 0);
+        // A credit that timed out: a commit is refused and an abort clears it
+        static final PreparedLeg EXPIRED = new PreparedLeg("", false, 0, 0, 0);
+        
+        final String accountNumber;
+        final boolean debit;
+        final long amountCents;      // what moves on commit or abort, fees included
+        final long requestedCents;   // what the withdrawal asked for
+        final long preparedAt;
+        
+        PreparedLeg(String accountNumber, boolean debit, long amountCents, long requestedCents, long preparedAt) {
+            this.accountNumber = accountNumber;
+            this.debit = debit;
+            this.amountCents = amountCents;
+            this.requestedCents = requestedCents;
+            this.preparedAt = preparedAt;
+        }
+        
+        boolean isMarker() {
+            return this == PENDING || this == ABORTED || this == EXPIRED;
+        }
+        
+        // [expired:1] followed, for a real leg, by [account][debit:1]
+        // [amount:8][requested:8][prepared at:8]
+        byte[] toRecord() {
+            ByteBuffer out = ByteBuffer.allocate(64 + 3 * accountNumber.length());
+            out.put((byte) (this == EXPIRED ? 1 : 0));
+            if (this != EXPIRED) {
+                BankPersistence.putString(out, accountNumber);
+                out.put((byte) (debit ? 1 : 0));
+                out.putLong(amountCents);
+                out.putLong(requestedCents);
+                out.putLong(preparedAt);
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+        
+        static PreparedLeg fromRecord(byte[] record) {
+            ByteBuffer in = ByteBuffer.wrap(record);
+            if (in.get() == 1) {
+                return EXPIRED;
+            }
+            return new PreparedLeg(BankPersistence.getString(in), in.get() == 1, in.getLong(), in.getLong(), in.getLong());
+        }
+    }
+    
+    private final String nodeId;
+    private final BankManagementSystem bank;
+    private final TwoPhaseLog legLog; // null when the node runs in memory
+    private final TransactionEngine engine = new TransactionEngine();
+    private final Map<UUID, PreparedLeg> prepared = new ConcurrentHashMap<>();
+    private final LongAdder expired = new LongAdder();
+    private final ServerSocket server;
+    private final ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "bank-node-handler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bank-node-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+    
+    public BankNode(String nodeId) throws IOException {
+        this(nodeId, null);
+    }
+    
+    // Keeps the node's bank and prepared legs in directory; a node opened
+    // again on the same directory carries on where the last one stopped
+    public BankNode(String nodeId, Path directory) throws IOException {
+        this.nodeId = nodeId;
+        if (directory == null) {
+            this.bank = new BankManagementSystem();
+            this.legLog = null;
+        } else {
+            Files.createDirectories(directory);
+            if (Files.exists(directory.resolve("bank.snapshot"))) {
+                this.bank = BankManagementSystem.recover(directory);
+            } else {
+                this.bank = new BankManagementSystem();
+                this.bank.enablePersistence(directory);
+            }
+            this.legLog = new TwoPhaseLog(directory.resolve("prepared.legs"));
+            restorePreparedLegs();
+        }
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        handlers.execute(this::acceptLoop);
+        sweeper.scheduleAtFixedRate(() -> expirePreparedCredits(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+    }
+    
+    public void setEventSink(AccountEventSink sink) {
+        bank.setEventSink(sink);
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+    
+    // Legs voted yes on and not finished yet
+    public int getPreparedCount() {
+        int count = 0;
+        for (PreparedLeg leg : prepared.values()) {
+            if (!leg.isMarker()) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+    
+    @Override
+    public void close() {
+        running = false;
+        sweeper.shutdownNow();
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.out.println("Error closing node " + nodeId + ": " + e.getMessage());
+        }
+        handlers.shutdownNow();
+        if (legLog != null) {
+            try {
+                legLog.close();
+            } catch (IOException e) {
+                System.out.println("Error closing prepared legs of node " + nodeId + ": " + e.getMessage());
+            }
+            bank.shutdownPersistence();
+        }
+    }
+    
+    // Expires prepared credits older than the timeout; returns how many
+    int expirePreparedCredits(long nowMillis) {
+        int count = 0;
+        for (Map.Entry<UUID, PreparedLeg> entry : prepared.entrySet()) {
+            PreparedLeg leg = entry.getValue();
+            if (leg.isMarker() || leg.debit || nowMillis - leg.preparedAt < PREPARED_TIMEOUT_MILLIS) {
+                continue;
+            }
+            if (prepared.replace(entry.getKey(), leg, PreparedLeg.EXPIRED)) {
+                record(entry.getKey(), PreparedLeg.EXPIRED);
+                count++;
+            }
+        }
+        expired.add(count);
+        return count;
+    }
+    
+    // Reloads the legs that were prepared when the node stopped. A leg
+    // whose finishing deposit is among the bank's committed requests was
+    // finished, and a debit whose own request is missing never happened
+    private void restorePreparedLegs() throws IOException {
+        for (Map.Entry<UUID, byte[]> entry : legLog.records().entrySet()) {
+            UUID id = entry.getKey();
+            PreparedLeg leg = PreparedLeg.fromRecord(entry.getValue());
+            if (leg != PreparedLeg.EXPIRED &&
+                (bank.hasApplied(doneRequest(id)) || leg.debit && !bank.hasApplied(debitRequest(id)))) {
+                legLog.remove(id);
+                continue;
+            }
+            if (leg.debit && leg.amountCents < 0) {
+                // Stopped between the debit and recording its amount: the
+                // fee it may have charged is not known, so an abort gives
+                // back the requested amount
+                System.out.println("Node " + nodeId + ": prepared debit " + id + " restored without its fee");
+                leg = new PreparedLeg(leg.accountNumber, true, leg.requestedCents, leg.requestedCents, leg.preparedAt);
+            }
+            prepared.put(id, leg);
+        }
+    }
+    
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                handlers.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Node " + nodeId + " accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private void serve(Socket socket) {
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            while (running) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                UUID transactionId = new UUID(in.readLong(), in.readLong());
+                String account = in.readUTF();
+                String other = in.readUTF();
+                long cents = in.readLong();
+                long result;
+                if (op == ShardProtocol.OPEN) {
+                    result = open(in.readByte(), account, other, cents, in.readInt());
+                } else {
+                    result = handle(op, transactionId, account, other, cents);
+                }
+                out.writeBoolean(result != Long.MIN_VALUE);
+                out.writeLong(result);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Node " + nodeId + " connection failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Returns the response value, or Long.MIN_VALUE for a failed request
+    private long handle(byte op, UUID transactionId, String accountNumber, String other, long cents) {
+        switch (op) {
+            case ShardProtocol.DEPOSIT:
+                return ok(withAccount(accountNumber, account -> bank.depositCents(accountNumber, cents)));
+            case ShardProtocol.WITHDRAW:
+                return ok(withAccount(accountNumber, account -> bank.withdrawCents(accountNumber, cents)));
+            case ShardProtocol.BALANCE: {
+                BankAccount account = bank.findAccount(accountNumber);
+                return account == null ? Long.MIN_VALUE : account.getBalanceCents();
+            }
+            case ShardProtocol.TRANSFER:
+                return ok(transferLocal(accountNumber, other, cents));
+            case ShardProtocol.PREPARE_DEBIT:
+                return ok(prepareDebit(transactionId, accountNumber, cents));
+            case ShardProtocol.PREPARE_CREDIT:
+                return ok(prepareCredit(transactionId, accountNumber, cents));
+            case ShardProtocol.COMMIT:
+                return ok(finish(transactionId, true));
+            case ShardProtocol.ABORT:
+                return ok(finish(transactionId, false));
+            case ShardProtocol.TOTAL:
+                return bank.getTotalBalanceCents();
+            case ShardProtocol.COUNT:
+                return bank.getAccountCount();
+            default:
+                return Long.MIN_VALUE;
+        }
+    }
+    
+    // The account constructors take the opening balance in dollars; any
+    // amount below 2^51 cents converts there and back to the same cents
+    private long open(byte type, String accountNumber, String holder, long cents, int termMonths) {
+        double balance = Money.toDouble(cents);
+        BankAccount account;
+        switch (type) {
+            case ShardProtocol.SAVINGS:
+                account = new SavingsAccount(accountNumber, holder, balance);
+                break;
+            case ShardProtocol.CHECKING:
+                account = new CheckingAccount(accountNumber, holder, balance);
+                break;
+            case ShardProtocol.CERTIFICATE:
+                account = new CertificateOfDeposit(accountNumber, holder, balance, termMonths);
+                break;
+            case ShardProtocol.MONEY_MARKET:
+                account = new MoneyMarketAccount(accountNumber, holder, balance);
+                break;
+            default:
+                return Long.MIN_VALUE;
+        }
+        if (bank.findAccount(accountNumber) != null) {
+            return Long.MIN_VALUE;
+        }
+        // Registration is a putIfAbsent, so only one of two racing opens wins
+        bank.addAccount(account);
+        return ok(bank.findAccount(accountNumber) == account);
+    }
+    
+    private boolean withAccount(String accountNumber, Predicate<BankAccount> operation) {
+        BankAccount account = bank.findAccount(accountNumber);
+        return account != null && engine.execute(account, () -> operation.test(account));
+    }
+    
+    private boolean transferLocal(String fromNumber, String toNumber, long cents) {
+        BankAccount from = bank.findAccount(fromNumber);
+        BankAccount to = bank.findAccount(toNumber);
+        if (from == null || to == null || from == to || !to.isActive()) {
+            return false;
+        }
+        return engine.execute(from, to, () -> {
+            long before = from.getBalanceCents();
+            long since = System.currentTimeMillis();
+            if (!bank.withdrawCents(fromNumber, cents)) {
+                return false;
+            }
+            if (bank.depositCents(toNumber, cents)) {
+                return true;
+            }
+            // Target closed after the check: put back what left the source
+            // and the limit and velocity slots the withdrawal took
+            from.adjustBalance(before - from.getBalanceCents());
+            from.releaseWithdrawal(cents, since);
+            return false;
+        });
+    }
+    
+    // Applies the debit now and remembers exactly how much left the account
+    // (fees included) so an abort can put it back. The account's engine lock
+    // keeps other withdrawals out, so the limit slots taken from preparedAt
+    // on belong to this one. The leg is recorded before the debit, with the
+    // amount still unknown (-1), and again with it before the vote
+    private boolean prepareDebit(UUID transactionId, String accountNumber, long cents) {
+        BankAccount account = bank.findAccount(accountNumber);
+        if (account == null || prepared.putIfAbsent(transactionId, PreparedLeg.PENDING) != null) {
+            return false;
+        }
+        long[] debited = new long[2];
+        boolean applied = engine.execute(account, () -> {
+            debited[1] = System.currentTimeMillis();
+            if (!record(transactionId, new PreparedLeg(accountNumber, true, -1, cents, debited[1]))) {
+                return false;
+            }
+            long before = account.getBalanceCents();
+            boolean ok = bank.apply(account, new TransactionCommand(debitRequest(transactionId), accountNumber,
+                                                                    TransactionCommand.Type.WITHDRAW, cents));
+            bank.awaitOwnChanges();
+            debited[0] = before - account.getBalanceCents();
+            return ok;
+        });
+        if (!applied) {
+            forget(transactionId);
+            prepared.remove(transactionId, PreparedLeg.PENDING);
+            return false;
+        }
+        PreparedLeg leg = new PreparedLeg(accountNumber, true, debited[0], cents, debited[1]);
+        prepared.put(transactionId, leg);
+        // Voting no still leaves the leg for the coordinator's abort
+        return record(transactionId, leg);
+    }
+    
+    private boolean prepareCredit(UUID transactionId, String accountNumber, long cents) {
+        BankAccount account = bank.findAccount(accountNumber);
+        if (account == null || !account.isActive() ||
+            prepared.putIfAbsent(transactionId, PreparedLeg.PENDING) != null) {
+            return false;
+        }
+        PreparedLeg leg = new PreparedLeg(accountNumber, false, cents, cents, System.currentTimeMillis());
+        if (!record(transactionId, leg)) {
+            prepared.remove(transactionId, PreparedLeg.PENDING);
+            return false;
+        }
+        prepared.put(transactionId, leg);
+        return true;
+    }
+    
+    // Commit applies a prepared credit; abort reverses a prepared debit and
+    // gives back the limit slots it used. Both are idempotent: a commit for
+    // an unknown id was applied already, and an abort for one leaves the
+    // ABORTED marker. A commit of an aborted or expired id is refused. When
+    // the deposit is refused (the account was closed in between) the leg
+    // stays prepared and the call fails, so the coordinator can abort, retry
+    // or escalate
+    private boolean finish(UUID transactionId, boolean commit) {
+        PreparedLeg[] taken = new PreparedLeg[1];
+        prepared.compute(transactionId, (id, current) -> {
+            taken[0] = current;
+            if (current == null) {
+                return commit ? null : PreparedLeg.ABORTED;
+            }
+            if (current == PreparedLeg.EXPIRED) {
+                return commit ? current : null;
+            }
+            return current == PreparedLeg.PENDING || current == PreparedLeg.ABORTED ? current : null;
+        });
+        PreparedLeg leg = taken[0];
+        if (leg == null) {
+            return true;
+        }
+        if (leg == PreparedLeg.ABORTED) {
+            return !commit;
+        }
+        if (leg == PreparedLeg.EXPIRED) {
+            if (!commit) {
+                forget(transactionId);
+            }
+            return !commit;
+        }
+        if (leg == PreparedLeg.PENDING) {
+            return false;
+        }
+        if (leg.debit == commit) {
+            forget(transactionId);
+            return true;
+        }
+        BankAccount account = bank.findAccount(leg.accountNumber);
+        String done = doneRequest(transactionId);
+        boolean applied = engine.execute(account, () -> {
+            if (!bank.hasApplied(done)) {
+                if (!bank.apply(account, new TransactionCommand(done, leg.accountNumber,
+                                                                TransactionCommand.Type.DEPOSIT, leg.amountCents))) {
+                    return false;
+                }
+                bank.awaitOwnChanges();
+            }
+            if (leg.debit) {
+                account.releaseWithdrawal(leg.requestedCents, leg.preparedAt);
+            }
+            return true;
+        });
+        if (applied) {
+            forget(transactionId);
+        } else {
+            prepared.put(transactionId, leg);
+        }
+        return applied;
+    }
+    
+    // Puts the leg on disk; false when it cannot be written, in which case
+    // the node votes no. Always true for a node in memory
+    private boolean record(UUID transactionId, PreparedLeg leg) {
+        if (legLog == null) {
+            return true;
+        }
+        try {
+            legLog.put(transactionId, leg.toRecord());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Node " + nodeId + " cannot record leg " + transactionId + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // A leg that cannot be removed comes back on restart, and the request
+    // ids then show it as finished
+    private void forget(UUID transactionId) {
+        if (legLog == null) {
+            return;
+        }
+        try {
+            legLog.remove(transactionId);
+        } catch (IOException e) {
+            System.out.println("Node " + nodeId + " cannot drop leg " + transactionId + ": " + e.getMessage());
+        }
+    }
+    
+    // Request ids of a leg's debit and of the deposit that finishes it, so
+    // after a restart the bank's committed ids tell which of them happened
+    private static String debitRequest(UUID transactionId) {
+        return "2pc:" + transactionId;
+    }
+    
+    private static String doneRequest(UUID transactionId) {
+        return "2pc-done:" + transactionId;
+    }
+    
+    private static long ok(boolean success) {
+        return success ? 1 : Long.MIN_VALUE;
+    }
+}
+
+// Client side of the sharded bank
+// Routes each account to its node with a consistent hash ring and talks to
+// nodes over a small pool of socket connections per node. A transfer
+// between accounts on the same node is one TRANSFER request; across nodes
+// the client coordinates a two-phase commit: prepare the debit and the
+// credit, then commit both if both voted yes, otherwise abort both.
+// Transaction ids are random UUIDs, so coordinators never share one.
+// Every cross-node transfer is recorded in inDoubt before its first
+// prepare, as an abort until both nodes have voted yes and as a commit
+// after, and leaves it only once both nodes confirmed the decision. A node
+// that cannot be reached counts as "not applied": the transfer stays
+// recorded and retryInDoubt drives its prepared legs to the end. The
+// credit commits first; if the target refuses it the debit is aborted
+// instead.
+// A coordinator opened on a state file keeps inDoubt there as a
+// TwoPhaseLog: each transfer is on disk before its first prepare and again
+// once it is decided to commit, and leaves the file with its record. A
+// coordinator restarted on the file takes over every transfer left in it,
+// and retryInDoubt finishes them once the nodes are added back
+class ShardedBank implements AutoCloseable {
+    private static final int CONNECTIONS_PER_NODE = 4;
+    
+    // Opens its socket on first use; a connection that failed is closed and
+    // its pool slot refilled with a fresh one
+    private static final class Connection {
+        final InetSocketAddress address;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+        
+        void open() throws IOException {
+            if (socket == null) {
+                socket = new Socket(address.getAddress(), address.getPort());
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+        }
+        
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // A cross-node transfer that both nodes have not finished yet; the
+    // flags say which nodes may hold a prepared leg for it
+    private static final class Decision {
+        final String fromNode;
+        final String fromNumber;
+        final String toNode;
+        final String toNumber;
+        volatile boolean debitPrepared;
+        volatile boolean creditPrepared;
+        volatile boolean commit;
+        volatile boolean handedOff;  // the transfer gave up; retryInDoubt owns it
+        
+        Decision(String fromNode, String fromNumber, String toNode, String toNumber) {
+            this.fromNode = fromNode;
+            this.fromNumber = fromNumber;
+            this.toNode = toNode;
+            this.toNumber = toNumber;
+        }
+        
+        // [from node][from account][to node][to account][commit:1]
+        byte[] toRecord() {
+            ByteBuffer out = ByteBuffer.allocate(17 + 3 * (fromNode.length() + fromNumber.length() +
+                                                           toNode.length() + toNumber.length()));
+            BankPersistence.putString(out, fromNode);
+            BankPersistence.putString(out, fromNumber);
+            BankPersistence.putString(out, toNode);
+            BankPersistence.putString(out, toNumber);
+            out.put((byte) (commit ? 1 : 0));
+            return Arrays.copyOf(out.array(), out.position());
+        }
+        
+        // A recovered transfer may have a prepared leg on either node and
+        // belongs to retryInDoubt
+        static Decision fromRecord(byte[] record) {
+            ByteBuffer in = ByteBuffer.wrap(record);
+            Decision decision = new Decision(BankPersistence.getString(in), BankPersistence.getString(in),
+                                             BankPersistence.getString(in), BankPersistence.getString(in));
+            decision.commit = in.get() == 1;
+            decision.debitPrepared = true;
+            decision.creditPrepared = true;
+            decision.handedOff = true;
+            return decision;
+        }
+    }
+    
+    private final ConsistentHashRing ring = new ConsistentHashRing();
+    private final Map<String, BlockingQueue<Connection>> pools = new ConcurrentHashMap<>();
+    private final Map<UUID, Decision> inDoubt = new ConcurrentHashMap<>();
+    private final LongAdder localTransfers = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final TwoPhaseLog decisions; // null when inDoubt lives in memory only
+    
+    public ShardedBank() {
+        this.decisions = null;
+    }
+    
+    // Keeps inDoubt in stateFile and takes over the transfers a previous
+    // coordinator left there
+    public ShardedBank(Path stateFile) throws IOException {
+        this.decisions = new TwoPhaseLog(stateFile);
+        for (Map.Entry<UUID, byte[]> entry : decisions.records().entrySet()) {
+            inDoubt.put(entry.getKey(), Decision.fromRecord(entry.getValue()));
+        }
+    }
+    
+    public void addNode(String nodeId, InetSocketAddress address) throws IOException {
+        BlockingQueue<Connection> pool = new ArrayBlockingQueue<>(CONNECTIONS_PER_NODE);
+        for (int i = 0; i < CONNECTIONS_PER_NODE; i++) {
+            Connection connection = new Connection(address);
+            connection.open();
+            pool.add(connection);
         }
+        pools.put(nodeId, pool);
+        ring.addNode(nodeId);
     }
     
-    @Override
-    public double getOverdraftLimit() {
-        return overdraftLimit;
+    public String nodeFor(String accountNumber) {
+        return ring.nodeFor(accountNumber);
     }
     
-    @Override
-    public double getAvailableCredit() {
-        return balance < 0 ? overdraftLimit + balance : overdraftLimit;
+    public boolean openAccount(byte type, String accountNumber, String holder, double initialBalance, int termMonths) {
+        return call(nodeFor(accountNumber), ShardProtocol.OPEN, ShardProtocol.NO_TRANSACTION, accountNumber, holder,
+                    Money.of(initialBalance), type, termMonths) != Long.MIN_VALUE;
     }
     
-    @Override
-    public boolean isOverdrawn() {
-        return balance < 0;
+    public boolean deposit(String accountNumber, double amount) {
+        return send(nodeFor(accountNumber), ShardProtocol.DEPOSIT, ShardProtocol.NO_TRANSACTION, accountNumber, "", Money.of(amount));
     }
     
-    // TransactionTracking implementation
-    @Override
-    public void addTransaction(String transactionType, double amount, String description) {
-        if (transactionCount < MAX_TRANSACTION_RECORDS) {
-            transactionHistory[transactionCount] = formatTransaction(transactionType, amount, description);
-            transactionCount++;
-        }
+    public boolean withdraw(String accountNumber, double amount) {
+        return send(nodeFor(accountNumber), ShardProtocol.WITHDRAW, ShardProtocol.NO_TRANSACTION, accountNumber, "", Money.of(amount));
     }
     
-    @Override
-    public void displayTransactionHistory() {
-        System.out.println("\n=== Transaction History for Account " + accountNumber + " ===");
-        for (int i = Math.max(0, transactionCount - 12); i < transactionCount; i++) {
-            System.out.println(transactionHistory[i]);
+    // Balance in cents, or Long.MIN_VALUE when the account does not exist
+    public long getBalanceCents(String accountNumber) {
+        return call(nodeFor(accountNumber), ShardProtocol.BALANCE, ShardProtocol.NO_TRANSACTION, accountNumber, "", 0, (byte) 0, 0);
+    }
+    
+    public boolean transfer(String fromNumber, String toNumber, double amount) {
+        long cents = Money.of(amount);
+        String fromNode = nodeFor(fromNumber);
+        String toNode = nodeFor(toNumber);
+        if (fromNode.equals(toNode)) {
+            localTransfers.increment();
+            return send(fromNode, ShardProtocol.TRANSFER, ShardProtocol.NO_TRANSACTION, fromNumber, toNumber, cents);
         }
-        if (transactionCount > 12) {
-            System.out.println("... showing last 12 transactions");
+        
+        UUID transactionId = UUID.randomUUID();
+        Decision decision = prepare(transactionId, fromNode, fromNumber, toNode, toNumber, cents);
+        if (decision == null) {
+            return false;
+        }
+        if (complete(transactionId, decision)) {
+            return decision.commit;
         }
+        decision.handedOff = true;
+        return false;
     }
     
-    @Override
-    public void generateMonthlyStatement() {
-        System.out.println("\n=== Monthly Statement - Money Market Account ===");
-        displayBasicInfo();
-        System.out.println("Transactions this month: " + transactionsThisMonth);
-        displayTransactionHistory();
+    // Runs a cross-node transfer up to its decision and stops, as a
+    // coordinator that crashed right after deciding would; the transfer is
+    // left to retryInDoubt. Used by the recovery demo
+    UUID prepareOnly(String fromNumber, String toNumber, double amount) {
+        UUID transactionId = UUID.randomUUID();
+        Decision decision = prepare(transactionId, nodeFor(fromNumber), fromNumber, nodeFor(toNumber), toNumber,
+                                    Money.of(amount));
+        if (decision == null) {
+            return null;
+        }
+        decision.handedOff = true;
+        return transactionId;
     }
     
-    public void resetMonthlyLimits() {
-        transactionsThisMonth = 0;
-        System.out.println("Monthly transaction limit reset for account " + accountNumber);
+    // Records the transfer, collects both votes and records a commit before
+    // anyone hears of it. Null when the transfer cannot be recorded, before
+    // any node has seen it. A commit that cannot be recorded becomes an
+    // abort, which needs no record: a restart finds the transfer still
+    // recorded as an abort
+    private Decision prepare(UUID transactionId, String fromNode, String fromNumber, String toNode, String toNumber,
+                             long cents) {
+        Decision decision = new Decision(fromNode, fromNumber, toNode, toNumber);
+        if (!record(transactionId, decision)) {
+            return null;
+        }
+        inDoubt.put(transactionId, decision);
+        Boolean debitVote = attempt(fromNode, ShardProtocol.PREPARE_DEBIT, transactionId, fromNumber, cents);
+        decision.debitPrepared = debitVote != Boolean.FALSE;
+        if (debitVote == Boolean.TRUE) {
+            Boolean creditVote = attempt(toNode, ShardProtocol.PREPARE_CREDIT, transactionId, toNumber, cents);
+            decision.creditPrepared = creditVote != Boolean.FALSE;
+            decision.commit = creditVote == Boolean.TRUE;
+            if (decision.commit && !record(transactionId, decision)) {
+                decision.commit = false;
+            }
+        }
+        return decision;
     }
-}
-
-// Bank Management System
-class BankManagementSystem {
-    private BankAccount[] accounts;
-    private int accountCount;
-    private static final int MAX_ACCOUNTS = 1000;
     
-    public BankManagementSystem() {
-        accounts = new BankAccount[MAX_ACCOUNTS];
-        accountCount = 0;
+    // Sends the recorded decision to both nodes. A commit goes to the credit
+    // first, and becomes an abort if the target refuses it. Returns true once
+    // both nodes have applied the decision and the record is gone
+    private boolean complete(UUID transactionId, Decision decision) {
+        if (decision.commit) {
+            Boolean credited = attempt(decision.toNode, ShardProtocol.COMMIT, transactionId, decision.toNumber, 0);
+            if (credited == null) {
+                return false;
+            }
+            decision.commit = credited;
+        }
+        byte op = decision.commit ? ShardProtocol.COMMIT : ShardProtocol.ABORT;
+        if (!decision.commit && decision.creditPrepared &&
+            attempt(decision.toNode, op, transactionId, decision.toNumber, 0) != Boolean.TRUE) {
+            return false;
+        }
+        if (decision.debitPrepared &&
+            attempt(decision.fromNode, op, transactionId, decision.fromNumber, 0) != Boolean.TRUE) {
+            return false;
+        }
+        forget(transactionId);
+        inDoubt.remove(transactionId);
+        (decision.commit ? commits : aborts).increment();
+        return true;
     }
     
-    public void addAccount(BankAccount account) {
-        if (accountCount < MAX_ACCOUNTS) {
-            accounts[accountCount++] = account;
-            System.out.println("Account added to bank system: " + account.getAccountNumber());
-        } else {
-            System.out.println("Maximum account limit reached");
+    private boolean record(UUID transactionId, Decision decision) {
+        if (decisions == null) {
+            return true;
+        }
+        try {
+            decisions.put(transactionId, decision.toRecord());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Cannot record transfer " + transactionId + ": " + e.getMessage());
+            return false;
         }
     }
     
-    public BankAccount findAccount(String accountNumber) {
-        for (int i = 0; i < accountCount; i++) {
-            if (accounts[i].getAccountNumber().equals(accountNumber)) {
-                return accounts[i];
+    // A record that cannot be removed is finished again after a restart,
+    // which the nodes treat as a repeat
+    private void forget(UUID transactionId) {
+        if (decisions == null) {
+            return;
+        }
+        try {
+            decisions.remove(transactionId);
+        } catch (IOException e) {
+            System.out.println("Cannot drop transfer " + transactionId + ": " + e.getMessage());
+        }
+    }
+    
+    // Drives transfers whose coordinator gave up (a node was unreachable or
+    // refused a refund) to the end; returns how many are still outstanding
+    public synchronized int retryInDoubt() {
+        int outstanding = 0;
+        for (Map.Entry<UUID, Decision> entry : inDoubt.entrySet()) {
+            Decision decision = entry.getValue();
+            if (decision.handedOff && !complete(entry.getKey(), decision)) {
+                outstanding++;
             }
         }
-        return null;
+        return outstanding;
     }
     
-    public void displayAllAccounts() {
-        System.out.println("\n=== All Bank Accounts ===");
-        for (int i = 0; i < accountCount; i++) {
-            accounts[i].displayAccountDetails();
+    // Transfers not finished yet, including ones still in progress
+    public int getInDoubtCount() {
+        return inDoubt.size();
+    }
+    
+    public long getTotalBalanceCents() {
+        long total = 0;
+        for (String nodeId : pools.keySet()) {
+            total += call(nodeId, ShardProtocol.TOTAL, ShardProtocol.NO_TRANSACTION, "", "", 0, (byte) 0, 0);
         }
+        return total;
     }
     
-    public void calculateAllInterests() {
-        System.out.println("\n=== Calculating Interest for All Eligible Accounts ===");
-        for (int i = 0; i < accountCount; i++) {
-            if (accounts[i] instanceof InterestEarning) {
-                System.out.println("Calculating interest for account: " + 
-                                 accounts[i].getAccountNumber());
-                ((InterestEarning) accounts[i]).compoundInterest();
+    public long getAccountCount(String nodeId) {
+        return call(nodeId, ShardProtocol.COUNT, ShardProtocol.NO_TRANSACTION, "", "", 0, (byte) 0, 0);
+    }
+    
+    public long getLocalTransferCount() { return localTransfers.sum(); }
+    public long getCommitCount() { return commits.sum(); }
+    public long getAbortCount() { return aborts.sum(); }
+    
+    @Override
+    public void close() {
+        for (BlockingQueue<Connection> pool : pools.values()) {
+            for (Connection connection : pool) {
+                connection.close();
+            }
+        }
+        if (decisions != null) {
+            try {
+                decisions.close();
+            } catch (IOException e) {
+                System.out.println("Error closing coordinator state: " + e.getMessage());
             }
         }
     }
     
-    public void generateBankReport() {
-        System.out.println("\n=== Bank Management Report ===");
-        System.out.println("Total Accounts: " + accountCount);
-        System.out.println("System Total Accounts Ever Created: " + BankAccount.getTotalAccounts());
-        
-        double totalBalance = 0;
-        int savingsCount = 0, checkingCount = 0, cdCount = 0, mmCount = 0;
-        
-        for (int i = 0; i < accountCount; i++) {
-            totalBalance += accounts[i].getBalance();
-            String accountType = accounts[i].accountType;
-            
-            switch (accountType) {
-                case "Savings": savingsCount++; break;
-                case "Checking": checkingCount++; break;
-                case "Certificate of Deposit": cdCount++; break;
-                case "Money Market": mmCount++; break;
-            }
+    private boolean send(String nodeId, byte op, UUID transactionId, String account, String other, long cents) {
+        return call(nodeId, op, transactionId, account, other, cents, (byte) 0, 0) != Long.MIN_VALUE;
+    }
+    
+    // Like send, but null when the node could not be reached, in which case
+    // the request may or may not have been applied
+    private Boolean attempt(String nodeId, byte op, UUID transactionId, String account, long cents) {
+        try {
+            return send(nodeId, op, transactionId, account, "", cents);
+        } catch (UncheckedIOException e) {
+            return null;
         }
-        
-        System.out.println("Total Bank Balance: $" + String.format("%.2f", totalBalance));
-        System.out.println("Savings Accounts: " + savingsCount);
-        System.out.println("Checking Accounts: " + checkingCount);
-        System.out.println("Certificate of Deposits: " + cdCount);
-        System.out.println("Money Market Accounts: " + mmCount);
     }
     
-    public void processMonthlyOperations() {
-        System.out.println("\n=== Processing Monthly Operations ===");
-        
-        for (int i = 0; i < accountCount; i++) {
-            BankAccount account = accounts[i];
-            
-            // Calculate interest for eligible accounts
-            if (account instanceof InterestEarning) {
-                ((InterestEarning) account).compoundInterest();
-            }
-            
-            // Charge monthly fees for checking accounts
-            if (account instanceof CheckingAccount) {
-                ((CheckingAccount) account).chargeMonthlyFee();
-            }
-            
-            // Reset monthly limits
-            if (account instanceof SavingsAccount) {
-                ((SavingsAccount) account).resetMonthlyLimits();
-            }
-            
-            if (account instanceof MoneyMarketAccount) {
-                ((MoneyMarketAccount) account).resetMonthlyLimits();
+    private long call(String nodeId, byte op, UUID transactionId, String account, String other, long cents,
+                      byte type, int termMonths) {
+        BlockingQueue<Connection> pool = pools.get(nodeId);
+        Connection connection;
+        try {
+            connection = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for node " + nodeId, e);
+        }
+        boolean healthy = false;
+        try {
+            connection.open();
+            DataOutputStream out = connection.out;
+            out.writeByte(op);
+            out.writeLong(transactionId.getMostSignificantBits());
+            out.writeLong(transactionId.getLeastSignificantBits());
+            out.writeUTF(account);
+            out.writeUTF(other);
+            out.writeLong(cents);
+            if (op == ShardProtocol.OPEN) {
+                out.writeByte(type);
+                out.writeInt(termMonths);
             }
-            
-            // Check CD maturity
-            if (account instanceof CertificateOfDeposit) {
-                ((CertificateOfDeposit) account).checkMaturity();
+            out.flush();
+            boolean ok = connection.in.readBoolean();
+            long value = connection.in.readLong();
+            healthy = true;
+            return ok ? value : Long.MIN_VALUE;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Request to node " + nodeId + " failed", e);
+        } finally {
+            // The stream state of a failed connection is unknown, so it is
+            // never handed out again
+            if (healthy) {
+                pool.add(connection);
+            } else {
+                connection.close();
+                pool.add(new Connection(connection.address));
             }
         }
-        
-        System.out.println("Monthly operations completed");
     }
 }
 
@@ -995,6 +6454,60 @@ public class Q12_BankAccountSystem {
         System.out.println("Closing account: " + cd2.getAccountNumber());
         cd2.closeAccount();
         
+        BankAccount found = bank.findAccount("MM002");
+        System.out.println("Lookup MM002: " + (found != null ? found.getAccountHolderName() : "not found"));
+        bank.removeAccount(cd2.getAccountNumber());
+        System.out.println("Accounts remaining in bank system: " + bank.getAccountCount());
+        
+        // 12. Concurrent transactions
+        System.out.println("\n12. Concurrent Transaction Stress Test:");
+        runConcurrentStressTest(8, 2000);
+        
+        // 13. Money representation benchmark
+        System.out.println("\n13. Money Representation Benchmark:");
+        runMoneyBenchmark(2_000_000);
+        
+        // 14. Bulk interest accrual
+        System.out.println("\n14. Bulk Interest Accrual:");
+        runBulkInterestBenchmark(200_000);
+        
+        // 15. Persistence and recovery
+        System.out.println("\n15. Snapshot + Write-Ahead Log Recovery:");
+        runPersistenceDemo();
+        
+        // 16. Rolling-window withdrawal limits
+        System.out.println("\n16. Rolling-Window Withdrawal Limits:");
+        runWithdrawalLimitDemo(8, 200);
+        
+        // 17. Streaming statements
+        System.out.println("\n17. Streaming Statement Generation:");
+        runStatementDemo(50_000, 200_000);
+        
+        // 18. Batch ingestion
+        System.out.println("\n18. Idempotent Batch Ingestion:");
+        runIngestionDemo(10_000, 1_000_000);
+        
+        // 19. Optimistic balance reads
+        System.out.println("\n19. Optimistic Balance Reads Under Load:");
+        runBalanceReadBenchmark(2, 4, 300);
+        
+        // 20. CD maturity timing wheel
+        System.out.println("\n20. CD Maturity Timing Wheel:");
+        runMaturitySchedulerDemo(100_000);
+        
+        // 21. Velocity checks
+        System.out.println("\n21. Withdrawal Velocity Checks:");
+        runVelocityBenchmark(1_000_000, 5_000_000);
+        
+        // 22. Sharded bank
+        System.out.println("\n22. Sharded Bank with Two-Phase Commit:");
+        runShardedBankDemo(3, 3000, 8, 4000);
+        runShardedRecoveryDemo(200);
+        
+        // 23. Read replica fed by change data capture
+        System.out.println("\n23. Read Replica and Change Feed:");
+        runReadReplicaDemo(2000, 4, 100_000, 1 << 18);
+        
         // Final system summary
         System.out.println("\n=== Bank Account System Summary ===");
         System.out.println("✓ Abstract classes provide common account structure");
@@ -1007,4 +6520,928 @@ public class Q12_BankAccountSystem {
         System.out.println("✓ Interface default methods reduce code duplication");
         System.out.println("✓ System demonstrates comprehensive banking operations");
     }
+    
+    // Compares the old double + String.format path against long cents +
+    // Money.appendTo on a deposit/interest/format loop. Each variant is run
+    // once to warm up and once measured; allocation comes from the
+    // HotSpot per-thread allocation counter when available
+    private static void runMoneyBenchmark(int iterations) {
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            
+            long allocatedBefore = threadAllocatedBytes();
+            long start = System.nanoTime();
+            double balance = 1000.0;
+            int formattedLength = 0;
+            for (int i = 0; i < iterations; i++) {
+                balance += 12.34;
+                balance += (balance * 2.5 / 100) / 12;
+                if ((i & 1023) == 0) {
+                    balance = 1000.0;
+                }
+                formattedLength += String.format("%.2f", balance).length();
+            }
+            long doubleNanos = System.nanoTime() - start;
+            long doubleBytes = allocatedBefore < 0 ? -1 : threadAllocatedBytes() - allocatedBefore;
+            
+            allocatedBefore = threadAllocatedBytes();
+            start = System.nanoTime();
+            long balanceCents = 100_000;
+            StringBuilder buffer = new StringBuilder(32);
+            for (int i = 0; i < iterations; i++) {
+                balanceCents += 1_234;
+                balanceCents += Money.monthlyInterest(balanceCents, 250);
+                if ((i & 1023) == 0) {
+                    balanceCents = 100_000;
+                }
+                buffer.setLength(0);
+                formattedLength += Money.appendTo(buffer, balanceCents).length();
+            }
+            long centsNanos = System.nanoTime() - start;
+            long centsBytes = allocatedBefore < 0 ? -1 : threadAllocatedBytes() - allocatedBefore;
+            
+            if (report) {
+                System.out.println("Iterations: " + iterations + " (checksum " + formattedLength + ")");
+                printBenchmarkLine("double + String.format", doubleNanos, doubleBytes, iterations);
+                printBenchmarkLine("long cents + Money", centsNanos, centsBytes, iterations);
+            }
+        }
+    }
+    
+    // Shows a window expiring on its own, then hammers one money market
+    // account from several threads: exactly the limit must get through
+    private static void runWithdrawalLimitDemo(int threadCount, int attemptsPerThread) {
+        RollingWindowLimiter limiter = new RollingWindowLimiter(6, RollingWindowLimiter.THIRTY_DAYS_MILLIS);
+        long day = 24L * 60 * 60 * 1000;
+        int accepted = 0;
+        for (int i = 0; i < 7; i++) {
+            if (limiter.tryAcquire(i * day)) {
+                accepted++;
+            }
+        }
+        System.out.println("Day 0-6: " + accepted + " of 7 withdrawals accepted (limit 6)");
+        System.out.println("Day 30: first withdrawal expired, accepted again: " +
+                         (limiter.tryAcquire(30 * day) ? "Yes" : "No"));
+        
+        MoneyMarketAccount account = new MoneyMarketAccount("LIM-MM1", "Limit Holder", 50000.0);
+        account.attachEventSink(new NoOpEventSink());
+        TransactionEngine engine = new TransactionEngine();
+        AtomicInteger withdrawals = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int t = 0; t < threadCount; t++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < attemptsPerThread; i++) {
+                        if (engine.withdraw(account, 1)) {
+                            withdrawals.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Concurrent attempts: " + (threadCount * attemptsPerThread) +
+                         ", accepted: " + withdrawals.get() + ", recorded in window: " +
+                         account.getRecentTransactions());
+        System.out.println("Limit held: " + (withdrawals.get() == 10 ? "Yes" : "NO"));
+    }
+    
+    // Runs writers against the primary while a reporting thread polls the
+    // replica, then checks that the caught-up replica matches the primary
+    private static void runReadReplicaDemo(int accountTotal, int writerCount, int opsPerWriter, int feedCapacity) {
+        BankManagementSystem bank = new BankManagementSystem();
+        bank.setEventSink(new NoOpEventSink());
+        List<BankAccount> accounts = new ArrayList<>();
+        for (int i = 0; i < accountTotal; i++) {
+            BankAccount account = i % 2 == 0
+                ? new CheckingAccount(String.format("RR%05d", i), "Replica Holder", 50_000)
+                : new SavingsAccount(String.format("RR%05d", i), "Replica Holder", 50_000);
+            bank.addAccount(account);
+            accounts.add(account);
+        }
+        ReadReplica replica = bank.enableReadReplica(feedCapacity);
+        TransactionEngine engine = new TransactionEngine();
+        
+        AtomicInteger reports = new AtomicInteger();
+        AtomicInteger writersLeft = new AtomicInteger(writerCount);
+        Thread reporter = new Thread(() -> {
+            while (writersLeft.get() > 0) {
+                replica.getTotalBalanceCents();
+                replica.getCount("Checking");
+                reports.incrementAndGet();
+                Thread.yield();
+            }
+        }, "replica-reporter");
+        reporter.start();
+        
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(writerCount);
+        for (int w = 0; w < writerCount; w++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerWriter; i++) {
+                    BankAccount account = accounts.get(random.nextInt(accountTotal));
+                    if (random.nextBoolean()) {
+                        engine.deposit(account, 1 + random.nextInt(100));
+                    } else if (account instanceof CheckingAccount) {
+                        engine.withdraw(account, 1 + random.nextInt(100));
+                    }
+                }
+                writersLeft.decrementAndGet();
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.MINUTES);
+            reporter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        bank.closeAccount("RR00000");
+        bank.removeAccount("RR00001");
+        long lagAtEnd = replica.getLagChanges();
+        boolean caughtUp = replica.awaitCaughtUp(10_000);
+        
+        int mismatches = 0;
+        for (BankAccount account : bank.getAccounts()) {
+            ReadReplica.Row row = replica.getRow(account.getAccountNumber());
+            if (row == null || row.balanceCents != account.getBalanceCents() || row.active != account.isActive()) {
+                mismatches++;
+            }
+        }
+        System.out.println("Writes: " + String.format("%.0f", writerCount * opsPerWriter / seconds) +
+                         " ops/sec while " + reports.get() + " replica reports ran");
+        System.out.println("Feed capacity: " + feedCapacity + ", changes applied: " + replica.getAppliedCount() +
+                         ", feed overflows: " + replica.getOverflowCount() + " (" +
+                         String.format("%.2f", replica.getOverflowRatio() * 100) + "%, " +
+                         (replica.isFeedHealthy() ? "healthy" : "UNDERSIZED") + "), accounts resynced: " +
+                         replica.getResyncCount());
+        System.out.println("Replica lag: mean " + replica.getMeanLagNanos() / 1000 + " us, max " +
+                         replica.getMaxLagNanos() / 1000 + " us, " + lagAtEnd + " changes behind when writers stopped");
+        System.out.println("Lag alerts over " + ReadReplica.LAG_ALERT_NANOS / 1_000_000 + " ms: " +
+                         replica.getLagAlertCount());
+        System.out.println("Caught up: " + (caughtUp ? "Yes" : "NO") + ", accounts differing from primary: " + mismatches);
+        System.out.println("Totals match: " + (replica.getTotalBalanceCents() == bank.getTotalBalanceCents() &&
+                         replica.getAccountCount() == bank.getAccountCount() ? "Yes" : "NO"));
+        bank.generateBankReport();
+        replica.close();
+    }
+    
+    // Starts several nodes on localhost, spreads accounts over them with the
+    // hash ring and runs concurrent transfers, most of them cross-shard
+    private static void runShardedBankDemo(int nodeCount, int accountTotal, int threadCount, int transfersPerThread) {
+        List<BankNode> nodes = new ArrayList<>();
+        try (ShardedBank bank = new ShardedBank()) {
+            for (int i = 0; i < nodeCount; i++) {
+                BankNode node = new BankNode("node-" + i);
+                node.setEventSink(new NoOpEventSink());
+                nodes.add(node);
+                bank.addNode(node.getNodeId(), node.getAddress());
+            }
+            for (int i = 0; i < accountTotal; i++) {
+                bank.openAccount(ShardProtocol.CHECKING, String.format("SH%05d", i), "Shard Holder", 100_000, 0);
+            }
+            StringBuilder spread = new StringBuilder("Accounts per node:");
+            for (BankNode node : nodes) {
+                spread.append(' ').append(node.getNodeId()).append('=').append(bank.getAccountCount(node.getNodeId()));
+            }
+            System.out.println(spread);
+            
+            long before = bank.getTotalBalanceCents();
+            AtomicInteger succeeded = new AtomicInteger();
+            long start = System.nanoTime();
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            for (int t = 0; t < threadCount; t++) {
+                executor.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < transfersPerThread; i++) {
+                        String from = String.format("SH%05d", random.nextInt(accountTotal));
+                        // A few transfers target missing accounts to exercise aborts
+                        String to = String.format("SH%05d", random.nextInt(accountTotal + accountTotal / 50));
+                        if (!from.equals(to) && bank.transfer(from, to, 1 + random.nextInt(500))) {
+                            succeeded.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(2, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            
+            System.out.println("Transfers: " + succeeded.get() + " succeeded, " + bank.getLocalTransferCount() +
+                             " single-node, " + bank.getCommitCount() + " committed / " + bank.getAbortCount() +
+                             " aborted across nodes, " + bank.retryInDoubt() + " in doubt");
+            System.out.println("Throughput: " + String.format("%.0f", threadCount * transfersPerThread / seconds) +
+                             " transfers/sec over localhost sockets");
+            System.out.println("Total balance conserved: " + (before == bank.getTotalBalanceCents() ? "Yes" : "NO"));
+            
+            ConsistentHashRing grown = new ConsistentHashRing();
+            for (int i = 0; i <= nodeCount; i++) {
+                grown.addNode("node-" + i);
+            }
+            int moved = 0;
+            for (int i = 0; i < accountTotal; i++) {
+                String number = String.format("SH%05d", i);
+                if (!grown.nodeFor(number).equals(bank.nodeFor(number))) {
+                    moved++;
+                }
+            }
+            System.out.println("Adding node-" + nodeCount + " would move " + moved + " of " + accountTotal +
+                             " accounts (" + String.format("%.0f", 100.0 * moved / accountTotal) + "%)");
+        } catch (IOException e) {
+            System.out.println("Sharded bank demo failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (BankNode node : nodes) {
+                node.close();
+            }
+        }
+    }
+    
+    // Runs transfers between two nodes and a coordinator kept on disk, leaves
+    // two transfers decided but unfinished and restarts everything from its
+    // files. Then expires the credit of one more unfinished transfer, so the
+    // commit that follows is refused and turns into an abort
+    private static void runShardedRecoveryDemo(int transferTotal) {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("bank-2pc");
+        } catch (IOException e) {
+            System.out.println("Cannot create two-phase commit directory: " + e.getMessage());
+            return;
+        }
+        try {
+            Path stateFile = directory.resolve("coordinator.log");
+            String from = "2PC-A";
+            String to = "2PC-B";
+            long before;
+            try {
+                BankNode[] nodes = startDurableNodes(directory);
+                try (ShardedBank bank = new ShardedBank(stateFile)) {
+                    addNodes(bank, nodes);
+                    // Node ids decide placement; find a second account on the other node
+                    int suffix = 0;
+                    while (bank.nodeFor(to).equals(bank.nodeFor(from))) {
+                        to = "2PC-B" + ++suffix;
+                    }
+                    bank.openAccount(ShardProtocol.CHECKING, from, "Two Phase Holder", 5_000, 0);
+                    bank.openAccount(ShardProtocol.SAVINGS, to, "Two Phase Holder", 5_000, 0);
+                    for (int i = 0; i < transferTotal; i++) {
+                        bank.transfer(i % 2 == 0 ? from : to, i % 2 == 0 ? to : from, 1 + i % 7);
+                    }
+                    before = bank.getTotalBalanceCents();
+                    bank.prepareOnly(from, to, 100);
+                    bank.prepareOnly(from, to, 50);
+                } finally {
+                    for (BankNode node : nodes) {
+                        node.close();
+                    }
+                }
+                
+                nodes = startDurableNodes(directory);
+                try (ShardedBank bank = new ShardedBank(stateFile)) {
+                    addNodes(bank, nodes);
+                    long fromBefore = bank.getBalanceCents(from);
+                    System.out.println("After restart: " + (nodes[0].getPreparedCount() + nodes[1].getPreparedCount()) +
+                                     " prepared legs on the nodes, " + bank.getInDoubtCount() +
+                                     " transfers in doubt at the coordinator");
+                    int outstanding = bank.retryInDoubt();
+                    long credited = bank.getBalanceCents(to);
+                    System.out.println("Retried: " + outstanding + " outstanding, total conserved: " +
+                                     (before == bank.getTotalBalanceCents() ? "Yes" : "NO") + ", credits applied: " +
+                                     (bank.getCommitCount() == 2 && bank.getBalanceCents(from) == fromBefore ? "Yes" : "NO"));
+                    
+                    bank.prepareOnly(from, to, 25);
+                    long debited = bank.getBalanceCents(from);
+                    BankNode creditNode = nodes[0].getNodeId().equals(bank.nodeFor(to)) ? nodes[0] : nodes[1];
+                    int expired = creditNode.expirePreparedCredits(System.currentTimeMillis() +
+                                                                   BankNode.PREPARED_TIMEOUT_MILLIS);
+                    outstanding = bank.retryInDoubt();
+                    System.out.println("Credit expired after " + BankNode.PREPARED_TIMEOUT_MILLIS / 1000 + " s: " +
+                                     expired + ", transfer aborted and debit of $" +
+                                     Money.format(fromBefore - debited) + " refunded: " +
+                                     (outstanding == 0 && bank.getAbortCount() == 1 &&
+                                      bank.getBalanceCents(from) == fromBefore &&
+                                      bank.getBalanceCents(to) == credited ? "Yes" : "NO"));
+                } finally {
+                    for (BankNode node : nodes) {
+                        node.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Two-phase commit recovery demo failed: " + e.getMessage());
+            }
+        } finally {
+            deleteDirectory(directory, "two-phase commit files");
+        }
+    }
+    
+    private static BankNode[] startDurableNodes(Path directory) throws IOException {
+        BankNode[] nodes = new BankNode[2];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new BankNode("node-" + i, directory.resolve("node-" + i));
+            nodes[i].setEventSink(new NoOpEventSink());
+        }
+        return nodes;
+    }
+    
+    private static void addNodes(ShardedBank bank, BankNode[] nodes) throws IOException {
+        for (BankNode node : nodes) {
+            bank.addNode(node.getNodeId(), node.getAddress());
+        }
+    }
+    
+    // Shows a burst being flagged on a real account, then measures check
+    // latency against a sketch tracking a million accounts. The simulated
+    // clock moves 6 ms per check, about 100k withdrawals per 10-minute window
+    private static void runVelocityBenchmark(int accountTotal, int checkTotal) {
+        BankManagementSystem bank = new BankManagementSystem();
+        bank.setVelocityMonitor(new VelocityMonitor(10 * 60_000, 5, 1 << 14, 10, 500_000,
+                                                    VelocityMonitor.Action.DECLINE));
+        bank.setEventSink(new NoOpEventSink());
+        int declinedAt = -1;
+        CheckingAccount account = new CheckingAccount("VEL-CHK1", "Velocity Holder", 10_000);
+        bank.addAccount(account);
+        for (int i = 1; i <= 15 && declinedAt < 0; i++) {
+            if (!account.withdraw(20)) {
+                declinedAt = i;
+            }
+        }
+        System.out.println("Burst of $20 withdrawals declined at #" + declinedAt + " (limit 10 per 10 minutes)");
+        
+        String[] numbers = new String[accountTotal];
+        for (int i = 0; i < accountTotal; i++) {
+            numbers[i] = String.format("V%07d", i);
+        }
+        VelocityMonitor monitor = new VelocityMonitor(10 * 60_000, 5, 1 << 16, 10, 500_000,
+                                                      VelocityMonitor.Action.FLAG);
+        int batch = 1000;
+        long[] batchNanos = new long[checkTotal / batch];
+        long clock = 0;
+        for (int round = 0; round < 2; round++) {
+            long alertsBefore = monitor.getAlertCount();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int b = 0; b < batchNanos.length; b++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < batch; i++) {
+                    monitor.recordAndCheck(numbers[random.nextInt(accountTotal)], 2_000 + i, clock);
+                    clock += 6;
+                }
+                batchNanos[b] = System.nanoTime() - start;
+            }
+            if (round == 1) {
+                long total = 0;
+                for (long nanos : batchNanos) {
+                    total += nanos;
+                }
+                Arrays.sort(batchNanos);
+                System.out.println("Tracked accounts: " + accountTotal + ", checks: " + checkTotal);
+                System.out.println("Check latency: mean " + String.format("%.0f", total / (double) checkTotal) +
+                                 " ns, p99 batch " + batchNanos[batchNanos.length * 99 / 100] / batch + " ns/check");
+                System.out.println("False alarms on normal traffic: " + (monitor.getAlertCount() - alertsBefore));
+            }
+        }
+    }
+    
+    // Schedules CDs with five different terms, cancels every tenth one (as
+    // if closed early) and advances a simulated clock past each term
+    private static void runMaturitySchedulerDemo(int cdTotal) {
+        int[] terms = {6, 12, 24, 36, 60};
+        long start = System.currentTimeMillis();
+        MaturityScheduler wheel = new MaturityScheduler(start);
+        AccountEventSink quiet = new NoOpEventSink();
+        long scheduleStart = System.nanoTime();
+        for (int i = 0; i < cdTotal; i++) {
+            CertificateOfDeposit cd = new CertificateOfDeposit(String.format("TW%06d", i), "Wheel Holder",
+                                                               5000, terms[i % terms.length]);
+            cd.attachEventSink(quiet);
+            wheel.schedule(cd);
+            if (i % 10 == 9) {
+                wheel.cancel(cd.getAccountNumber());
+            }
+        }
+        double scheduleMillis = (System.nanoTime() - scheduleStart) / 1_000_000.0;
+        System.out.println("Scheduled " + cdTotal + " CDs (" + (cdTotal / 10) + " cancelled) in " +
+                         String.format("%.1f", scheduleMillis) + " ms");
+        
+        int matured = 0;
+        long advanceNanos = 0;
+        for (int term : terms) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(start);
+            cal.add(Calendar.MONTH, term);
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            long advanceStart = System.nanoTime();
+            matured += wheel.advanceTo(cal.getTimeInMillis());
+            advanceNanos += System.nanoTime() - advanceStart;
+            System.out.println("After " + term + " months: " + matured + " matured, " +
+                             wheel.getPendingCount() + " pending");
+        }
+        System.out.println("Clock advanced 5 years in " + String.format("%.1f", advanceNanos / 1_000_000.0) +
+                         " ms without scanning the CDs");
+        
+        // Nothing due: the wheel jumps between occupied slots instead of
+        // stepping through every minute
+        MaturityScheduler idle = new MaturityScheduler(start);
+        idle.schedule(new CertificateOfDeposit("TW-IDLE", "Wheel Holder", 5000, 120));
+        Calendar fiveYears = Calendar.getInstance();
+        fiveYears.setTimeInMillis(start);
+        fiveYears.add(Calendar.YEAR, 5);
+        long idleStart = System.nanoTime();
+        idle.advanceTo(fiveYears.getTimeInMillis());
+        System.out.println("Wheel with nothing due advanced 5 years in " +
+                         String.format("%.3f", (System.nanoTime() - idleStart) / 1_000_000.0) + " ms, " +
+                         idle.getPendingCount() + " pending");
+    }
+    
+    // Writers move money between a small set of accounts while readers poll
+    // available credit, first through the account's operation lock and then
+    // with optimistic reads; reports both write and read rates
+    private static void runBalanceReadBenchmark(int writerCount, int readerCount, long millis) {
+        CheckingAccount[] accounts = new CheckingAccount[64];
+        AccountEventSink quiet = new NoOpEventSink();
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new CheckingAccount(String.format("RD%03d", i), "Read Holder", 100_000);
+            accounts[i].attachEventSink(quiet);
+        }
+        TransactionEngine engine = new TransactionEngine();
+        for (int round = 0; round < 2; round++) {
+            boolean optimistic = round == 1;
+            LongAdder writes = new LongAdder();
+            LongAdder reads = new LongAdder();
+            AtomicInteger stop = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(writerCount + readerCount);
+            for (int w = 0; w < writerCount; w++) {
+                executor.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (stop.get() == 0) {
+                        CheckingAccount account = accounts[random.nextInt(accounts.length)];
+                        if (random.nextBoolean()) {
+                            engine.deposit(account, 5);
+                        } else {
+                            engine.withdraw(account, 5);
+                        }
+                        writes.increment();
+                    }
+                });
+            }
+            for (int r = 0; r < readerCount; r++) {
+                executor.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (stop.get() == 0) {
+                        CheckingAccount account = accounts[random.nextInt(accounts.length)];
+                        if (optimistic) {
+                            account.getAvailableCredit();
+                        } else {
+                            engine.execute(account, account::getAvailableCredit);
+                        }
+                        reads.increment();
+                    }
+                });
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stop.set(1);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            double seconds = millis / 1000.0;
+            System.out.println((optimistic ? "Optimistic reads: " : "Locked reads:     ") +
+                             String.format("%,.0f", writes.sum() / seconds) + " writes/sec, " +
+                             String.format("%,.0f", reads.sum() / seconds) + " reads/sec");
+        }
+    }
+    
+    // Feeds a command stream with repeated request ids and unknown accounts
+    // through the pipeline, checks the books against the accepted commands,
+    // then re-sends the whole stream to show nothing is applied twice
+    private static void runIngestionDemo(int accountTotal, int commandTotal) {
+        BankManagementSystem bank = new BankManagementSystem();
+        bank.setEventSink(new NoOpEventSink());
+        for (int i = 0; i < accountTotal; i++) {
+            bank.addAccount(new CheckingAccount(String.format("ING%05d", i), "Ingest Holder", 5000));
+        }
+        
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<TransactionCommand> commands = new ArrayList<>(commandTotal);
+        for (int i = 0; i < commandTotal; i++) {
+            // Roughly 5% of commands repeat an earlier request id (upstream retries)
+            String requestId = "REQ" + (i > 0 && random.nextInt(20) == 0 ? random.nextInt(i) : i);
+            int target = random.nextInt(accountTotal + accountTotal / 100);
+            String accountNumber = String.format("ING%05d", target);
+            commands.add(random.nextInt(3) == 0
+                ? TransactionCommand.withdraw(requestId, accountNumber, 1 + random.nextInt(20))
+                : TransactionCommand.deposit(requestId, accountNumber, 1 + random.nextInt(50)));
+        }
+        
+        long before = bank.getTotalBalanceCents();
+        TransactionEngine engine = new TransactionEngine();
+        try (IngestionPipeline pipeline = new IngestionPipeline(bank, engine)) {
+            IngestionReport first = pipeline.ingest(commands.iterator());
+            boolean reconciled = before + first.getNetCents() == bank.getTotalBalanceCents();
+            IngestionReport replay = pipeline.ingest(commands.iterator());
+            
+            System.out.println("Commands: " + commandTotal + ", accepted: " + first.getAccepted() +
+                             ", rejected: " + first.getRejected() + ", duplicates: " + first.getDuplicates());
+            System.out.println("Throughput: " + String.format("%.0f", first.getCommandsPerSecond()) +
+                             " commands/sec");
+            System.out.println("Books reconciled: " + (reconciled ? "Yes" : "NO"));
+            // Committed ids are skipped; only commands rejected the first
+            // time are tried again
+            System.out.println("Re-sent stream: duplicates " + replay.getDuplicates() + ", earlier rejects retried " +
+                             (replay.getAccepted() + replay.getRejected()) + " (accepted " + replay.getAccepted() + ")");
+            System.out.println("Nothing applied twice: " +
+                             (replay.getAccepted() + replay.getRejected() <= first.getRejected() ? "Yes" : "NO"));
+            runRacingIngestion(bank, engine, accountTotal, commandTotal / 10);
+            runDurableIngestion(bank, pipeline, accountTotal, commandTotal / 10);
+        }
+    }
+    
+    // Two pipelines ingest the same fresh deposit stream at once; every
+    // request id must move money exactly once between them
+    private static void runRacingIngestion(BankManagementSystem bank, TransactionEngine engine,
+                                           int accountTotal, int commandTotal) {
+        List<TransactionCommand> commands = new ArrayList<>(commandTotal);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long expected = 0;
+        for (int i = 0; i < commandTotal; i++) {
+            TransactionCommand command = TransactionCommand.deposit(
+                "RACE" + i, String.format("ING%05d", random.nextInt(accountTotal)), 1 + random.nextInt(50));
+            commands.add(command);
+            expected += command.amountCents;
+        }
+        long before = bank.getTotalBalanceCents();
+        IngestionReport[] reports = new IngestionReport[2];
+        try (IngestionPipeline left = new IngestionPipeline(bank, engine);
+             IngestionPipeline right = new IngestionPipeline(bank, engine)) {
+            Thread other = new Thread(() -> reports[1] = right.ingest(commands.iterator()), "racing-ingest");
+            other.start();
+            reports[0] = left.ingest(commands.iterator());
+            other.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        System.out.println("Two pipelines, one stream: accepted " + reports[0].getAccepted() + " + " +
+                         reports[1].getAccepted() + " of " + commandTotal + ", each applied once: " +
+                         (reports[0].getAccepted() + reports[1].getAccepted() == commandTotal &&
+                          bank.getTotalBalanceCents() - before == expected ? "Yes" : "NO"));
+    }
+    
+    // Same pipeline with the write-ahead log on: each group waits for its
+    // records once, after the operation lock, and recovery knows every id
+    private static void runDurableIngestion(BankManagementSystem bank, IngestionPipeline pipeline,
+                                            int accountTotal, int commandTotal) {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("bank-ingest");
+        } catch (IOException e) {
+            System.out.println("Cannot create persistence directory: " + e.getMessage());
+            return;
+        }
+        try {
+            List<TransactionCommand> commands = new ArrayList<>(commandTotal);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < commandTotal; i++) {
+                commands.add(TransactionCommand.deposit("DUR" + i, String.format("ING%05d", random.nextInt(accountTotal)),
+                                                        1 + random.nextInt(50)));
+            }
+            bank.enablePersistence(directory);
+            IngestionReport report = pipeline.ingest(commands.iterator());
+            long total = bank.getTotalBalanceCents();
+            long commits = bank.getLogCommitCount();
+            bank.shutdownPersistence();
+            BankManagementSystem recovered = BankManagementSystem.recover(directory);
+            System.out.println("With write-ahead log: " + report.getAccepted() + " commands at " +
+                             String.format("%.0f", report.getCommandsPerSecond()) + " commands/sec, " + commits +
+                             " fsync batches");
+            System.out.println("Recovered balances and request ids match: " +
+                             (recovered.getTotalBalanceCents() == total &&
+                              recovered.hasApplied("DUR0") && recovered.hasApplied("DUR" + (commandTotal - 1)) ? "Yes" : "NO"));
+            recovered.shutdownPersistence();
+        } finally {
+            deleteDirectory(directory, "ingestion files");
+        }
+    }
+    
+    // Writes this month's statements for many accounts, one of them with a
+    // very long history, and reports throughput; then writes next month's,
+    // for which all of that history is older than the period and must not
+    // be walked. The files are removed afterwards
+    private static void runStatementDemo(int accountTotal, int longHistory) {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("bank-statements");
+        } catch (IOException e) {
+            System.out.println("Cannot create statement directory: " + e.getMessage());
+            return;
+        }
+        
+        List<BankAccount> accounts = new ArrayList<>(accountTotal);
+        for (int i = 0; i < accountTotal; i++) {
+            SavingsAccount account = new SavingsAccount(String.format("STM%06d", i), "Statement Holder", 500);
+            for (int t = 0; t < 4; t++) {
+                account.addTransaction("DEPOSIT", 25 + t, "Branch deposit");
+            }
+            accounts.add(account);
+        }
+        MoneyMarketAccount busy = new MoneyMarketAccount("STM000000", "Busy Holder", 10000);
+        accounts.set(0, busy);
+        for (int t = 0; t < longHistory; t++) {
+            busy.addTransaction("TRANSFER", 1, "Automated sweep");
+        }
+        
+        YearMonth period = YearMonth.now(ZoneOffset.UTC);
+        StatementGenerator generator = new StatementGenerator(directory, period);
+        long start = System.nanoTime();
+        int files = generator.generate(accounts);
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        StatementGenerator nextMonth = new StatementGenerator(directory, period.plusMonths(1));
+        long nextStart = System.nanoTime();
+        nextMonth.generate(accounts);
+        double nextSeconds = (System.nanoTime() - nextStart) / 1_000_000_000.0;
+        
+        System.out.println("Statements: " + accountTotal + " accounts in " + files + " files, " +
+                         generator.getEntriesWritten() + " transactions, " +
+                         generator.getBytesWritten() / (1024 * 1024) + " MB");
+        System.out.println("Longest history: " + (longHistory + 1) + " entries through a " +
+                         StatementGenerator.BUFFER_SIZE / 1024 + " KB buffer per worker");
+        System.out.println("Elapsed: " + String.format("%.0f", seconds * 1000) + " ms (" +
+                         String.format("%.0f", accountTotal / seconds) + " statements/sec)");
+        System.out.println("Next month (" + period.plusMonths(1) + "): " + nextMonth.getEntriesWritten() +
+                         " transactions, " + String.format("%.0f", nextSeconds * 1000) +
+                         " ms with the history walk stopped at the period start");
+        
+        try (Stream<Path> written = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) written::iterator) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        } catch (IOException e) {
+            System.out.println("Could not remove statement files: " + e.getMessage());
+        }
+    }
+    
+    // Writes a snapshot, logs concurrent deposits after it, then "crashes"
+    // (drops the bank without a new snapshot) and recovers from disk
+    private static void runPersistenceDemo() {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("bank-state");
+        } catch (IOException e) {
+            System.out.println("Cannot create persistence directory: " + e.getMessage());
+            return;
+        }
+        
+        try {
+            BankManagementSystem bank = new BankManagementSystem();
+            bank.setEventSink(new NoOpEventSink());
+            int accountTotal = 1000;
+            int threadCount = 8;
+            int depositsPerThread = 500;
+            try {
+                for (int i = 0; i < accountTotal; i++) {
+                    bank.addAccount(new CheckingAccount(String.format("P%05d", i), "Persisted Holder", 100));
+                }
+                bank.enablePersistence(directory);
+                bank.setSnapshotPolicy(1000, 60_000);
+            
+                TransactionEngine engine = new TransactionEngine();
+                ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+                for (int t = 0; t < threadCount; t++) {
+                    executor.execute(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < depositsPerThread; i++) {
+                            String number = String.format("P%05d", random.nextInt(accountTotal));
+                            engine.execute(bank.findAccount(number), () -> bank.deposit(number, 5));
+                        }
+                    });
+                }
+                executor.shutdown();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < 3; i++) {
+                bank.withdraw("P00001", 10);
+            }
+            long before = bank.getTotalBalanceCents();
+            String historyBefore = historySummary(bank.findAccount("P00001"));
+            long commits = bank.getLogCommitCount();
+            BankPersistence persistence = bank.getPersistence();
+            long snapshots = persistence.getSnapshotCount();
+            long longestCopy = persistence.getLongestStripeCopyNanos();
+            long longestSnapshot = persistence.getLongestSnapshotNanos();
+            long logRecords = persistence.getLogRecordCount();
+            bank.shutdownPersistence();
+            
+            System.out.println("Logged deposits: " + (threadCount * depositsPerThread) +
+                             ", fsync batches (group commit): " + commits);
+            System.out.println("Snapshots every 1000 records: " + snapshots + ", log records after the last: " +
+                             logRecords);
+            System.out.println("Longest stripe lock: " + longestCopy / 1000 + " us, longest snapshot: " +
+                             longestSnapshot / 1000 + " us");
+            long start = System.nanoTime();
+            BankManagementSystem recovered = BankManagementSystem.recover(directory);
+            System.out.println("Recovery time: " + (System.nanoTime() - start) / 1_000_000 + " ms, accounts: " +
+                             recovered.getAccountCount());
+            System.out.println("Balance before crash: $" + Money.format(before) +
+                             ", after recovery: $" + Money.format(recovered.getTotalBalanceCents()));
+            System.out.println("Transaction history recovered from the journal in the same directory: " +
+                             (historyBefore.equals(historySummary(recovered.findAccount("P00001"))) ? "Yes" : "NO") +
+                             " (" + historyBefore + ")");
+            
+            // Tear the last record (a crash in the middle of its write): its
+            // checksum no longer matches and recovery stops in front of it
+            recovered.setEventSink(new NoOpEventSink());
+            long beforeTorn = recovered.getTotalBalanceCents();
+            recovered.withdraw("P00002", 10);
+            recovered.shutdownPersistence();
+            try (FileChannel wal = FileChannel.open(directory.resolve("bank.wal"), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                wal.read(last, wal.size() - 1);
+                last.put(0, (byte) ~last.get(0)).rewind();
+                wal.write(last, wal.size() - 1);
+            } catch (IOException e) {
+                System.out.println("Cannot tear the log: " + e.getMessage());
+                return;
+            }
+            BankManagementSystem reopened = BankManagementSystem.recover(directory);
+            System.out.println("Torn last record caught by its checksum and dropped: " +
+                             (reopened.getTotalBalanceCents() == beforeTorn ? "Yes" : "NO"));
+            reopened.shutdownPersistence();
+        } finally {
+            deleteDirectory(directory, "persistence files");
+        }
+    }
+    
+    // Entry count and newest entry of a tracking account's history
+    private static String historySummary(BankAccount account) {
+        TransactionTracking tracking = (TransactionTracking) account;
+        TransactionJournal journal;
+        long latest;
+        synchronized (account) {
+            journal = tracking.getJournal();
+            latest = tracking.getLatestJournalEntry();
+        }
+        int entries = 0;
+        for (long p = latest; p >= 0; p = journal.previousOf(p)) {
+            entries++;
+        }
+        return entries + " entries, newest " + (latest < 0 ? "none" : journal.typeOf(latest) + " $" +
+               Money.format(journal.amountOf(latest)));
+    }
+    
+    // Removes a demo's directory and everything below it
+    private static void deleteDirectory(Path directory, String what) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not remove " + what + ": " + e.getMessage());
+        }
+    }
+    
+    // Times the columnar accrual kernel alone and the full gather/credit pass
+    private static void runBulkInterestBenchmark(int accountTotal) {
+        BankAccount[] accounts = new BankAccount[accountTotal];
+        AccountEventSink quiet = new NoOpEventSink();
+        for (int i = 0; i < accountTotal; i++) {
+            accounts[i] = i % 2 == 0
+                ? new SavingsAccount("BULK-S" + i, "Bulk Holder", 1000 + i % 5000)
+                : new MoneyMarketAccount("BULK-M" + i, "Bulk Holder", 3000 + i % 5000);
+            accounts[i].attachEventSink(quiet);
+        }
+        
+        long[] balances = new long[accountTotal];
+        long[] rates = new long[accountTotal];
+        long[] interest = new long[accountTotal];
+        for (int i = 0; i < accountTotal; i++) {
+            balances[i] = accounts[i].getBalanceCents();
+            rates[i] = accounts[i].interestRateBps;
+        }
+        for (int warmup = 0; warmup < 20; warmup++) {
+            BulkInterestAccrual.computeMonthlyInterest(balances, rates, interest, accountTotal);
+        }
+        int rounds = 50;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            BulkInterestAccrual.computeMonthlyInterest(balances, rates, interest, accountTotal);
+        }
+        double kernelSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        start = System.nanoTime();
+        int credited = new BulkInterestAccrual().accrue(accounts, 0, accountTotal);
+        double passSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        System.out.println("Accounts: " + accountTotal + ", credited: " + credited);
+        System.out.println("Accrual kernel: " + String.format("%.1f", rounds * accountTotal / kernelSeconds / 1_000_000) +
+                         " million accounts/sec");
+        // Bounded by the per-account credit: write lock, journal entry, event
+        System.out.println("Full gather/compute/credit pass: " +
+                         String.format("%.1f", accountTotal / passSeconds / 1_000_000) +
+                         " million accounts/sec (locked credit, journal and event per account)");
+    }
+    
+    private static void printBenchmarkLine(String label, long nanos, long bytes, int iterations) {
+        System.out.println("  " + label + ": " + String.format("%.1f", nanos / (double) iterations) +
+                         " ns/op" + (bytes >= 0 ? ", " + String.format("%.1f", bytes / (double) iterations) +
+                         " bytes/op allocated" : ""));
+    }
+    
+    private static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+        if (bean != null && bean.isThreadAllocatedMemorySupported()) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+    
+    // Hammers a small set of accounts from several threads through the
+    // TransactionEngine and checks that no money is created or lost and
+    // that minimum-balance and withdrawal-limit rules were never broken
+    private static void runConcurrentStressTest(int threadCount, int opsPerThread) {
+        TransactionEngine engine = new TransactionEngine();
+        BankAccount[] pool = {
+            new CheckingAccount("STR-CHK1", "Stress One", 5000.0),
+            new CheckingAccount("STR-CHK2", "Stress Two", 5000.0),
+            new SavingsAccount("STR-SAV1", "Stress Three", 5000.0),
+            new SavingsAccount("STR-SAV2", "Stress Four", 5000.0)
+        };
+        
+        long initialTotalCents = 0;
+        for (BankAccount account : pool) {
+            initialTotalCents += account.getBalanceCents();
+        }
+        
+        AtomicInteger deposits = new AtomicInteger();
+        AtomicInteger withdrawals = new AtomicInteger();
+        int amount = 10;
+        
+        // Per-operation events go through the async ring instead of the console
+        AsyncEventSink asyncSink = new AsyncEventSink(new NoOpEventSink(), 4096);
+        for (BankAccount account : pool) {
+            account.attachEventSink(asyncSink);
+        }
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int t = 0; t < threadCount; t++) {
+                executor.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        BankAccount account = pool[random.nextInt(pool.length)];
+                        if (random.nextBoolean()) {
+                            engine.deposit(account, amount);
+                            deposits.incrementAndGet();
+                        } else if (engine.withdraw(account, amount)) {
+                            withdrawals.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            asyncSink.close();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        
+        long finalTotalCents = 0;
+        boolean rulesHeld = true;
+        for (BankAccount account : pool) {
+            long balanceCents = account.getBalanceCents();
+            finalTotalCents += balanceCents;
+            if (balanceCents < Money.of(account.getMinimumBalance())) {
+                rulesHeld = false;
+            }
+        }
+        long expectedTotalCents = initialTotalCents + (deposits.get() - withdrawals.get()) * Money.of(amount);
+        
+        System.out.println("Threads: " + threadCount + ", operations: " + (threadCount * opsPerThread));
+        System.out.println("Deposits: " + deposits.get() + ", successful withdrawals: " + withdrawals.get());
+        System.out.println("Events dropped by full sink buffer: " + asyncSink.getDroppedCount());
+        System.out.println("Expected total: $" + Money.format(expectedTotalCents) +
+                         ", actual total: $" + Money.format(finalTotalCents));
+        System.out.println("Balance conserved: " + (expectedTotalCents == finalTotalCents ? "Yes" : "NO"));
+        System.out.println("Minimum balances held: " + (rulesHeld ? "Yes" : "NO"));
+        System.out.println("Elapsed: " + elapsedMillis + " ms");
+    }
 }
\ No newline at end of file
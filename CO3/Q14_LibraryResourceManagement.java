@@ -1,5 +1,25 @@
 package c03;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
 // Q14: Library Resource Management System
 // Comprehensive library system demonstrating advanced OOP concepts
 
@@ -11,11 +31,23 @@ abstract class LibraryResource {
     protected String publisher;
     protected java.util.Date publicationDate;
     protected String isbn;
-    protected boolean isAvailable;
     protected String location;
     protected double price;
     protected java.util.Date dateAcquired;
     
+    // Copies of this title; a copy is claimed with a CAS on the available
+    // count, so two members can never hold the same copy
+    private volatile int totalCopies = 1;
+    private final AtomicInteger availableCopies = new AtomicInteger(1);
+    private final Set<LibraryMember> borrowers = ConcurrentHashMap.newKeySet();
+    
+    // Library told when the title runs out or becomes available again
+    private volatile LibraryManagementSystem library;
+    private int libraryId;
+    
+    // Members waiting for a copy; returned copies are handed to them first
+    private final ReservationQueue reservations = new ReservationQueue(this);
+    
     // Static variable to track total resources
     protected static int totalResources = 0;
     
@@ -24,7 +56,6 @@ abstract class LibraryResource {
         this.title = title;
         this.authors = authors;
         this.publisher = publisher;
-        this.isAvailable = true;
         this.dateAcquired = new java.util.Date();
         totalResources++;
     }
@@ -35,26 +66,130 @@ abstract class LibraryResource {
     public abstract boolean canBeReserved();
     public abstract int getMaxLoanPeriod(); // in days
     
-    // Concrete methods available to all resources
+    // Concrete methods available to all resources. Both go through the
+    // member, so the member's loan list and limits change together with
+    // the copy count
     public final void checkOut(LibraryMember member) {
-        if (isAvailable && canBeReserved()) {
-            isAvailable = false;
+        CheckoutResult result = member.tryCheckOut(this);
+        if (result == CheckoutResult.SUCCESS) {
             System.out.println("Resource checked out: " + title);
             System.out.println("Due date: " + calculateDueDate());
-        } else {
+        } else if (result == CheckoutResult.UNAVAILABLE) {
             System.out.println("Resource not available for checkout");
+        } else {
+            System.out.println("Cannot check out - limit reached or outstanding fees");
         }
     }
     
-    public final void checkIn() {
-        if (!isAvailable) {
-            isAvailable = true;
+    // Returns member's copy; other members' loans of the title stay open
+    public final void checkIn(LibraryMember member) {
+        if (member.tryReturn(this)) {
             System.out.println("Resource returned: " + title);
         } else {
             System.out.println("Resource was not checked out");
         }
     }
     
+    // Claims a copy for member without printing: the copy held for the
+    // member's reservation if there is one, otherwise one from the shelf.
+    // Fails if no copy is left or the member already holds one of this title.
+    // Only LibraryMember calls this, under its own lock
+    final boolean tryCheckOut(LibraryMember member) {
+        if (!canBeReserved() || !borrowers.add(member)) {
+            return false;
+        }
+        if (reservations.claim(member)) {
+            return true;
+        }
+        int available;
+        do {
+            available = availableCopies.get();
+            if (available == 0) {
+                borrowers.remove(member);
+                return false;
+            }
+        } while (!availableCopies.compareAndSet(available, available - 1));
+        if (available == 1) {
+            availabilityChanged();
+        }
+        reservations.cancel(member);
+        return true;
+    }
+    
+    // Returns member's copy, handing it to the next reservation if anyone
+    // is waiting; fails if the member does not hold a copy
+    final boolean tryCheckIn(LibraryMember member) {
+        if (!borrowers.remove(member)) {
+            return false;
+        }
+        reservations.returnCopy();
+        return true;
+    }
+    
+    // Adds physical copies of this title to the inventory
+    public final void addCopies(int count) {
+        synchronized (this) {
+            totalCopies += count;
+        }
+        for (int i = 0; i < count; i++) {
+            reservations.returnCopy();
+        }
+    }
+    
+    // Puts a copy back on the shelf; callers hold the reservation queue lock
+    final void shelveCopy() {
+        if (availableCopies.getAndIncrement() == 0) {
+            availabilityChanged();
+        }
+    }
+    
+    final boolean isBorrowedBy(LibraryMember member) {
+        return borrowers.contains(member);
+    }
+    
+    // The queue, with holds that ran out already passed on
+    protected final ReservationQueue reservations() {
+        expireDueHolds();
+        return reservations;
+    }
+    
+    // Releases unclaimed holds whose deadline has passed on this resource's
+    // reservation clock (the library's, or the shared one)
+    final void expireDueHolds() {
+        getReservationService().expireDue();
+    }
+    
+    final ReservationService getReservationService() {
+        LibraryManagementSystem owner = library;
+        return owner != null ? owner.getReservations() : ReservationService.getShared();
+    }
+    
+    // One of the members holding a copy, or null if none is out
+    public final LibraryMember getBorrower() {
+        Iterator<LibraryMember> it = borrowers.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+    
+    public final int getTotalCopies() { return totalCopies; }
+    public final int getAvailableCopies() { return availableCopies.get(); }
+    
+    // True once a library has indexed the resource's searchable text
+    protected final boolean isCatalogued() {
+        return library != null;
+    }
+    
+    final void attachToLibrary(LibraryManagementSystem library, int libraryId) {
+        this.libraryId = libraryId;
+        this.library = library;
+    }
+    
+    private void availabilityChanged() {
+        LibraryManagementSystem owner = library;
+        if (owner != null) {
+            owner.refreshAvailability(libraryId, this);
+        }
+    }
+    
     public final java.util.Date calculateDueDate() {
         java.util.Calendar cal = java.util.Calendar.getInstance();
         cal.add(java.util.Calendar.DAY_OF_MONTH, getMaxLoanPeriod());
@@ -72,7 +207,8 @@ abstract class LibraryResource {
         System.out.println();
         System.out.println("Publisher: " + publisher);
         System.out.println("ISBN: " + (isbn != null ? isbn : "N/A"));
-        System.out.println("Available: " + (isAvailable ? "Yes" : "No"));
+        System.out.println("Available: " + (isAvailable() ? "Yes" : "No") +
+                         (totalCopies > 1 ? " (" + availableCopies.get() + " of " + totalCopies + " copies)" : ""));
         System.out.println("Location: " + (location != null ? location : "Main Floor"));
         System.out.println("Price: $" + String.format("%.2f", price));
     }
@@ -85,7 +221,7 @@ abstract class LibraryResource {
     // Getters and setters
     public String getResourceId() { return resourceId; }
     public String getTitle() { return title; }
-    public boolean isAvailable() { return isAvailable; }
+    public boolean isAvailable() { return availableCopies.get() > 0; }
     public String getLocation() { return location; }
     public void setLocation(String location) { this.location = location; }
 }
@@ -101,6 +237,12 @@ interface Searchable {
     }
     
     String getTitle();
+    
+    // Text the search index stores for each kind of query; each must cover
+    // exactly the fields the matching matchesX method looks at
+    String[] getAuthorTerms();
+    String[] getCategoryTerms();
+    String[] getKeywordTerms();
 }
 
 // Interface for renewable resources
@@ -122,7 +264,9 @@ interface Renewable {
 interface Reservable {
     void reserve(LibraryMember member);
     void cancelReservation();
+    void cancelReservation(LibraryMember member);
     boolean isReserved();
+    int getReservationCount();
     LibraryMember getReservedBy();
     
     default void displayReservationInfo() {
@@ -166,8 +310,6 @@ class Book extends LibraryResource implements Searchable, Renewable, Reservable
     private String language;
     private int renewalCount;
     private final int MAX_RENEWALS = 2;
-    private boolean reserved;
-    private LibraryMember reservedBy;
     private String summary;
     
     public Book(String resourceId, String title, String[] authors, String publisher, 
@@ -177,7 +319,6 @@ class Book extends LibraryResource implements Searchable, Renewable, Reservable
         this.pageCount = pageCount;
         this.language = "English";
         this.renewalCount = 0;
-        this.reserved = false;
         this.price = 25.99;
     }
     
@@ -233,10 +374,25 @@ class Book extends LibraryResource implements Searchable, Renewable, Reservable
         return genre.toLowerCase().contains(category.toLowerCase());
     }
     
+    @Override
+    public String[] getAuthorTerms() {
+        return authors;
+    }
+    
+    @Override
+    public String[] getCategoryTerms() {
+        return new String[]{genre};
+    }
+    
+    @Override
+    public String[] getKeywordTerms() {
+        return summary != null ? new String[]{title, genre, summary} : new String[]{title, genre};
+    }
+    
     // Renewable implementation
     @Override
     public boolean renew() {
-        if (canRenew() && !reserved) {
+        if (canRenew() && !isReserved()) {
             renewalCount++;
             System.out.println("Book renewed. New due date: " + calculateDueDate());
             return true;
@@ -259,10 +415,9 @@ class Book extends LibraryResource implements Searchable, Renewable, Reservable
     // Reservable implementation
     @Override
     public void reserve(LibraryMember member) {
-        if (!reserved && !isAvailable) {
-            reserved = true;
-            reservedBy = member;
-            System.out.println("Book reserved for " + member.getName());
+        int position = reservations().enqueue(member);
+        if (position > 0) {
+            System.out.println("Book reserved for " + member.getName() + " (position " + position + ")");
         } else {
             System.out.println("Cannot reserve book - already reserved or available");
         }
@@ -270,26 +425,45 @@ class Book extends LibraryResource implements Searchable, Renewable, Reservable
     
     @Override
     public void cancelReservation() {
-        if (reserved) {
-            reserved = false;
-            reservedBy = null;
+        LibraryMember first = reservations().getFirstInLine();
+        if (first != null && reservations().cancel(first)) {
             System.out.println("Reservation cancelled");
         } else {
             System.out.println("No reservation to cancel");
         }
     }
     
+    @Override
+    public void cancelReservation(LibraryMember member) {
+        if (reservations().cancel(member)) {
+            System.out.println("Reservation cancelled for " + member.getName());
+        } else {
+            System.out.println("No reservation to cancel");
+        }
+    }
+    
     @Override
     public boolean isReserved() {
-        return reserved;
+        return reservations().size() > 0;
+    }
+    
+    @Override
+    public int getReservationCount() {
+        return reservations().size();
     }
     
     @Override
     public LibraryMember getReservedBy() {
-        return reservedBy;
+        return reservations().getFirstInLine();
     }
     
+    // The summary is searchable text, and a library indexes it when the
+    // book is added, so it can only be set before then
     public void setSummary(String summary) {
+        if (isCatalogued()) {
+            System.out.println("Summary cannot change after the book is added to a library");
+            return;
+        }
         this.summary = summary;
     }
     
@@ -375,6 +549,23 @@ class Magazine extends LibraryResource implements Searchable {
         return false;
     }
     
+    @Override
+    public String[] getAuthorTerms() {
+        return authors;
+    }
+    
+    @Override
+    public String[] getCategoryTerms() {
+        return topics;
+    }
+    
+    @Override
+    public String[] getKeywordTerms() {
+        String[] terms = Arrays.copyOf(topics, topics.length + 1);
+        terms[topics.length] = title;
+        return terms;
+    }
+    
     public String getIssueNumber() { return issueNumber; }
     public String getFrequency() { return frequency; }
 }
@@ -387,8 +578,6 @@ class DVD extends LibraryResource implements Searchable, Renewable, Reservable,
     private String director;
     private int renewalCount;
     private final int MAX_RENEWALS = 1;
-    private boolean reserved;
-    private LibraryMember reservedBy;
     
     public DVD(String resourceId, String title, String[] actors, String studio,
                String genre, int durationMinutes, String director, String rating) {
@@ -398,7 +587,6 @@ class DVD extends LibraryResource implements Searchable, Renewable, Reservable,
         this.director = director;
         this.rating = rating;
         this.renewalCount = 0;
-        this.reserved = false;
         this.price = 19.99;
     }
     
@@ -454,10 +642,27 @@ class DVD extends LibraryResource implements Searchable, Renewable, Reservable,
                rating.toLowerCase().contains(category.toLowerCase());
     }
     
+    @Override
+    public String[] getAuthorTerms() {
+        String[] terms = Arrays.copyOf(authors, authors.length + 1);
+        terms[authors.length] = director;
+        return terms;
+    }
+    
+    @Override
+    public String[] getCategoryTerms() {
+        return new String[]{genre, rating};
+    }
+    
+    @Override
+    public String[] getKeywordTerms() {
+        return new String[]{title, genre, director};
+    }
+    
     // Renewable implementation
     @Override
     public boolean renew() {
-        if (canRenew() && !reserved) {
+        if (canRenew() && !isReserved()) {
             renewalCount++;
             System.out.println("DVD renewed. New due date: " + calculateDueDate());
             return true;
@@ -480,10 +685,9 @@ class DVD extends LibraryResource implements Searchable, Renewable, Reservable,
     // Reservable implementation
     @Override
     public void reserve(LibraryMember member) {
-        if (!reserved && !isAvailable) {
-            reserved = true;
-            reservedBy = member;
-            System.out.println("DVD reserved for " + member.getName());
+        int position = reservations().enqueue(member);
+        if (position > 0) {
+            System.out.println("DVD reserved for " + member.getName() + " (position " + position + ")");
         } else {
             System.out.println("Cannot reserve DVD - already reserved or available");
         }
@@ -491,21 +695,32 @@ class DVD extends LibraryResource implements Searchable, Renewable, Reservable,
     
     @Override
     public void cancelReservation() {
-        if (reserved) {
-            reserved = false;
-            reservedBy = null;
+        LibraryMember first = reservations().getFirstInLine();
+        if (first != null && reservations().cancel(first)) {
             System.out.println("Reservation cancelled");
         }
     }
     
+    @Override
+    public void cancelReservation(LibraryMember member) {
+        if (reservations().cancel(member)) {
+            System.out.println("Reservation cancelled for " + member.getName());
+        }
+    }
+    
     @Override
     public boolean isReserved() {
-        return reserved;
+        return reservations().size() > 0;
+    }
+    
+    @Override
+    public int getReservationCount() {
+        return reservations().size();
     }
     
     @Override
     public LibraryMember getReservedBy() {
-        return reservedBy;
+        return reservations().getFirstInLine();
     }
     
     // MultimediaCapable implementation
@@ -664,11 +879,36 @@ class DigitalResource extends LibraryResource implements DigitalAccess, Searchab
         return this.category.toLowerCase().contains(category.toLowerCase());
     }
     
+    @Override
+    public String[] getAuthorTerms() {
+        return authors;
+    }
+    
+    @Override
+    public String[] getCategoryTerms() {
+        return new String[]{category};
+    }
+    
+    @Override
+    public String[] getKeywordTerms() {
+        return new String[]{title, category, fileFormat};
+    }
+    
     public String getFileFormat() { return fileFormat; }
     public String getCategory() { return category; }
 }
 
+// Outcome of an attempted checkout
+enum CheckoutResult {
+    SUCCESS, LIMIT_REACHED, OUTSTANDING_FEES, UNAVAILABLE
+}
+
 // Library Member class
+// Checkout and return run under the member's own lock, and the resource is
+// claimed or released with a CAS inside it, so the member's list and count
+// and the resource's availability change together or not at all. Locks are
+// per member and resources need no lock, so checkouts by different members
+// never wait on each other
 class LibraryMember {
     private String memberId;
     private String name;
@@ -693,34 +933,73 @@ class LibraryMember {
         this.outstandingFees = 0.0;
     }
     
-    public void checkOutResource(LibraryResource resource) {
-        if (checkedOutCount < MAX_CHECKOUTS && outstandingFees <= 10.0) {
-            checkedOutResources[checkedOutCount] = resource;
-            checkedOutCount++;
-            resource.checkOut(this);
-            System.out.println(name + " checked out: " + resource.getTitle());
-        } else {
-            System.out.println("Cannot check out - limit reached or outstanding fees");
+    public boolean checkOutResource(LibraryResource resource) {
+        CheckoutResult result = tryCheckOut(resource);
+        switch (result) {
+            case SUCCESS:
+                System.out.println("Resource checked out: " + resource.getTitle());
+                System.out.println("Due date: " + resource.calculateDueDate());
+                System.out.println(name + " checked out: " + resource.getTitle());
+                return true;
+            case UNAVAILABLE:
+                System.out.println("Resource not available for checkout");
+                return false;
+            default:
+                System.out.println("Cannot check out - limit reached or outstanding fees");
+                return false;
         }
     }
     
     public void returnResource(LibraryResource resource) {
+        if (tryReturn(resource)) {
+            System.out.println("Resource returned: " + resource.getTitle());
+            System.out.println(name + " returned: " + resource.getTitle());
+            LibraryMember next = resource.reservations().getReadyHolder();
+            if (next != null) {
+                System.out.println("Copy held for " + next.getName() + " (reservation)");
+            }
+        } else {
+            System.out.println("Resource not found in checked out items");
+        }
+    }
+    
+    // Atomic checkout without console output
+    public synchronized CheckoutResult tryCheckOut(LibraryResource resource) {
+        resource.expireDueHolds();
+        if (checkedOutCount >= MAX_CHECKOUTS) {
+            return CheckoutResult.LIMIT_REACHED;
+        }
+        if (outstandingFees > 10.0) {
+            return CheckoutResult.OUTSTANDING_FEES;
+        }
+        if (!resource.tryCheckOut(this)) {
+            return CheckoutResult.UNAVAILABLE;
+        }
+        checkedOutResources[checkedOutCount++] = resource;
+        return CheckoutResult.SUCCESS;
+    }
+    
+    // Atomic return without console output; false if this member does not
+    // hold the resource
+    public synchronized boolean tryReturn(LibraryResource resource) {
+        resource.expireDueHolds();
         for (int i = 0; i < checkedOutCount; i++) {
             if (checkedOutResources[i].equals(resource)) {
+                if (!resource.tryCheckIn(this)) {
+                    return false;
+                }
                 // Shift resources down
                 for (int j = i; j < checkedOutCount - 1; j++) {
                     checkedOutResources[j] = checkedOutResources[j + 1];
                 }
-                checkedOutCount--;
-                resource.checkIn();
-                System.out.println(name + " returned: " + resource.getTitle());
-                return;
+                checkedOutResources[--checkedOutCount] = null;
+                return true;
             }
         }
-        System.out.println("Resource not found in checked out items");
+        return false;
     }
     
-    public void displayMemberInfo() {
+    public synchronized void displayMemberInfo() {
         System.out.println("\n=== Library Member Info ===");
         System.out.println("Member ID: " + memberId);
         System.out.println("Name: " + name);
@@ -731,7 +1010,7 @@ class LibraryMember {
         System.out.println("Outstanding Fees: $" + String.format("%.2f", outstandingFees));
     }
     
-    public void viewCheckedOutResources() {
+    public synchronized void viewCheckedOutResources() {
         System.out.println("\n" + name + "'s Checked Out Resources:");
         for (int i = 0; i < checkedOutCount; i++) {
             System.out.println("- " + checkedOutResources[i].getTitle() + 
@@ -742,7 +1021,7 @@ class LibraryMember {
         }
     }
     
-    public void payFees(double amount) {
+    public synchronized void payFees(double amount) {
         if (amount > 0 && amount <= outstandingFees) {
             outstandingFees -= amount;
             System.out.println("Payment of $" + String.format("%.2f", amount) + " received");
@@ -752,7 +1031,7 @@ class LibraryMember {
         }
     }
     
-    public void addFee(double amount, String reason) {
+    public synchronized void addFee(double amount, String reason) {
         outstandingFees += amount;
         System.out.println("Fee added: $" + String.format("%.2f", amount) + " - " + reason);
     }
@@ -761,147 +1040,1789 @@ class LibraryMember {
     public String getMemberId() { return memberId; }
     public String getName() { return name; }
     public String getMembershipType() { return membershipType; }
-    public int getCheckedOutCount() { return checkedOutCount; }
-    public double getOutstandingFees() { return outstandingFees; }
+    public synchronized int getCheckedOutCount() { return checkedOutCount; }
+    public synchronized double getOutstandingFees() { return outstandingFees; }
+    public static int getMaxCheckouts() { return MAX_CHECKOUTS; }
 }
 
-// Library Management System
-class LibraryManagementSystem {
-    private LibraryResource[] resources;
-    private LibraryMember[] members;
-    private int resourceCount;
-    private int memberCount;
-    private static final int MAX_RESOURCES = 10000;
-    private static final int MAX_MEMBERS = 1000;
+// Growable list of primitive ints, used for index posting lists
+class IntList {
+    private int[] data;
+    private int size;
     
-    public LibraryManagementSystem() {
-        resources = new LibraryResource[MAX_RESOURCES];
-        members = new LibraryMember[MAX_MEMBERS];
-        resourceCount = 0;
-        memberCount = 0;
+    public IntList() {
+        this(4);
     }
     
-    public void addResource(LibraryResource resource) {
-        if (resourceCount < MAX_RESOURCES) {
-            resources[resourceCount++] = resource;
-            System.out.println("Resource added to library: " + resource.getTitle());
-        } else {
-            System.out.println("Library is at maximum capacity");
+    public IntList(int capacity) {
+        data = new int[Math.max(1, capacity)];
+    }
+    
+    // Takes over values as the list's contents
+    public IntList(int[] values) {
+        data = values.length > 0 ? values : new int[1];
+        size = values.length;
+    }
+    
+    public void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, size * 2);
         }
+        data[size++] = value;
     }
     
-    public void addMember(LibraryMember member) {
-        if (memberCount < MAX_MEMBERS) {
-            members[memberCount++] = member;
-            System.out.println("Member added to library: " + member.getName());
-        } else {
-            System.out.println("Maximum member limit reached");
+    public int get(int index) {
+        return data[index];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int last() {
+        return data[size - 1];
+    }
+    
+    public void set(int index, int value) {
+        data[index] = value;
+    }
+    
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
+
+// Position in a ranked result list: results come in descending score order,
+// ties in ascending resource id order, and a page starts after its cursor
+class SearchCursor {
+    private final double score;
+    private final int resourceId;
+    
+    public SearchCursor(double score, int resourceId) {
+        this.score = score;
+        this.resourceId = resourceId;
+    }
+    
+    public double getScore() { return score; }
+    public int getResourceId() { return resourceId; }
+    
+    // True if a result with this score and id comes after the cursor
+    public boolean precedes(double otherScore, int otherId) {
+        return otherScore < score || (otherScore == score && otherId > resourceId);
+    }
+}
+
+// One page of ranked search results
+class SearchPage {
+    private final int[] resourceIds;
+    private final double[] scores;
+    private final int totalMatches;   // at least this many resources match
+    private final SearchCursor next;
+    private final LibraryResource[] results;
+    
+    public SearchPage(int[] resourceIds, double[] scores, int totalMatches, SearchCursor next) {
+        this(resourceIds, scores, totalMatches, next, null);
+    }
+    
+    private SearchPage(int[] resourceIds, double[] scores, int totalMatches, SearchCursor next,
+                       LibraryResource[] results) {
+        this.resourceIds = resourceIds;
+        this.scores = scores;
+        this.totalMatches = totalMatches;
+        this.next = next;
+        this.results = results;
+    }
+    
+    // Same page with the resources for its ids filled in
+    public SearchPage withResources(LibraryResource[] resources) {
+        return new SearchPage(resourceIds, scores, totalMatches, next, resources);
+    }
+    
+    public int[] getResourceIds() { return resourceIds; }
+    public double[] getScores() { return scores; }
+    public int getTotalMatches() { return totalMatches; }
+    public LibraryResource[] getResults() { return results; }
+    
+    // Cursor for the following page, or null if this is the last one
+    public SearchCursor getNextCursor() { return next; }
+}
+
+// Bounded heap keeping the best k (score, id) pairs seen so far
+// The root is the worst pair kept, so each offer is O(log k) and memory
+// stays at k entries no matter how many results are offered
+class TopKHeap {
+    private final int[] ids;
+    private final double[] scores;
+    private int size;
+    
+    public TopKHeap(int k) {
+        ids = new int[k];
+        scores = new double[k];
+    }
+    
+    public void offer(int id, double score) {
+        if (size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (size > 0 && worse(ids[0], scores[0], id, score)) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0);
         }
     }
     
-    public LibraryResource[] searchByTitle(String title) {
-        LibraryResource[] results = new LibraryResource[resourceCount];
-        int resultCount = 0;
-        
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i] instanceof Searchable) {
-                if (((Searchable) resources[i]).matchesTitle(title)) {
-                    results[resultCount++] = resources[i];
-                }
+    public int size() {
+        return size;
+    }
+    
+    public boolean isFull() {
+        return size == ids.length;
+    }
+    
+    // Score of the worst pair kept; only meaningful once the heap is full
+    public double worstScore() {
+        return scores[0];
+    }
+    
+    // Empties the heap into the arrays, best pair first
+    public void drainTo(int[] idsOut, double[] scoresOut) {
+        for (int i = size - 1; i >= 0; i--) {
+            idsOut[i] = ids[0];
+            scoresOut[i] = scores[0];
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+    }
+    
+    // True if pair a ranks below pair b
+    private static boolean worse(int idA, double scoreA, int idB, double scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+    }
+    
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!worse(ids[i], scores[i], ids[parent], scores[parent])) {
+                break;
             }
+            swap(i, parent);
+            i = parent;
         }
-        
-        // Create array with exact size
-        LibraryResource[] finalResults = new LibraryResource[resultCount];
-        System.arraycopy(results, 0, finalResults, 0, resultCount);
-        return finalResults;
     }
     
-    public LibraryResource[] searchByAuthor(String author) {
-        LibraryResource[] results = new LibraryResource[resourceCount];
-        int resultCount = 0;
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], ids[i], scores[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+    
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
+
+// Kinds of search supported by the index, one per Searchable matches method
+enum SearchField {
+    TITLE, AUTHOR, CATEGORY, KEYWORD
+}
+
+// Inverted index over the Searchable text of library resources
+// For each field, every distinct lowercased string (a title, an author, a
+// genre...) becomes a term with a posting list of the resources that have
+// it. A trigram layer maps each three-character sequence to the terms that
+// contain it, so a substring query only verifies the terms that contain all
+// of its trigrams instead of scanning every resource. Text is lowercased
+// once when indexed; resources must be added in increasing id order.
+// For ranking, each field also keeps word postings with term frequencies
+// and per-resource word counts, which is what BM25 scoring needs, plus a
+// trigram layer over the distinct words so a query word can be matched to
+// every word that contains it
+class SearchIndex {
+    private static final int VERIFY_THRESHOLD = 32;
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    
+    // Distinct lowercased strings with n-gram layers for substring lookup.
+    // Queries of three characters or more intersect trigram lists; shorter
+    // ones are answered exactly by the unigram or bigram postings, which
+    // cover most of the vocabulary for common characters and are kept as
+    // compressed bitmaps. Ids and grams live in open-addressing tables with
+    // primitive keys. One vocabulary of terms and one of words serve every
+    // field, so text that appears in several fields (a title is also a
+    // keyword) is stored and indexed once
+    private static final class Vocabulary {
+        final List<String> values = new ArrayList<>();
+        private int[] slots = new int[1 << 10];   // value id + 1 by hash, 0 when empty
+        final LongMap<IntList> trigrams = new LongMap<>();
+        final LongMap<CompressedBitmap> shortGrams = new LongMap<>();
         
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i] instanceof Searchable) {
-                if (((Searchable) resources[i]).matchesAuthor(author)) {
-                    results[resultCount++] = resources[i];
+        int idOf(String value) {
+            int mask = slots.length - 1;
+            int slot = mix(value.hashCode()) & mask;
+            for (int entry; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+                if (values.get(entry - 1).equals(value)) {
+                    return entry - 1;
+                }
+            }
+            int id = values.size();
+            values.add(value);
+            slots[slot] = id + 1;
+            if (values.size() * 2 > slots.length) {
+                rehash();
+            }
+            for (int i = 0; i < value.length(); i++) {
+                shortGramPosting(unigram(value, i)).add(id);
+                if (i + 2 <= value.length()) {
+                    shortGramPosting(bigram(value, i)).add(id);
+                }
+                if (i + 3 <= value.length()) {
+                    IntList list = trigrams.get(trigram(value, i));
+                    if (list == null) {
+                        list = new IntList();
+                        trigrams.put(trigram(value, i), list);
+                    }
+                    if (list.size() == 0 || list.last() != id) {
+                        list.add(id);
+                    }
                 }
             }
+            return id;
         }
         
-        LibraryResource[] finalResults = new LibraryResource[resultCount];
-        System.arraycopy(results, 0, finalResults, 0, resultCount);
-        return finalResults;
-    }
-    
-    public LibraryResource[] searchByCategory(String category) {
-        LibraryResource[] results = new LibraryResource[resourceCount];
-        int resultCount = 0;
+        int size() {
+            return values.size();
+        }
         
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i] instanceof Searchable) {
-                if (((Searchable) resources[i]).matchesCategory(category)) {
-                    results[resultCount++] = resources[i];
+        // Ids of the values containing query, which is already lowercased
+        IntList matching(String query) {
+            IntList matches = new IntList();
+            if (query.length() < 3) {
+                CompressedBitmap ids = query.isEmpty() ? null
+                                     : shortGrams.get(query.length() == 1 ? unigram(query, 0) : bigram(query, 0));
+                if (ids == null) {
+                    if (query.isEmpty()) {
+                        for (int t = 0; t < values.size(); t++) {
+                            matches.add(t);
+                        }
+                    }
+                    return matches;
+                }
+                return new IntList(ids.toArray());
+            }
+            IntList[] lists = new IntList[query.length() - 2];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = trigrams.get(trigram(query, i));
+                if (lists[i] == null) {
+                    return matches;
+                }
+            }
+            // Intersect from the rarest trigram up; once few candidates are
+            // left it is cheaper to verify them than to keep intersecting
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+            IntList candidates = lists[0];
+            for (int i = 1; i < lists.length && candidates.size() > VERIFY_THRESHOLD; i++) {
+                candidates = intersect(candidates, lists[i]);
+            }
+            // Trigrams can all appear without the query appearing as a whole
+            for (int i = 0; i < candidates.size(); i++) {
+                int t = candidates.get(i);
+                if (values.get(t).contains(query)) {
+                    matches.add(t);
                 }
             }
+            return matches;
         }
         
-        LibraryResource[] finalResults = new LibraryResource[resultCount];
-        System.arraycopy(results, 0, finalResults, 0, resultCount);
-        return finalResults;
-    }
-    
-    public LibraryResource findResourceById(String resourceId) {
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i].getResourceId().equals(resourceId)) {
-                return resources[i];
+        private CompressedBitmap shortGramPosting(long gram) {
+            CompressedBitmap ids = shortGrams.get(gram);
+            if (ids == null) {
+                ids = new CompressedBitmap();
+                shortGrams.put(gram, ids);
             }
+            return ids;
         }
-        return null;
-    }
-    
-    public LibraryMember findMemberById(String memberId) {
-        for (int i = 0; i < memberCount; i++) {
-            if (members[i].getMemberId().equals(memberId)) {
-                return members[i];
+        
+        private void rehash() {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            int mask = slots.length - 1;
+            for (int entry : old) {
+                if (entry != 0) {
+                    int slot = mix(values.get(entry - 1).hashCode()) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = entry;
+                }
             }
         }
-        return null;
     }
     
-    public void displayAllResources() {
-        System.out.println("\n=== All Library Resources ===");
-        for (int i = 0; i < resourceCount; i++) {
-            resources[i].displayResourceDetails();
+    // Open-addressing map from long keys to objects, without boxing; grows
+    // at half full and never removes
+    private static final class LongMap<V> {
+        private long[] keys = new long[1 << 8];
+        private Object[] entries = new Object[1 << 8];
+        private int size;
+        
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(Long.hashCode(key)) & mask; entries[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return (V) entries[slot];
+                }
+            }
+            return null;
         }
-    }
-    
-    public void displayAvailableResources() {
-        System.out.println("\n=== Available Resources ===");
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i].isAvailable()) {
-                System.out.println("- " + resources[i].getTitle() + 
-                                 " (" + resources[i].getResourceType() + ")");
+        
+        // key must not be present yet
+        void put(long key, V value) {
+            if (++size * 2 > keys.length) {
+                long[] oldKeys = keys;
+                Object[] oldEntries = entries;
+                keys = new long[oldKeys.length * 2];
+                entries = new Object[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldEntries[i] != null) {
+                        insert(oldKeys[i], oldEntries[i]);
+                    }
+                }
+            }
+            insert(key, value);
+        }
+        
+        private void insert(long key, Object value) {
+            int mask = keys.length - 1;
+            int slot = mix(Long.hashCode(key)) & mask;
+            while (entries[slot] != null) {
+                slot = (slot + 1) & mask;
             }
+            keys[slot] = key;
+            entries[slot] = value;
         }
     }
     
-    public void generateLibraryReport() {
-        System.out.println("\n=== Library Management Report ===");
-        System.out.println("Total Resources: " + resourceCount);
-        System.out.println("Total Members: " + memberCount);
-        System.out.println("System Total Resources Ever Created: " + LibraryResource.getTotalResources());
+    // Word id -> weight for one query, keeping the largest weight put for a
+    // word. Open addressing over entry indexes, like the vocabulary, so
+    // nothing is boxed and entries come back in the order they were added
+    private static final class WeightTable {
+        private int[] slots = new int[16];    // entry index + 1, 0 when empty
+        private int[] ids = new int[8];
+        private double[] weights = new double[8];
+        private int size;
         
-        int availableCount = 0, checkedOutCount = 0;
-        int bookCount = 0, magazineCount = 0, dvdCount = 0, digitalCount = 0;
+        void putMax(int id, double weight) {
+            int mask = slots.length - 1;
+            int slot = mix(id) & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = slots[slot] - 1;
+                if (ids[entry] == id) {
+                    weights[entry] = Math.max(weights[entry], weight);
+                    return;
+                }
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            ids[size] = id;
+            weights[size] = weight;
+            slots[slot] = ++size;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+        }
         
-        for (int i = 0; i < resourceCount; i++) {
-            if (resources[i].isAvailable()) {
-                availableCount++;
+        int size() {
+            return size;
+        }
+        
+        int id(int entry) {
+            return ids[entry];
+        }
+        
+        double weight(int entry) {
+            return weights[entry];
+        }
+        
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int entry = 0; entry < size; entry++) {
+                int slot = mix(ids[entry]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = entry + 1;
+            }
+        }
+    }
+    
+    // Postings of one field, indexed by shared term and word id (null where
+    // the field never uses that term or word)
+    private static final class FieldIndex {
+        final List<IntList> postings = new ArrayList<>();
+        // Word id -> [resource id, frequency] pairs, in resource id order
+        final List<IntList> wordPostings = new ArrayList<>();
+        final IntList wordCounts = new IntList();
+        long totalWords;
+        int termCount;
+        
+        IntList posting(int termId) {
+            return termId < postings.size() ? postings.get(termId) : null;
+        }
+        
+        IntList wordPosting(int wordId) {
+            return wordId < wordPostings.size() ? wordPostings.get(wordId) : null;
+        }
+        
+        void addTerm(int resourceId, int termId) {
+            IntList posting = posting(termId);
+            if (posting == null) {
+                while (postings.size() <= termId) {
+                    postings.add(null);
+                }
+                posting = new IntList(1);
+                postings.set(termId, posting);
+                termCount++;
+            }
+            if (posting.size() == 0 || posting.last() != resourceId) {
+                posting.add(resourceId);
+            }
+        }
+        
+        void addWord(int resourceId, int wordId) {
+            while (wordCounts.size() <= resourceId) {
+                wordCounts.add(0);
+            }
+            IntList pairs = wordPosting(wordId);
+            if (pairs == null) {
+                while (wordPostings.size() <= wordId) {
+                    wordPostings.add(null);
+                }
+                pairs = new IntList(2);
+                wordPostings.set(wordId, pairs);
+            }
+            if (pairs.size() > 0 && pairs.get(pairs.size() - 2) == resourceId) {
+                pairs.set(pairs.size() - 1, pairs.last() + 1);
             } else {
-                checkedOutCount++;
+                pairs.add(resourceId);
+                pairs.add(1);
             }
-            
+            wordCounts.set(resourceId, wordCounts.get(resourceId) + 1);
+            totalWords++;
+        }
+    }
+    
+    private final Vocabulary terms = new Vocabulary();
+    private final Vocabulary words = new Vocabulary();
+    private final Map<SearchField, FieldIndex> fields = new EnumMap<>(SearchField.class);
+    
+    public SearchIndex() {
+        for (SearchField field : SearchField.values()) {
+            fields.put(field, new FieldIndex());
+        }
+    }
+    
+    public void add(int resourceId, Searchable resource) {
+        add(SearchField.TITLE, resourceId, resource.getTitle());
+        addAll(SearchField.AUTHOR, resourceId, resource.getAuthorTerms());
+        addAll(SearchField.CATEGORY, resourceId, resource.getCategoryTerms());
+        addAll(SearchField.KEYWORD, resourceId, resource.getKeywordTerms());
+    }
+    
+    // Ids of the resources whose field contains query, in increasing order
+    public int[] search(SearchField field, String query) {
+        FieldIndex index = fields.get(field);
+        IntList matches = terms.matching(query.toLowerCase());
+        List<IntList> found = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            IntList posting = index.posting(matches.get(i));
+            if (posting != null) {
+                found.add(posting);
+            }
+        }
+        if (found.size() == 1) {
+            return found.get(0).toArray();
+        }
+        IntList ids = new IntList();
+        for (IntList posting : found) {
+            for (int j = 0; j < posting.size(); j++) {
+                ids.add(posting.get(j));
+            }
+        }
+        // A resource can match through several of its terms
+        int[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+    
+    public int getTermCount(SearchField field) {
+        return fields.get(field).termCount;
+    }
+    
+    // Ranks the resources matching any of the query's words (as substrings,
+    // like search) by BM25 and returns the pageSize best after the cursor
+    // (null for the first page). Each index word containing a query word is
+    // scored as its own term, weighted by how much of it the query word
+    // covers, so partial words rank below whole ones but above nothing.
+    // Matches are never collected: the word postings are merged in id order
+    // into a pageSize heap with max-score pruning. Once the heap is full,
+    // words whose score bounds together cannot reach its worst entry stop
+    // producing candidates and are only probed for the candidates the other
+    // words produce. The match count is therefore a lower bound, the
+    // largest posting list involved. pageSize must be at least 1
+    public SearchPage rankedSearch(SearchField field, String query, int pageSize, SearchCursor after) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1: " + pageSize);
+        }
+        FieldIndex index = fields.get(field);
+        WeightTable weights = new WeightTable();
+        for (String queryWord : words(query.toLowerCase())) {
+            IntList matches = words.matching(queryWord);
+            for (int i = 0; i < matches.size(); i++) {
+                int wordId = matches.get(i);
+                if (index.wordPosting(wordId) != null) {
+                    weights.putMax(wordId, (double) queryWord.length() / words.values.get(wordId).length());
+                }
+            }
+        }
+        
+        int resourceTotal = Math.max(1, index.wordCounts.size());
+        double averageWords = Math.max(1.0, (double) index.totalWords / resourceTotal);
+        int n = weights.size();
+        PostingCursor[] lists = new PostingCursor[n];
+        int largest = 0;
+        for (int k = 0; k < n; k++) {
+            IntList pairs = index.wordPosting(weights.id(k));
+            int df = pairs.size() / 2;
+            largest = Math.max(largest, df);
+            double idf = Math.log(1 + (resourceTotal - df + 0.5) / (df + 0.5));
+            lists[k] = new PostingCursor(pairs, weights.weight(k) * idf);
+        }
+        // Lowest bound first; bounds[k] is the most lists[0..k-1] can add
+        Arrays.sort(lists, Comparator.comparingDouble(list -> list.maxScore));
+        double[] bounds = new double[n + 1];
+        for (int k = 0; k < n; k++) {
+            bounds[k + 1] = bounds[k] + lists[k].maxScore;
+        }
+        
+        TopKHeap heap = new TopKHeap(pageSize);
+        double threshold = Double.NEGATIVE_INFINITY;
+        int essential = 0;    // lists[essential..] produce candidates
+        // Min-heap of the essential lists by their current resource id
+        int[] order = new int[n];
+        int orderSize = orderLists(order, lists, essential);
+        // Per-list parts of the current score; they are added up in list
+        // order so a resource scores the same bits whatever was pruned,
+        // which keeps cursors exact across pages
+        double[] parts = new double[n];
+        int[] hit = new int[n];
+        while (orderSize > 0) {
+            int id = lists[order[0]].resource();
+            if (id == Integer.MAX_VALUE) {
+                break;
+            }
+            double norm = BM25_K1 * (1 - BM25_B + BM25_B * index.wordCounts.get(id) / averageWords);
+            double partial = 0;
+            int hits = 0;
+            while (lists[order[0]].resource() == id) {
+                int k = order[0];
+                parts[k] = lists[k].score(norm);
+                partial += parts[k];
+                hit[hits++] = k;
+                lists[k].next();
+                siftDown(order, orderSize, 0, lists);
+            }
+            boolean complete = true;
+            for (int k = essential - 1; k >= 0; k--) {
+                if (partial + bounds[k + 1] < threshold) {
+                    complete = false;
+                    break;
+                }
+                if (lists[k].advanceTo(id)) {
+                    parts[k] = lists[k].score(norm);
+                    partial += parts[k];
+                    hit[hits++] = k;
+                }
+            }
+            if (!complete) {
+                continue;
+            }
+            Arrays.sort(hit, 0, hits);
+            double score = 0;
+            for (int i = 0; i < hits; i++) {
+                score += parts[hit[i]];
+            }
+            if (after == null || after.precedes(score, id)) {
+                heap.offer(id, score);
+                if (heap.isFull()) {
+                    threshold = heap.worstScore();
+                    int before = essential;
+                    while (essential < n && bounds[essential + 1] < threshold) {
+                        essential++;
+                    }
+                    if (essential != before) {
+                        orderSize = orderLists(order, lists, essential);
+                    }
+                }
+            }
+        }
+        
+        int[] ids = new int[heap.size()];
+        double[] scores = new double[heap.size()];
+        heap.drainTo(ids, scores);
+        // A full page may have more after it; a short page is the last one
+        SearchCursor next = ids.length == pageSize && ids.length > 0
+            ? new SearchCursor(scores[ids.length - 1], ids[ids.length - 1]) : null;
+        return new SearchPage(ids, scores, largest, next);
+    }
+    
+    // Heapifies lists[from..] into order; returns the heap size
+    private static int orderLists(int[] order, PostingCursor[] lists, int from) {
+        int size = lists.length - from;
+        for (int i = 0; i < size; i++) {
+            order[i] = from + i;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(order, size, i, lists);
+        }
+        return size;
+    }
+    
+    private static void siftDown(int[] order, int size, int i, PostingCursor[] lists) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && lists[order[child + 1]].resource() < lists[order[child]].resource()) {
+                child++;
+            }
+            if (lists[order[child]].resource() >= lists[order[i]].resource()) {
+                return;
+            }
+            int swap = order[i];
+            order[i] = order[child];
+            order[child] = swap;
+            i = child;
+        }
+    }
+    
+    // Walks one word's [resource id, frequency] pairs during ranking
+    private static final class PostingCursor {
+        final IntList pairs;
+        final double weight;
+        final double maxScore;    // BM25 saturates below weight * (k1 + 1)
+        int position;
+        
+        PostingCursor(IntList pairs, double weight) {
+            this.pairs = pairs;
+            this.weight = weight;
+            this.maxScore = weight * (BM25_K1 + 1);
+        }
+        
+        int resource() {
+            return position < pairs.size() ? pairs.get(position) : Integer.MAX_VALUE;
+        }
+        
+        void next() {
+            position += 2;
+        }
+        
+        double score(double norm) {
+            int tf = pairs.get(position + 1);
+            return weight * tf * (BM25_K1 + 1) / (tf + norm);
+        }
+        
+        // Gallops to the first pair at or after id; true if it is id
+        boolean advanceTo(int id) {
+            int pairCount = pairs.size() / 2;
+            int low = position / 2;
+            int step = 1;
+            int high = low;
+            while (high < pairCount && pairs.get(2 * high) < id) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, pairCount - 1);
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (pairs.get(2 * mid) < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            position = 2 * low;
+            return resource() == id;
+        }
+    }
+    
+    // Splits lowercased text into words of letters and digits
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+    
+    private void addAll(SearchField field, int resourceId, String[] texts) {
+        for (String text : texts) {
+            if (text != null) {
+                add(field, resourceId, text);
+            }
+        }
+    }
+    
+    private void add(SearchField field, int resourceId, String text) {
+        FieldIndex index = fields.get(field);
+        String term = text.toLowerCase();
+        index.addTerm(resourceId, terms.idOf(term));
+        for (String word : words(term)) {
+            index.addWord(resourceId, words.idOf(word));
+        }
+    }
+    
+    private static long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+    }
+    
+    // Unigram and bigram keys carry a tag above the 48 bits a trigram uses
+    private static long unigram(String text, int offset) {
+        return (1L << 48) | text.charAt(offset);
+    }
+    
+    private static long bigram(String text, int offset) {
+        return (2L << 48) | ((long) text.charAt(offset) << 16) | text.charAt(offset + 1);
+    }
+    
+    // Spreads hash codes whose low bits are alike (sequential strings, grams)
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+    
+    // Intersects a short list with a longer one by galloping through the
+    // longer list, so the cost follows the short list's length
+    private static IntList intersect(IntList small, IntList large) {
+        IntList result = new IntList(small.size());
+        int low = 0;
+        for (int i = 0; i < small.size() && low < large.size(); i++) {
+            int target = small.get(i);
+            int step = 1;
+            int high = low;
+            while (high < large.size() && large.get(high) < target) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, large.size() - 1);
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (large.get(mid) < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low < large.size() && large.get(low) == target) {
+                result.add(target);
+                low++;
+            }
+        }
+        return result;
+    }
+}
+
+// Compressed bitmap of non-negative ints in the style of Roaring bitmaps
+// Values are split into a high 16-bit key and a low 16-bit part. Each key
+// present has a container: a sorted array of lows while it holds at most
+// 4096 values, otherwise a 65536-bit bitmap. Set operations work container
+// by container, so sparse and dense regions both stay compact and fast
+class CompressedBitmap {
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+    
+    private char[] keys = new char[4];
+    private Object[] containers = new Object[4];   // char[] lows or long[] bits
+    private int[] cardinalities = new int[4];
+    private int size;
+    
+    public void add(int value) {
+        char low = (char) value;
+        int i = findOrInsert((char) (value >>> 16));
+        Object container = containers[i];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                bits[low >>> 6] |= mask;
+                cardinalities[i]++;
+            }
+            return;
+        }
+        char[] lows = (char[]) container;
+        int count = cardinalities[i];
+        int pos = Arrays.binarySearch(lows, 0, count, low);
+        if (pos >= 0) {
+            return;
+        }
+        if (count == ARRAY_LIMIT) {
+            long[] bits = toBits(lows, count);
+            bits[low >>> 6] |= 1L << low;
+            containers[i] = bits;
+        } else {
+            pos = -pos - 1;
+            if (count == lows.length) {
+                lows = Arrays.copyOf(lows, Math.min(ARRAY_LIMIT, Math.max(4, count * 2)));
+                containers[i] = lows;
+            }
+            System.arraycopy(lows, pos, lows, pos + 1, count - pos);
+            lows[pos] = low;
+        }
+        cardinalities[i]++;
+    }
+    
+    public void remove(int value) {
+        char low = (char) value;
+        int i = find((char) (value >>> 16));
+        if (i < 0) {
+            return;
+        }
+        Object container = containers[i];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                return;
+            }
+            bits[low >>> 6] &= ~mask;
+            if (--cardinalities[i] == ARRAY_LIMIT) {
+                containers[i] = toLows(bits, ARRAY_LIMIT);
+            }
+            return;
+        }
+        char[] lows = (char[]) container;
+        int count = cardinalities[i];
+        int pos = Arrays.binarySearch(lows, 0, count, low);
+        if (pos < 0) {
+            return;
+        }
+        System.arraycopy(lows, pos + 1, lows, pos, count - pos - 1);
+        if (--cardinalities[i] == 0) {
+            removeContainer(i);
+        }
+    }
+    
+    public boolean contains(int value) {
+        int i = find((char) (value >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) value;
+        Object container = containers[i];
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, cardinalities[i], low) >= 0;
+    }
+    
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += cardinalities[i];
+        }
+        return total;
+    }
+    
+    // Size of the intersection without building it
+    public int andCardinality(CompressedBitmap other) {
+        int total = 0;
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                total += andCount(containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]);
+                i++;
+                j++;
+            }
+        }
+        return total;
+    }
+    
+    public CompressedBitmap and(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.append(keys[i], and(containers[i], cardinalities[i],
+                                           other.containers[j], other.cardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    public CompressedBitmap or(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.append(keys[i], copy(containers[i], cardinalities[i]));
+                i++;
+            } else if (i == size || other.keys[j] < keys[i]) {
+                result.append(other.keys[j], copy(other.containers[j], other.cardinalities[j]));
+                j++;
+            } else {
+                result.append(keys[i], or(containers[i], cardinalities[i],
+                                          other.containers[j], other.cardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    // All values in increasing order
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int high = keys[i] << 16;
+            Object container = containers[i];
+            if (container instanceof long[]) {
+                long[] bits = (long[]) container;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        values[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] lows = (char[]) container;
+                for (int k = 0; k < cardinalities[i]; k++) {
+                    values[n++] = high | lows[k];
+                }
+            }
+        }
+        return values;
+    }
+    
+    // Approximate heap footprint of the containers, for reporting
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (int i = 0; i < size; i++) {
+            Object container = containers[i];
+            bytes += container instanceof long[] ? BITMAP_WORDS * 8L : ((char[]) container).length * 2L;
+        }
+        return bytes;
+    }
+    
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+    
+    private int findOrInsert(char key) {
+        int i = find(key);
+        if (i >= 0) {
+            return i;
+        }
+        i = -i - 1;
+        ensureCapacity();
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        System.arraycopy(cardinalities, i, cardinalities, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = new char[4];
+        cardinalities[i] = 0;
+        size++;
+        return i;
+    }
+    
+    private void removeContainer(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        System.arraycopy(cardinalities, i + 1, cardinalities, i, size - i - 1);
+        containers[--size] = null;
+    }
+    
+    // Adds the values set in a block of 65536 bits (BITMAP_WORDS words)
+    // for a key greater than every key present; the words are copied
+    void appendBlock(char key, long[] words) {
+        append(key, words.clone());
+    }
+    
+    // Adds a container for a key greater than every key present, switching
+    // it to whichever representation suits its cardinality
+    private void append(char key, Object container) {
+        int count = container instanceof long[] ? bitCount((long[]) container) : ((char[]) container).length;
+        if (count == 0) {
+            return;
+        }
+        if (container instanceof long[] && count <= ARRAY_LIMIT) {
+            container = toLows((long[]) container, count);
+        } else if (container instanceof char[] && count > ARRAY_LIMIT) {
+            container = toBits((char[]) container, count);
+        }
+        ensureCapacity();
+        keys[size] = key;
+        containers[size] = container;
+        cardinalities[size] = count;
+        size++;
+    }
+    
+    private void ensureCapacity() {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+            cardinalities = Arrays.copyOf(cardinalities, size * 2);
+        }
+    }
+    
+    // Container operations; array results are trimmed to their cardinality
+    
+    private static Object copy(Object container, int count) {
+        return container instanceof long[] ? ((long[]) container).clone()
+                                           : Arrays.copyOf((char[]) container, count);
+    }
+    
+    private static Object and(Object a, int countA, Object b, int countB) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a, y = (long[]) b;
+            long[] bits = new long[BITMAP_WORDS];
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                bits[w] = x[w] & y[w];
+            }
+            return bits;
+        }
+        if (a instanceof long[]) {
+            return and(b, countB, a, countA);
+        }
+        char[] lows = (char[]) a;
+        char[] result = new char[countA];
+        int n = 0;
+        if (b instanceof long[]) {
+            long[] bits = (long[]) b;
+            for (int k = 0; k < countA; k++) {
+                if ((bits[lows[k] >>> 6] & (1L << lows[k])) != 0) {
+                    result[n++] = lows[k];
+                }
+            }
+        } else {
+            char[] other = (char[]) b;
+            int i = 0, j = 0;
+            while (i < countA && j < countB) {
+                if (lows[i] < other[j]) {
+                    i++;
+                } else if (lows[i] > other[j]) {
+                    j++;
+                } else {
+                    result[n++] = lows[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+    
+    private static int andCount(Object a, int countA, Object b, int countB) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a, y = (long[]) b;
+            int count = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                count += Long.bitCount(x[w] & y[w]);
+            }
+            return count;
+        }
+        if (a instanceof long[]) {
+            return andCount(b, countB, a, countA);
+        }
+        char[] lows = (char[]) a;
+        int count = 0;
+        if (b instanceof long[]) {
+            long[] bits = (long[]) b;
+            for (int k = 0; k < countA; k++) {
+                if ((bits[lows[k] >>> 6] & (1L << lows[k])) != 0) {
+                    count++;
+                }
+            }
+        } else {
+            char[] other = (char[]) b;
+            int i = 0, j = 0;
+            while (i < countA && j < countB) {
+                if (lows[i] < other[j]) {
+                    i++;
+                } else if (lows[i] > other[j]) {
+                    j++;
+                } else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    private static Object or(Object a, int countA, Object b, int countB) {
+        if (a instanceof long[] || b instanceof long[]) {
+            if (!(a instanceof long[])) {
+                return or(b, countB, a, countA);
+            }
+            long[] bits = ((long[]) a).clone();
+            if (b instanceof long[]) {
+                long[] other = (long[]) b;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bits[w] |= other[w];
+                }
+            } else {
+                char[] lows = (char[]) b;
+                for (int k = 0; k < countB; k++) {
+                    bits[lows[k] >>> 6] |= 1L << lows[k];
+                }
+            }
+            return bits;
+        }
+        char[] x = (char[]) a, y = (char[]) b;
+        char[] result = new char[countA + countB];
+        int i = 0, j = 0, n = 0;
+        while (i < countA || j < countB) {
+            if (j == countB || (i < countA && x[i] < y[j])) {
+                result[n++] = x[i++];
+            } else if (i == countA || y[j] < x[i]) {
+                result[n++] = y[j++];
+            } else {
+                result[n++] = x[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+    
+    private static long[] toBits(char[] lows, int count) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (int k = 0; k < count; k++) {
+            bits[lows[k] >>> 6] |= 1L << lows[k];
+        }
+        return bits;
+    }
+    
+    private static char[] toLows(long[] bits, int count) {
+        char[] lows = new char[count];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                lows[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return lows;
+    }
+    
+    private static int bitCount(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
+
+// A member's place in a resource's reservation queue
+// A waiting hold sits in the queue's waiting line; once a copy is set
+// aside for it the hold moves to the ready line and gets an expiry timer.
+// The links for both lines and for the expiry wheel live in the hold
+// itself, so joining, leaving and expiring are all O(1)
+final class Hold {
+    static final int WAITING = 0;
+    static final int READY = 1;
+    static final int DONE = 2;
+    
+    final LibraryMember member;
+    final ReservationQueue queue;
+    int state = WAITING;
+    Hold previous;
+    Hold next;
+    
+    // Expiry wheel position, used while READY
+    long deadline;
+    int rounds;
+    int slot = -1;
+    Hold timerPrevious;
+    Hold timerNext;
+    
+    Hold(LibraryMember member, ReservationQueue queue) {
+        this.member = member;
+        this.queue = queue;
+    }
+}
+
+// FIFO reservation queue for one resource
+// Members join the waiting line when no copy is on the shelf. A returned
+// copy goes to the first waiting member as a ready hold instead of back to
+// the shelf; the member claims it by checking the resource out before the
+// hold expires, after which the copy passes to the next member in line.
+// All changes to the lines, and copies going back to the shelf, happen
+// under the queue's lock so a copy cannot be shelved while someone waits
+class ReservationQueue {
+    private final LibraryResource resource;
+    private Map<LibraryMember, Hold> holds; // created on first reservation
+    private Hold waitingHead, waitingTail;
+    private Hold readyHead, readyTail;
+    private int waitingCount;
+    private int readyCount;
+    
+    ReservationQueue(LibraryResource resource) {
+        this.resource = resource;
+    }
+    
+    // Returns the member's position in the waiting line, or -1 if a copy is
+    // on the shelf, or the member already has a hold or a copy
+    public synchronized int enqueue(LibraryMember member) {
+        if (resource.getAvailableCopies() > 0 || resource.isBorrowedBy(member)) {
+            return -1;
+        }
+        if (holds == null) {
+            holds = new HashMap<>();
+        } else if (holds.containsKey(member)) {
+            return -1;
+        }
+        Hold hold = new Hold(member, this);
+        holds.put(member, hold);
+        waitingTail = append(waitingTail, hold);
+        if (waitingHead == null) {
+            waitingHead = hold;
+        }
+        return ++waitingCount;
+    }
+    
+    // Drops the member's hold; a copy held for it passes down the line
+    public synchronized boolean cancel(LibraryMember member) {
+        Hold hold = holds == null ? null : holds.remove(member);
+        if (hold == null) {
+            return false;
+        }
+        if (hold.state == Hold.READY) {
+            unlinkReady(hold);
+            resource.getReservationService().cancelExpiry(hold);
+            hold.state = Hold.DONE;
+            passOnCopy();
+        } else {
+            unlinkWaiting(hold);
+            hold.state = Hold.DONE;
+        }
+        return true;
+    }
+    
+    // Takes the copy held for member, if there is one
+    synchronized boolean claim(LibraryMember member) {
+        Hold hold = holds == null ? null : holds.get(member);
+        if (hold == null || hold.state != Hold.READY) {
+            return false;
+        }
+        holds.remove(member);
+        unlinkReady(hold);
+        resource.getReservationService().cancelExpiry(hold);
+        hold.state = Hold.DONE;
+        return true;
+    }
+    
+    // A copy came back: hold it for the next member, or shelve it
+    synchronized void returnCopy() {
+        passOnCopy();
+    }
+    
+    // Called by the expiry wheel when a ready hold was not claimed in time
+    synchronized void expire(Hold hold) {
+        if (hold.state != Hold.READY) {
+            return;
+        }
+        holds.remove(hold.member);
+        unlinkReady(hold);
+        hold.state = Hold.DONE;
+        passOnCopy();
+    }
+    
+    // Holds of either kind
+    public synchronized int size() {
+        return waitingCount + readyCount;
+    }
+    
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+    
+    // Member a copy is being held for, longest waiting first
+    public synchronized LibraryMember getReadyHolder() {
+        return readyHead != null ? readyHead.member : null;
+    }
+    
+    // Ready holders first, then the head of the waiting line
+    public synchronized LibraryMember getFirstInLine() {
+        if (readyHead != null) {
+            return readyHead.member;
+        }
+        return waitingHead != null ? waitingHead.member : null;
+    }
+    
+    private void passOnCopy() {
+        Hold hold = waitingHead;
+        if (hold == null) {
+            resource.shelveCopy();
+            return;
+        }
+        unlinkWaiting(hold);
+        hold.state = Hold.READY;
+        readyTail = append(readyTail, hold);
+        if (readyHead == null) {
+            readyHead = hold;
+        }
+        readyCount++;
+        resource.getReservationService().scheduleExpiry(hold);
+    }
+    
+    private static Hold append(Hold tail, Hold hold) {
+        hold.previous = tail;
+        hold.next = null;
+        if (tail != null) {
+            tail.next = hold;
+        }
+        return hold;
+    }
+    
+    private void unlinkWaiting(Hold hold) {
+        if (hold.previous != null) hold.previous.next = hold.next; else waitingHead = hold.next;
+        if (hold.next != null) hold.next.previous = hold.previous; else waitingTail = hold.previous;
+        hold.previous = hold.next = null;
+        waitingCount--;
+    }
+    
+    private void unlinkReady(Hold hold) {
+        if (hold.previous != null) hold.previous.next = hold.next; else readyHead = hold.next;
+        if (hold.next != null) hold.next.previous = hold.previous; else readyTail = hold.previous;
+        hold.previous = hold.next = null;
+        readyCount--;
+    }
+}
+
+// Expiry of ready holds on a hashed timing wheel
+// 256 one-hour slots cover about ten days; a hold further out than that
+// waits a number of full turns in its slot. Scheduling and cancelling are
+// O(1) list operations and advancing only visits the slots that come due.
+// Deadlines and expiry both read the one clock the service is given, and a
+// hold is only released once that clock has passed its stored deadline.
+// Expiry runs whenever a member checks out or returns a resource, or a
+// resource's queue is used, and on LibraryManagementSystem.expireHolds; a
+// quick unlocked check makes that cheap when nothing is due. Expired holds
+// are passed to their queues after the wheel lock is released, since
+// queues call into the wheel while holding their own lock
+class ReservationService {
+    static final long DEFAULT_HOLD_MILLIS = 3L * 24 * 60 * 60 * 1000;
+    static final long TICK_MILLIS = 60 * 60 * 1000;
+    private static final int WHEEL_SIZE = 256;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    
+    private static final ReservationService shared =
+        new ReservationService(DEFAULT_HOLD_MILLIS, System::currentTimeMillis);
+    
+    private final long holdMillis;
+    private final LongSupplier clock;
+    private final Hold[] slots = new Hold[WHEEL_SIZE];
+    private volatile long currentTick;
+    private volatile int pending;
+    
+    public ReservationService(long holdMillis, LongSupplier clock) {
+        this.holdMillis = holdMillis;
+        this.clock = clock;
+        this.currentTick = clock.getAsLong() / TICK_MILLIS;
+    }
+    
+    // Used by resources that are not part of a library
+    static ReservationService getShared() {
+        return shared;
+    }
+    
+    synchronized void scheduleExpiry(Hold hold) {
+        hold.deadline = clock.getAsLong() + holdMillis;
+        place(hold);
+    }
+    
+    // Links the hold into the first slot at or after its deadline
+    private void place(Hold hold) {
+        long tick = Math.max(currentTick + 1, (hold.deadline + TICK_MILLIS - 1) / TICK_MILLIS);
+        hold.rounds = (int) ((tick - currentTick - 1) / WHEEL_SIZE);
+        hold.slot = (int) (tick & WHEEL_MASK);
+        hold.timerPrevious = null;
+        hold.timerNext = slots[hold.slot];
+        if (hold.timerNext != null) {
+            hold.timerNext.timerPrevious = hold;
+        }
+        slots[hold.slot] = hold;
+        pending++;
+    }
+    
+    synchronized void cancelExpiry(Hold hold) {
+        if (hold.slot < 0) {
+            return;
+        }
+        if (hold.timerPrevious != null) {
+            hold.timerPrevious.timerNext = hold.timerNext;
+        } else {
+            slots[hold.slot] = hold.timerNext;
+        }
+        if (hold.timerNext != null) {
+            hold.timerNext.timerPrevious = hold.timerPrevious;
+        }
+        hold.timerPrevious = hold.timerNext = null;
+        hold.slot = -1;
+        pending--;
+    }
+    
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+    
+    // Expires every ready hold whose deadline has passed on the service's
+    // clock; returns how many expired
+    public int expireDue() {
+        long now = clock.getAsLong();
+        long target = now / TICK_MILLIS;
+        if (pending == 0 || target <= currentTick) {
+            return 0;
+        }
+        List<Hold> expired = new ArrayList<>();
+        synchronized (this) {
+            while (currentTick < target && pending > 0) {
+                currentTick++;
+                Hold hold = slots[(int) (currentTick & WHEEL_MASK)];
+                while (hold != null) {
+                    Hold next = hold.timerNext;
+                    if (hold.rounds > 0) {
+                        hold.rounds--;
+                    } else {
+                        cancelExpiry(hold);
+                        if (hold.deadline <= now) {
+                            expired.add(hold);
+                        } else {
+                            place(hold);
+                        }
+                    }
+                    hold = next;
+                }
+            }
+            currentTick = Math.max(currentTick, target);
+        }
+        for (Hold hold : expired) {
+            hold.queue.expire(hold);
+        }
+        return expired.size();
+    }
+}
+
+// Library Management System
+class LibraryManagementSystem {
+    private LibraryResource[] resources;
+    private LibraryMember[] members;
+    private int resourceCount;
+    private int memberCount;
+    private SearchIndex searchIndex; // resource ids are positions in resources
+    // One bit per resource with a copy on the shelf, in pages of 65536 ids
+    // that are never replaced, so a bit written on the checkout path is
+    // never lost to a copy. Queries read them through availableBitmap()
+    private static final int PAGE_WORDS = 1024;
+    private volatile AtomicLongArray[] shelved = new AtomicLongArray[0];
+    private final AtomicLong availabilityVersion = new AtomicLong();
+    private final Object availabilityBuild = new Object();
+    private CompressedBitmap availability = new CompressedBitmap(); // under availabilityBuild
+    private long availabilityBuilt = -1;
+    // Resources per category name
+    private final Map<String, CompressedBitmap> categories = new HashMap<>();
+    private final ReservationService reservations;
+    private static final int INITIAL_RESOURCE_CAPACITY = 16;
+    private static final int MAX_MEMBERS = 1000;
+    
+    public LibraryManagementSystem() {
+        this(System::currentTimeMillis);
+    }
+    
+    // Library whose reservation holds run on the given clock
+    public LibraryManagementSystem(LongSupplier clock) {
+        reservations = new ReservationService(ReservationService.DEFAULT_HOLD_MILLIS, clock);
+        resources = new LibraryResource[INITIAL_RESOURCE_CAPACITY];
+        members = new LibraryMember[MAX_MEMBERS];
+        resourceCount = 0;
+        memberCount = 0;
+        searchIndex = new SearchIndex();
+    }
+    
+    // Searchable text is indexed as it stands when the resource is added
+    public void addResource(LibraryResource resource) {
+        catalogue(resource);
+        System.out.println("Resource added to library: " + resource.getTitle());
+    }
+    
+    // Bulk load for large catalogues: same as addResource for each, with
+    // one line of output for the whole batch
+    public void addResources(LibraryResource[] batch) {
+        for (LibraryResource resource : batch) {
+            catalogue(resource);
+        }
+        System.out.println(batch.length + " resources added to library");
+    }
+    
+    // The resource table grows by doubling, so the catalogue has no fixed cap
+    private void catalogue(LibraryResource resource) {
+        if (resourceCount == resources.length) {
+            resources = Arrays.copyOf(resources, resources.length * 2);
+        }
+        int id = resourceCount;
+        if (id >>> 16 == shelved.length) {
+            AtomicLongArray[] pages = Arrays.copyOf(shelved, shelved.length + 1);
+            pages[shelved.length] = new AtomicLongArray(PAGE_WORDS);
+            shelved = pages;
+        }
+        if (resource instanceof Searchable) {
+            Searchable searchable = (Searchable) resource;
+            searchIndex.add(id, searchable);
+            for (String category : searchable.getCategoryTerms()) {
+                categories.computeIfAbsent(category.toLowerCase(), c -> new CompressedBitmap()).add(id);
+            }
+        }
+        resources[resourceCount++] = resource;
+        resource.attachToLibrary(this, id);
+        refreshAvailability(id, resource);
+    }
+    
+    public int getResourceCount() {
+        return resourceCount;
+    }
+    
+    public int getTermCount(SearchField field) {
+        return searchIndex.getTermCount(field);
+    }
+    
+    public void addMember(LibraryMember member) {
+        if (memberCount < MAX_MEMBERS) {
+            members[memberCount++] = member;
+            System.out.println("Member added to library: " + member.getName());
+        } else {
+            System.out.println("Maximum member limit reached");
+        }
+    }
+    
+    public LibraryResource[] searchByTitle(String title) {
+        return toResources(searchIndex.search(SearchField.TITLE, title));
+    }
+    
+    public LibraryResource[] searchByAuthor(String author) {
+        return toResources(searchIndex.search(SearchField.AUTHOR, author));
+    }
+    
+    public LibraryResource[] searchByCategory(String category) {
+        return toResources(searchIndex.search(SearchField.CATEGORY, category));
+    }
+    
+    public LibraryResource[] searchByKeyword(String keyword) {
+        return toResources(searchIndex.search(SearchField.KEYWORD, keyword));
+    }
+    
+    // Best pageSize matches after the cursor, ranked by relevance; pass
+    // null for the first page and the page's next cursor for the following
+    public SearchPage rankedSearch(SearchField field, String query, int pageSize, SearchCursor after) {
+        SearchPage page = searchIndex.rankedSearch(field, query, pageSize, after);
+        return page.withResources(toResources(page.getResourceIds()));
+    }
+    
+    public void displaySearchPage(String query, SearchPage page) {
+        System.out.println("\nRanked Results for '" + query + "' (at least " + page.getTotalMatches() + " matches):");
+        LibraryResource[] results = page.getResults();
+        for (int i = 0; i < results.length; i++) {
+            System.out.println("- " + results[i].getTitle() + " (" + results[i].getResourceType() + ")" +
+                             " - score " + String.format("%.3f", page.getScores()[i]));
+        }
+        if (page.getNextCursor() == null) {
+            System.out.println("(end of results)");
+        }
+    }
+    
+    private LibraryResource[] toResources(int[] ids) {
+        LibraryResource[] results = new LibraryResource[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            results[i] = resources[ids[i]];
+        }
+        return results;
+    }
+    
+    // Called when a resource runs out or gets a copy back, on the checkout
+    // path, so it takes no lock. The bit is CAS'd to the resource's current
+    // state and written again if the state moved meanwhile, so racing
+    // updates cannot leave it stale
+    void refreshAvailability(int id, LibraryResource resource) {
+        AtomicLongArray page = shelved[id >>> 16];
+        int word = (id >>> 6) & (PAGE_WORDS - 1);
+        long mask = 1L << id;
+        boolean available;
+        do {
+            available = resource.isAvailable();
+            long bits;
+            long updated;
+            do {
+                bits = page.get(word);
+                updated = available ? bits | mask : bits & ~mask;
+            } while (bits != updated && !page.compareAndSet(word, bits, updated));
+            if (bits != updated) {
+                availabilityVersion.incrementAndGet();
+            }
+        } while (resource.isAvailable() != available);
+    }
+    
+    // The shelf bits as a bitmap, rebuilt when a bit changed since the last
+    // build. The version is read before the bits, so a change made during a
+    // rebuild makes the next query rebuild again. Only queries wait here
+    private CompressedBitmap availableBitmap() {
+        synchronized (availabilityBuild) {
+            long version = availabilityVersion.get();
+            if (version != availabilityBuilt) {
+                AtomicLongArray[] pages = shelved;
+                CompressedBitmap bitmap = new CompressedBitmap();
+                long[] words = new long[PAGE_WORDS];
+                for (int p = 0; p < pages.length; p++) {
+                    for (int w = 0; w < PAGE_WORDS; w++) {
+                        words[w] = pages[p].get(w);
+                    }
+                    bitmap.appendBlock((char) p, words);
+                }
+                availability = bitmap;
+                availabilityBuilt = version;
+            }
+            return availability;
+        }
+    }
+    
+    public ReservationService getReservations() {
+        return reservations;
+    }
+    
+    // Releases holds not claimed by now to the next member in line
+    public int expireHolds() {
+        return reservations.expireDue();
+    }
+    
+    public int countAvailable() {
+        return availableBitmap().cardinality();
+    }
+    
+    // Resources whose category contains the text, as in searchByCategory
+    private CompressedBitmap categoryBitmap(String category) {
+        String query = category.toLowerCase();
+        CompressedBitmap matches = new CompressedBitmap();
+        for (Map.Entry<String, CompressedBitmap> entry : categories.entrySet()) {
+            if (entry.getKey().contains(query)) {
+                matches = matches.or(entry.getValue());
+            }
+        }
+        return matches;
+    }
+    
+    public int countAvailableInCategory(String category) {
+        return categoryBitmap(category).andCardinality(availableBitmap());
+    }
+    
+    public LibraryResource[] findAvailableInCategory(String category) {
+        return toResources(categoryBitmap(category).and(availableBitmap()).toArray());
+    }
+    
+    public LibraryResource findResourceById(String resourceId) {
+        for (int i = 0; i < resourceCount; i++) {
+            if (resources[i].getResourceId().equals(resourceId)) {
+                return resources[i];
+            }
+        }
+        return null;
+    }
+    
+    public LibraryMember findMemberById(String memberId) {
+        for (int i = 0; i < memberCount; i++) {
+            if (members[i].getMemberId().equals(memberId)) {
+                return members[i];
+            }
+        }
+        return null;
+    }
+    
+    public void displayAllResources() {
+        System.out.println("\n=== All Library Resources ===");
+        for (int i = 0; i < resourceCount; i++) {
+            resources[i].displayResourceDetails();
+        }
+    }
+    
+    public void displayAvailableResources() {
+        System.out.println("\n=== Available Resources ===");
+        for (int id : availableBitmap().toArray()) {
+            System.out.println("- " + resources[id].getTitle() + 
+                             " (" + resources[id].getResourceType() + ")");
+        }
+    }
+    
+    public void generateLibraryReport() {
+        System.out.println("\n=== Library Management Report ===");
+        System.out.println("Total Resources: " + resourceCount);
+        System.out.println("Total Members: " + memberCount);
+        System.out.println("System Total Resources Ever Created: " + LibraryResource.getTotalResources());
+        
+        int availableCount = countAvailable();
+        int checkedOutCount = resourceCount - availableCount;
+        int bookCount = 0, magazineCount = 0, dvdCount = 0, digitalCount = 0;
+        
+        for (int i = 0; i < resourceCount; i++) {
             String type = resources[i].getResourceType();
             switch (type) {
                 case "Book": bookCount++; break;
@@ -949,8 +2870,10 @@ public class Q14_LibraryResourceManagement {
     public static void main(String[] args) {
         System.out.println("=== Library Resource Management System ===");
         
-        // Create library management system
-        LibraryManagementSystem library = new LibraryManagementSystem();
+        // Create library management system; its reservation clock can be
+        // moved forward to show holds expiring
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        LibraryManagementSystem library = new LibraryManagementSystem(clock::get);
         
         // 1. Create different types of resources
         System.out.println("\n1. Creating Library Resources:");
@@ -1130,6 +3053,14 @@ public class Q14_LibraryResourceManagement {
         LibraryResource[] classicResults = library.searchByCategory("Classic");
         library.displaySearchResults("Classic", classicResults);
         
+        // Ranked keyword search, two results per page
+        SearchPage page = library.rankedSearch(SearchField.KEYWORD, "classic novel", 2, null);
+        library.displaySearchPage("classic novel", page);
+        while (page.getNextCursor() != null) {
+            page = library.rankedSearch(SearchField.KEYWORD, "classic novel", 2, page.getNextCursor());
+            library.displaySearchPage("classic novel", page);
+        }
+        
         // 10. Interface type checking
         System.out.println("\n10. Dynamic Interface Detection:");
         LibraryResource[] allResources = {book1, mag1, dvd1, digital1};
@@ -1169,8 +3100,44 @@ public class Q14_LibraryResourceManagement {
         dvd1.setLocation("Media Section - Row 3");
         digital1.setLocation("Digital Collection - Online");
         
-        // 14. Final system demonstration
-        System.out.println("\n14. Final System Status:");
+        // 14. Indexed search compared with a full scan
+        System.out.println("\n14. Search Index Performance:");
+        LibraryManagementSystem largeLibrary = runSearchIndexBenchmark(1_000_000);
+        
+        // 15. Ranked pages from a query matching every resource
+        System.out.println("\n15. Ranked Search Pagination:");
+        runRankedSearchBenchmark(largeLibrary, "quantum harbor volume 4242", 10, 3);
+        
+        // 16. Many members checking out and returning at once
+        System.out.println("\n16. Concurrent Checkout Engine:");
+        runConcurrentCheckoutDemo(2000, 400, 8, 50_000);
+        
+        // 17. Copies and availability bitmaps
+        System.out.println("\n17. Multi-Copy Inventory:");
+        book1.addCopies(2);
+        member2.checkOutResource(book1);
+        member3.checkOutResource(book1);
+        System.out.println("Copies of " + book1.getTitle() + ": " + book1.getAvailableCopies() + " of " +
+                         book1.getTotalCopies() + " on the shelf");
+        System.out.println("Available in 'Classic': " + library.countAvailableInCategory("Classic"));
+        library.displaySearchResults("available Classic", library.findAvailableInCategory("Classic"));
+        runAvailabilityBitmapBenchmark(1_000_000, 20);
+        
+        // 18. Reservation queue with hand-off and hold expiry
+        System.out.println("\n18. Reservation Queue:");
+        book2.reserve(member1);
+        member2.returnResource(book2);
+        member1.checkOutResource(book2);
+        member3.checkOutResource(book2);
+        member3.returnResource(book2);
+        clock.addAndGet(ReservationService.DEFAULT_HOLD_MILLIS + ReservationService.TICK_MILLIS);
+        System.out.println("Holds expired after " + (ReservationService.DEFAULT_HOLD_MILLIS / 86_400_000) +
+                         " days unclaimed: " + library.expireHolds());
+        System.out.println(book2.getTitle() + " available: " + (book2.isAvailable() ? "Yes" : "No"));
+        runReservationQueueBenchmark(100_000, 10_000);
+        
+        // 19. Final system demonstration
+        System.out.println("\n19. Final System Status:");
         
         // Show member activities
         member2.viewCheckedOutResources();
@@ -1195,4 +3162,304 @@ public class Q14_LibraryResourceManagement {
         System.out.println("✓ Reservation and renewal systems");
         System.out.println("✓ System demonstrates real-world library management");
     }
+    
+    // Loads a large synthetic catalogue into a library and times substring
+    // queries through it against a scan of every resource's matches method
+    private static LibraryManagementSystem runSearchIndexBenchmark(int resourceTotal) {
+        String[] adjectives = {"Silent", "Hidden", "Quantum", "Broken", "Golden", "Distant", "Electric", "Frozen"};
+        String[] nouns = {"River", "Empire", "Garden", "Algorithm", "Harbor", "Machine", "Forest", "Signal"};
+        String[] genres = {"Science Fiction", "Mystery", "History", "Computer Science", "Poetry", "Biography"};
+        String[] surnames = {"Okafor", "Lindqvist", "Tanaka", "Moreau", "Castillo", "Novak", "Haddad", "Reyes"};
+        
+        Book[] catalogue = new Book[resourceTotal];
+        for (int i = 0; i < resourceTotal; i++) {
+            String title = "The " + adjectives[i % adjectives.length] + " " + nouns[(i / 8) % nouns.length] +
+                           " Volume " + i;
+            String author = surnames[(i / 64) % surnames.length] + " " + (i % 5000);
+            catalogue[i] = new Book("BX" + i, title, new String[]{author}, "Synthetic Press",
+                                    genres[i % genres.length], 100 + i % 900);
+        }
+        LibraryManagementSystem library = new LibraryManagementSystem();
+        long buildStart = System.nanoTime();
+        library.addResources(catalogue);
+        double buildSeconds = (System.nanoTime() - buildStart) / 1_000_000_000.0;
+        System.out.println("Indexed " + library.getResourceCount() + " resources in " +
+                         String.format("%.1f", buildSeconds) + " s (" + library.getTermCount(SearchField.TITLE) +
+                         " title terms, " + library.getTermCount(SearchField.AUTHOR) + " author terms)");
+        
+        String[][] queries = {{"TITLE", "Volume 424242"}, {"TITLE", "quantum harbor volume 99"},
+                              {"TITLE", "x"}, {"TITLE", "77"}, {"AUTHOR", "tanaka 4321"}, {"CATEGORY", "poetry"}};
+        for (String[] query : queries) {
+            SearchField field = SearchField.valueOf(query[0]);
+            String text = query[1];
+            LibraryResource[] hits = search(library, field, text);
+            int rounds = 200;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                hits = search(library, field, text);
+            }
+            double indexedMicros = (System.nanoTime() - start) / 1000.0 / rounds;
+            
+            start = System.nanoTime();
+            int scanned = 0;
+            for (Book book : catalogue) {
+                boolean match = field == SearchField.TITLE ? book.matchesTitle(text)
+                              : field == SearchField.AUTHOR ? book.matchesAuthor(text)
+                              : book.matchesCategory(text);
+                if (match) {
+                    scanned++;
+                }
+            }
+            double scanMicros = (System.nanoTime() - start) / 1000.0;
+            System.out.println(field + " '" + text + "': " + hits.length + " hits, index " +
+                             String.format("%.1f", indexedMicros) + " us vs scan " +
+                             String.format("%.0f", scanMicros) + " us" +
+                             (scanned == hits.length ? "" : " (MISMATCH: scan found " + scanned + ")"));
+        }
+        return library;
+    }
+    
+    private static LibraryResource[] search(LibraryManagementSystem library, SearchField field, String text) {
+        switch (field) {
+            case TITLE: return library.searchByTitle(text);
+            case AUTHOR: return library.searchByAuthor(text);
+            case CATEGORY: return library.searchByCategory(text);
+            default: return library.searchByKeyword(text);
+        }
+    }
+    
+    // Races several members for one copy, then runs random checkouts and
+    // returns from many threads and checks members and resources still agree
+    private static void runConcurrentCheckoutDemo(int resourceTotal, int memberTotal, int threadCount,
+                                                  int opsPerThread) {
+        Book contested = new Book("BC001", "Contested Copy", new String[]{"Anon"}, "Press", "Fiction", 200);
+        LibraryMember[] racers = new LibraryMember[threadCount];
+        AtomicInteger winners = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            racers[t] = new LibraryMember("R" + t, "Racer " + t, "racer" + t + "@email.com", "Public");
+            LibraryMember racer = racers[t];
+            threads[t] = new Thread(() -> {
+                if (racer.tryCheckOut(contested) == CheckoutResult.SUCCESS) {
+                    winners.incrementAndGet();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println(threadCount + " members raced for one copy: " + winners.get() + " succeeded");
+        
+        Book[] books = new Book[resourceTotal];
+        for (int i = 0; i < resourceTotal; i++) {
+            books[i] = new Book("BC" + (i + 2), "Shared Title " + i, new String[]{"Anon"}, "Press", "Fiction", 200);
+        }
+        // Catalogued, so every copy running out or coming back also flips
+        // the resource's availability bit on the checkout path
+        LibraryManagementSystem library = new LibraryManagementSystem();
+        library.addResources(books);
+        LibraryMember[] members = new LibraryMember[memberTotal];
+        for (int i = 0; i < memberTotal; i++) {
+            members[i] = new LibraryMember("CM" + i, "Member " + i, "member" + i + "@email.com", "Student");
+        }
+        AtomicInteger checkouts = new AtomicInteger();
+        AtomicInteger unavailable = new AtomicInteger();
+        AtomicInteger returns = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerThread; i++) {
+                    Book book = books[random.nextInt(resourceTotal)];
+                    LibraryMember borrower = book.getBorrower();
+                    if (borrower != null) {
+                        // Returns race with other threads trying to check the same copy out
+                        if (borrower.tryReturn(book)) {
+                            returns.incrementAndGet();
+                        }
+                    } else {
+                        LibraryMember member = members[random.nextInt(memberTotal)];
+                        CheckoutResult result = member.tryCheckOut(book);
+                        if (result == CheckoutResult.SUCCESS) {
+                            checkouts.incrementAndGet();
+                        } else if (result == CheckoutResult.UNAVAILABLE) {
+                            unavailable.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        
+        int held = 0;
+        for (LibraryMember member : members) {
+            held += member.getCheckedOutCount();
+        }
+        int unavailableBooks = 0;
+        boolean consistent = true;
+        for (Book book : books) {
+            if (!book.isAvailable()) {
+                unavailableBooks++;
+            }
+            consistent &= book.isAvailable() == (book.getBorrower() == null);
+        }
+        System.out.println("Operations: " + String.format("%.0f", threadCount * opsPerThread / seconds) +
+                         " per second; " + checkouts.get() + " checkouts, " + returns.get() + " returns, " +
+                         unavailable.get() + " refused as already out");
+        System.out.println("Members hold " + held + " items, " + unavailableBooks + " resources are out" +
+                         " - consistent: " + (consistent && held == unavailableBooks &&
+                         held == checkouts.get() - returns.get() ? "Yes" : "NO"));
+        System.out.println("Available resources per the library's bitmap: " + library.countAvailable() +
+                         " - matches the shelves: " +
+                         (library.countAvailable() == resourceTotal - unavailableBooks ? "Yes" : "NO"));
+    }
+    
+    // Counts available resources per category with bitmaps and with a scan
+    // of the same flags, over a large synthetic catalogue
+    private static void runAvailabilityBitmapBenchmark(int resourceTotal, int categoryTotal) {
+        boolean[] available = new boolean[resourceTotal];
+        int[] categoryOf = new int[resourceTotal];
+        CompressedBitmap availability = new CompressedBitmap();
+        CompressedBitmap[] byCategory = new CompressedBitmap[categoryTotal];
+        for (int c = 0; c < categoryTotal; c++) {
+            byCategory[c] = new CompressedBitmap();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < resourceTotal; i++) {
+            // Skewed categories: a few large ones, many small ones
+            categoryOf[i] = Math.min(categoryTotal - 1, (int) (-Math.log(random.nextDouble()) * 3));
+            byCategory[categoryOf[i]].add(i);
+            available[i] = random.nextInt(10) < 7;
+            if (available[i]) {
+                availability.add(i);
+            }
+        }
+        long bitmapBytes = availability.getSizeInBytes();
+        for (CompressedBitmap bitmap : byCategory) {
+            bitmapBytes += bitmap.getSizeInBytes();
+        }
+        
+        int rounds = 20;
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int c = 0; c < categoryTotal; c++) {
+                checksum += byCategory[c].andCardinality(availability);
+            }
+        }
+        double bitmapMicros = (System.nanoTime() - start) / 1000.0 / rounds;
+        
+        long scanned = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            int[] counts = new int[categoryTotal];
+            for (int i = 0; i < resourceTotal; i++) {
+                if (available[i]) {
+                    counts[categoryOf[i]]++;
+                }
+            }
+            for (int count : counts) {
+                scanned += count;
+            }
+        }
+        double scanMicros = (System.nanoTime() - start) / 1000.0 / rounds;
+        System.out.println("Available per category over " + resourceTotal + " resources: bitmaps " +
+                         String.format("%.0f", bitmapMicros) + " us vs scan " + String.format("%.0f", scanMicros) +
+                         " us, " + bitmapBytes / 1024 + " KB of bitmaps" +
+                         (checksum == scanned ? "" : " (MISMATCH)"));
+    }
+    
+    // Queues many members on one copy, cancels some from the middle and
+    // passes the copy down the line, checking it goes out in FIFO order
+    private static void runReservationQueueBenchmark(int memberTotal, int cancelTotal) {
+        DVD popular = new DVD("DQ001", "Popular Release", new String[]{"Star"}, "Studio", "Drama", 120,
+                              "Director", "PG");
+        LibraryMember[] members = new LibraryMember[memberTotal + 1];
+        for (int i = 0; i <= memberTotal; i++) {
+            members[i] = new LibraryMember("QM" + i, "Queued " + i, "queued" + i + "@email.com", "Public");
+        }
+        members[0].tryCheckOut(popular);
+        ReservationQueue queue = popular.reservations();
+        
+        long start = System.nanoTime();
+        for (int i = 1; i <= memberTotal; i++) {
+            queue.enqueue(members[i]);
+        }
+        double enqueueNanos = (double) (System.nanoTime() - start) / memberTotal;
+        
+        boolean[] cancelled = new boolean[memberTotal + 1];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        start = System.nanoTime();
+        for (int c = 0; c < cancelTotal; c++) {
+            int i = 1 + random.nextInt(memberTotal);
+            if (!cancelled[i] && queue.cancel(members[i])) {
+                cancelled[i] = true;
+            }
+        }
+        double cancelNanos = (double) (System.nanoTime() - start) / cancelTotal;
+        
+        // Each cycle returns the copy and has the member it was held for claim it
+        LibraryMember holder = members[0];
+        int expected = 1;
+        int handOffs = 0;
+        boolean fifo = true;
+        start = System.nanoTime();
+        while (true) {
+            holder.tryReturn(popular);
+            LibraryMember next = queue.getReadyHolder();
+            if (next == null) {
+                break;
+            }
+            while (cancelled[expected]) {
+                expected++;
+            }
+            fifo &= next == members[expected++];
+            next.tryCheckOut(popular);
+            holder = next;
+            handOffs++;
+        }
+        double handOffNanos = (double) (System.nanoTime() - start) / Math.max(1, handOffs);
+        System.out.println(memberTotal + " reservations on one copy: enqueue " + String.format("%.0f", enqueueNanos) +
+                         " ns, cancel " + String.format("%.0f", cancelNanos) + " ns, return + hand-off + claim " +
+                         String.format("%.0f", handOffNanos) + " ns; " + handOffs + " hand-offs in FIFO order: " +
+                         (fifo ? "Yes" : "NO") + ", copy back on shelf: " + (popular.isAvailable() ? "Yes" : "No"));
+    }
+    
+    // Walks the first pages of a ranked query with cursors and times each
+    private static void runRankedSearchBenchmark(LibraryManagementSystem library, String query, int pageSize,
+                                                 int pageCount) {
+        SearchCursor cursor = null;
+        for (int p = 1; p <= pageCount; p++) {
+            long start = System.nanoTime();
+            SearchPage page = library.rankedSearch(SearchField.TITLE, query, pageSize, cursor);
+            double millis = (System.nanoTime() - start) / 1_000_000.0;
+            int[] ids = page.getResourceIds();
+            if (ids.length == 0) {
+                System.out.println("Page " + p + ": no matches (" + String.format("%.1f", millis) + " ms)");
+                break;
+            }
+            System.out.println("Page " + p + ": " + ids.length + " of at least " + page.getTotalMatches() + " matches in " +
+                             String.format("%.1f", millis) + " ms, ids " + ids[0] + ".." + ids[ids.length - 1] +
+                             ", top score " + String.format("%.4f", page.getScores()[0]));
+            cursor = page.getNextCursor();
+            if (cursor == null) {
+                System.out.println("Last page reached");
+                break;
+            }
+        }
+    }
 }
\ No newline at end of file
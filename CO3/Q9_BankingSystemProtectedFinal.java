@@ -1,13 +1,72 @@
 package c03;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
 // Q9: Simulate a Banking System with Protected Data and Final Methods
 // Demonstrates protected access, final methods, and inheritance in banking context
 
+// Money stored as whole cents in a long and rates in basis points, so
+// balances never drift and formatting skips String.format. appendTo
+// writes into the caller's builder, so a log line needs only one
+// StringBuilder.
+final class Money {
+    private Money() {
+    }
+    
+    public static long of(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    public static double toDouble(long cents) {
+        return cents / 100.0;
+    }
+    
+    public static long basisPoints(double percent) {
+        return Math.round(percent * 100);
+    }
+    
+    public static double toPercent(long basisPoints) {
+        return basisPoints / 100.0;
+    }
+    
+    // value / divisor rounded half away from zero
+    public static long divideRounded(long value, long divisor) {
+        long half = divisor / 2;
+        return value >= 0 ? (value + half) / divisor : -((-value + half) / divisor);
+    }
+    
+    public static long percentOf(long cents, long basisPoints) {
+        return divideRounded(cents * basisPoints, 10_000);
+    }
+    
+    public static StringBuilder appendTo(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        out.append(cents / 100).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+    
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+}
+
 // Base Account class with protected data and final methods
 abstract class Account {
     protected String accountNumber;
     protected String accountHolder;
-    protected double balance;
+    protected long balanceCents;
     protected static int accountCounter = 1000;
     protected final String bankName = "SecureBank";
     protected final String branchCode;
@@ -17,7 +76,16 @@ abstract class Account {
         this.accountNumber = generateAccountNumber();
         this.accountHolder = accountHolder;
         this.branchCode = branchCode;
-        this.balance = initialBalance;
+        this.balanceCents = Money.of(initialBalance);
+    }
+    
+    // Rebuilds an existing account (e.g. a view over a columnar store row)
+    // without drawing a new account number
+    protected Account(String accountNumber, String accountHolder, String branchCode, long balanceCents) {
+        this.accountNumber = accountNumber;
+        this.accountHolder = accountHolder;
+        this.branchCode = branchCode;
+        this.balanceCents = balanceCents;
     }
     
     // Protected method to generate account number
@@ -36,8 +104,13 @@ abstract class Account {
     }
     
     // Final method to ensure consistent interest calculation across all accounts
-    protected final double calculateCompoundInterest(double principal, double rate, int years) {
-        return principal * Math.pow(1 + rate/100, years) - principal;
+    // Compounds yearly in cents, rounding each year's interest to the cent
+    protected final long calculateCompoundInterest(long principalCents, long rateBps, int years) {
+        long amount = principalCents;
+        for (int i = 0; i < years; i++) {
+            amount += Money.percentOf(amount, rateBps);
+        }
+        return amount - principalCents;
     }
     
     // Abstract methods to be implemented by subclasses
@@ -47,9 +120,9 @@ abstract class Account {
     public abstract void calculateInterest();
     
     // Protected method accessible to subclasses
-    protected void updateBalance(double amount) {
-        balance += amount;
-        System.out.println("Balance updated. New balance: $" + String.format("%.2f", balance));
+    protected void updateBalance(long amountCents) {
+        balanceCents += amountCents;
+        System.out.println(Money.appendTo(new StringBuilder("Balance updated. New balance: $"), balanceCents));
     }
     
     // Final method for displaying basic account info (cannot be overridden)
@@ -60,17 +133,19 @@ abstract class Account {
         System.out.println("Account Number: " + accountNumber);
         System.out.println("Account Holder: " + accountHolder);
         System.out.println("Account Type: " + getAccountType());
-        System.out.println("Current Balance: $" + String.format("%.2f", balance));
+        System.out.println("Current Balance: $" + Money.format(balanceCents));
     }
     
     // Protected method for transaction logging
-    protected void logTransaction(String transactionType, double amount, boolean success) {
-        System.out.println("TRANSACTION LOG:");
-        System.out.println("Type: " + transactionType);
-        System.out.println("Amount: $" + String.format("%.2f", amount));
-        System.out.println("Status: " + (success ? "SUCCESS" : "FAILED"));
-        System.out.println("Account: " + accountNumber);
-        System.out.println("Time: " + java.time.LocalDateTime.now().toString().substring(0, 19));
+    // Built in one builder and printed with a single call
+    protected void logTransaction(String transactionType, long amountCents, boolean success) {
+        StringBuilder log = new StringBuilder(128);
+        log.append("TRANSACTION LOG:\nType: ").append(transactionType).append("\nAmount: $");
+        Money.appendTo(log, amountCents)
+            .append("\nStatus: ").append(success ? "SUCCESS" : "FAILED")
+            .append("\nAccount: ").append(accountNumber)
+            .append("\nTime: ").append(java.time.LocalDateTime.now().toString(), 0, 19);
+        System.out.println(log);
     }
     
     // Final getter methods (cannot be overridden for security)
@@ -83,7 +158,11 @@ abstract class Account {
     }
     
     public final double getBalance() {
-        return balance;
+        return Money.toDouble(balanceCents);
+    }
+    
+    public final long getBalanceCents() {
+        return balanceCents;
     }
     
     public final String getBankName() {
@@ -93,59 +172,76 @@ abstract class Account {
 
 // SavingsAccount subclass
 class SavingsAccount extends Account {
-    private double interestRate;
+    private long interestRateBps;
     private int withdrawalCount;
     private final int maxWithdrawalsPerMonth = 6;
-    private final double minimumBalance = 100.0;
+    private final long minimumBalanceCents = 10_000;
     
     public SavingsAccount(String accountHolder, String branchCode, double initialBalance, double interestRate) {
         super(accountHolder, branchCode, initialBalance);
-        this.interestRate = interestRate;
+        this.interestRateBps = Money.basisPoints(interestRate);
         this.withdrawalCount = 0;
     }
     
+    SavingsAccount(String accountNumber, String accountHolder, String branchCode, long balanceCents,
+                   long interestRateBps, int withdrawalCount) {
+        super(accountNumber, accountHolder, branchCode, balanceCents);
+        this.interestRateBps = interestRateBps;
+        this.withdrawalCount = withdrawalCount;
+    }
+    
+    long getInterestRateBps() {
+        return interestRateBps;
+    }
+    
+    int getWithdrawalCount() {
+        return withdrawalCount;
+    }
+    
     @Override
     public void deposit(double amount) {
-        if (amount > 0) {
+        long cents = Money.of(amount);
+        if (cents > 0) {
             // Using protected method from parent class
-            updateBalance(amount);
+            updateBalance(cents);
             
             // Using protected method for logging
-            logTransaction("DEPOSIT", amount, true);
+            logTransaction("DEPOSIT", cents, true);
             
             System.out.println("Deposit successful to Savings Account");
         } else {
             System.out.println("Invalid deposit amount");
-            logTransaction("DEPOSIT", amount, false);
+            logTransaction("DEPOSIT", cents, false);
         }
     }
     
     @Override
     public boolean withdraw(double amount) {
-        if (amount <= 0) {
+        long cents = Money.of(amount);
+        if (cents <= 0) {
             System.out.println("Invalid withdrawal amount");
-            logTransaction("WITHDRAWAL", amount, false);
+            logTransaction("WITHDRAWAL", cents, false);
             return false;
         }
         
         if (withdrawalCount >= maxWithdrawalsPerMonth) {
             System.out.println("Maximum withdrawals per month exceeded");
-            logTransaction("WITHDRAWAL", amount, false);
+            logTransaction("WITHDRAWAL", cents, false);
             return false;
         }
         
         // Accessing protected field directly
-        if (balance - amount < minimumBalance) {
+        if (balanceCents - cents < minimumBalanceCents) {
             System.out.println("Withdrawal would violate minimum balance requirement");
-            logTransaction("WITHDRAWAL", amount, false);
+            logTransaction("WITHDRAWAL", cents, false);
             return false;
         }
         
         // Using protected method
-        updateBalance(-amount);
+        updateBalance(-cents);
         withdrawalCount++;
         
-        logTransaction("WITHDRAWAL", amount, true);
+        logTransaction("WITHDRAWAL", cents, true);
         System.out.println("Withdrawal successful from Savings Account");
         System.out.println("Remaining withdrawals this month: " + (maxWithdrawalsPerMonth - withdrawalCount));
         
@@ -154,26 +250,26 @@ class SavingsAccount extends Account {
     
     @Override
     public double getMinimumBalance() {
-        return minimumBalance;
+        return Money.toDouble(minimumBalanceCents);
     }
     
     @Override
     public void calculateInterest() {
         // Using final method from parent class
-        double interest = calculateCompoundInterest(balance, interestRate, 1);
-        System.out.println("Annual interest earned: $" + String.format("%.2f", interest));
+        long interest = calculateCompoundInterest(balanceCents, interestRateBps, 1);
+        System.out.println("Annual interest earned: $" + Money.format(interest));
         
         // Monthly interest
-        double monthlyInterest = balance * (interestRate / 12 / 100);
+        long monthlyInterest = monthlyInterest(balanceCents, interestRateBps);
         updateBalance(monthlyInterest);
-        System.out.println("Monthly interest added: $" + String.format("%.2f", monthlyInterest));
+        System.out.println("Monthly interest added: $" + Money.format(monthlyInterest));
     }
     
     // Savings-specific method
     public void displaySavingsInfo() {
         displayBasicAccountInfo(); // Final method from parent
-        System.out.println("Interest Rate: " + interestRate + "% per annum");
-        System.out.println("Minimum Balance: $" + String.format("%.2f", minimumBalance));
+        System.out.println("Interest Rate: " + Money.toPercent(interestRateBps) + "% per annum");
+        System.out.println("Minimum Balance: $" + Money.format(minimumBalanceCents));
         System.out.println("Withdrawals this month: " + withdrawalCount + "/" + maxWithdrawalsPerMonth);
     }
     
@@ -181,55 +277,74 @@ class SavingsAccount extends Account {
         withdrawalCount = 0;
         System.out.println("Monthly withdrawal count reset");
     }
+    
+    // One month of interest on a balance at an annual rate, to the cent
+    static long monthlyInterest(long balanceCents, long interestRateBps) {
+        return Money.divideRounded(balanceCents * interestRateBps, 120_000);
+    }
 }
 
 // CurrentAccount subclass
 class CurrentAccount extends Account {
-    private double overdraftLimit;
-    private final double minimumBalance = 0.0;
-    private final double maintenanceFee = 25.0;
+    private long overdraftLimitCents;
+    private final long minimumBalanceCents = 0;
+    static final long MAINTENANCE_FEE_CENTS = 2_500;
+    static final long OVERDRAFT_FEE_BPS = 200; // 2% monthly overdraft fee
+    private final long maintenanceFeeCents = MAINTENANCE_FEE_CENTS;
     
     public CurrentAccount(String accountHolder, String branchCode, double initialBalance, double overdraftLimit) {
         super(accountHolder, branchCode, initialBalance);
-        this.overdraftLimit = overdraftLimit;
+        this.overdraftLimitCents = Money.of(overdraftLimit);
+    }
+    
+    CurrentAccount(String accountNumber, String accountHolder, String branchCode, long balanceCents,
+                   long overdraftLimitCents) {
+        super(accountNumber, accountHolder, branchCode, balanceCents);
+        this.overdraftLimitCents = overdraftLimitCents;
+    }
+    
+    long getOverdraftLimitCents() {
+        return overdraftLimitCents;
     }
     
     @Override
     public void deposit(double amount) {
-        if (amount > 0) {
+        long cents = Money.of(amount);
+        if (cents > 0) {
             // Accessing protected field and method
-            updateBalance(amount);
-            logTransaction("DEPOSIT", amount, true);
+            updateBalance(cents);
+            logTransaction("DEPOSIT", cents, true);
             System.out.println("Deposit successful to Current Account");
         } else {
             System.out.println("Invalid deposit amount");
-            logTransaction("DEPOSIT", amount, false);
+            logTransaction("DEPOSIT", cents, false);
         }
     }
     
     @Override
     public boolean withdraw(double amount) {
-        if (amount <= 0) {
+        long cents = Money.of(amount);
+        if (cents <= 0) {
             System.out.println("Invalid withdrawal amount");
-            logTransaction("WITHDRAWAL", amount, false);
+            logTransaction("WITHDRAWAL", cents, false);
             return false;
         }
         
         // Current account allows overdraft
-        if (balance - amount < -overdraftLimit) {
+        if (balanceCents - cents < -overdraftLimitCents) {
             System.out.println("Withdrawal exceeds overdraft limit");
             System.out.println("Available balance including overdraft: $" + 
-                             String.format("%.2f", balance + overdraftLimit));
-            logTransaction("WITHDRAWAL", amount, false);
+                             Money.format(balanceCents + overdraftLimitCents));
+            logTransaction("WITHDRAWAL", cents, false);
             return false;
         }
         
-        updateBalance(-amount);
-        logTransaction("WITHDRAWAL", amount, true);
+        updateBalance(-cents);
+        logTransaction("WITHDRAWAL", cents, true);
         System.out.println("Withdrawal successful from Current Account");
         
-        if (balance < 0) {
-            System.out.println("Account is now in overdraft: $" + String.format("%.2f", Math.abs(balance)));
+        if (balanceCents < 0) {
+            System.out.println(Money.appendTo(new StringBuilder("Account is now in overdraft: $"), -balanceCents));
         }
         
         return true;
@@ -237,16 +352,16 @@ class CurrentAccount extends Account {
     
     @Override
     public double getMinimumBalance() {
-        return minimumBalance;
+        return Money.toDouble(minimumBalanceCents);
     }
     
     @Override
     public void calculateInterest() {
         // Current accounts typically don't earn interest, but may charge overdraft fees
-        if (balance < 0) {
-            double overdraftFee = Math.abs(balance) * 0.02; // 2% monthly overdraft fee
+        if (balanceCents < 0) {
+            long overdraftFee = overdraftFee(balanceCents);
             updateBalance(-overdraftFee);
-            System.out.println("Overdraft fee charged: $" + String.format("%.2f", overdraftFee));
+            System.out.println("Overdraft fee charged: $" + Money.format(overdraftFee));
         } else {
             System.out.println("No interest calculation for current account with positive balance");
         }
@@ -255,80 +370,106 @@ class CurrentAccount extends Account {
     // Current account specific methods
     public void displayCurrentAccountInfo() {
         displayBasicAccountInfo(); // Final method from parent
-        System.out.println("Overdraft Limit: $" + String.format("%.2f", overdraftLimit));
-        System.out.println("Available Balance: $" + String.format("%.2f", balance + overdraftLimit));
-        System.out.println("Monthly Maintenance Fee: $" + String.format("%.2f", maintenanceFee));
+        System.out.println("Overdraft Limit: $" + Money.format(overdraftLimitCents));
+        System.out.println("Available Balance: $" + Money.format(balanceCents + overdraftLimitCents));
+        System.out.println("Monthly Maintenance Fee: $" + Money.format(maintenanceFeeCents));
         
-        if (balance < 0) {
+        if (balanceCents < 0) {
             System.out.println("⚠️  Account is in OVERDRAFT");
         }
     }
     
     public void chargeMaintenanceFee() {
-        updateBalance(-maintenanceFee);
-        logTransaction("MAINTENANCE_FEE", maintenanceFee, true);
+        updateBalance(-maintenanceFeeCents);
+        logTransaction("MAINTENANCE_FEE", maintenanceFeeCents, true);
         System.out.println("Monthly maintenance fee charged");
     }
     
     public double getOverdraftLimit() {
-        return overdraftLimit;
+        return Money.toDouble(overdraftLimitCents);
+    }
+    
+    // Monthly fee on the overdrawn part of a balance; zero when not overdrawn
+    static long overdraftFee(long balanceCents) {
+        return balanceCents < 0 ? Money.percentOf(-balanceCents, OVERDRAFT_FEE_BPS) : 0;
     }
 }
 
 // Fixed Deposit Account (another subclass)
 class FixedDepositAccount extends Account {
-    private final double interestRate;
+    private final long interestRateBps;
     private final int termInMonths;
     private final java.time.LocalDate maturityDate;
-    private final double penaltyRate = 2.0; // 2% penalty for early withdrawal
+    private final long penaltyRateBps = 200; // 2% penalty for early withdrawal
     
     public FixedDepositAccount(String accountHolder, String branchCode, double initialBalance, 
                               double interestRate, int termInMonths) {
         super(accountHolder, branchCode, initialBalance);
-        this.interestRate = interestRate;
+        this.interestRateBps = Money.basisPoints(interestRate);
         this.termInMonths = termInMonths;
         this.maturityDate = java.time.LocalDate.now().plusMonths(termInMonths);
     }
     
+    FixedDepositAccount(String accountNumber, String accountHolder, String branchCode, long balanceCents,
+                        long interestRateBps, int termInMonths, java.time.LocalDate maturityDate) {
+        super(accountNumber, accountHolder, branchCode, balanceCents);
+        this.interestRateBps = interestRateBps;
+        this.termInMonths = termInMonths;
+        this.maturityDate = maturityDate;
+    }
+    
+    long getInterestRateBps() {
+        return interestRateBps;
+    }
+    
+    int getTermInMonths() {
+        return termInMonths;
+    }
+    
+    java.time.LocalDate getMaturityDate() {
+        return maturityDate;
+    }
+    
     @Override
     public void deposit(double amount) {
         System.out.println("Additional deposits not allowed in Fixed Deposit Account");
-        logTransaction("DEPOSIT", amount, false);
+        logTransaction("DEPOSIT", Money.of(amount), false);
     }
     
     @Override
     public boolean withdraw(double amount) {
         java.time.LocalDate today = java.time.LocalDate.now();
+        long cents = Money.of(amount);
         
         if (today.isBefore(maturityDate)) {
             System.out.println("Early withdrawal from Fixed Deposit");
-            System.out.println("Penalty will be applied: " + penaltyRate + "%");
+            System.out.println("Penalty will be applied: " + Money.toPercent(penaltyRateBps) + "%");
             
-            double penalty = balance * (penaltyRate / 100);
-            double availableAmount = balance - penalty;
+            long penalty = Money.percentOf(balanceCents, penaltyRateBps);
+            long availableCents = balanceCents - penalty;
             
-            if (amount > availableAmount) {
+            if (cents > availableCents) {
                 System.out.println("Insufficient funds after penalty");
-                logTransaction("EARLY_WITHDRAWAL", amount, false);
+                logTransaction("EARLY_WITHDRAWAL", cents, false);
                 return false;
             }
             
             updateBalance(-penalty);
-            updateBalance(-amount);
+            updateBalance(-cents);
             
-            System.out.println("Penalty charged: $" + String.format("%.2f", penalty));
-            logTransaction("EARLY_WITHDRAWAL", amount, true);
+            System.out.println("Penalty charged: $" + Money.format(penalty));
+            logTransaction("EARLY_WITHDRAWAL", cents, true);
             
         } else {
             // Matured FD
-            if (amount > balance) {
+            if (cents > balanceCents) {
                 System.out.println("Insufficient funds");
-                logTransaction("WITHDRAWAL", amount, false);
+                logTransaction("WITHDRAWAL", cents, false);
                 return false;
             }
             
-            updateBalance(-amount);
-            logTransaction("MATURED_WITHDRAWAL", amount, true);
+            updateBalance(-cents);
+            logTransaction("MATURED_WITHDRAWAL", cents, true);
             System.out.println("Withdrawal from matured Fixed Deposit");
         }
         
@@ -337,20 +478,20 @@ class FixedDepositAccount extends Account {
     
     @Override
     public double getMinimumBalance() {
-        return balance; // Cannot go below initial deposit
+        return Money.toDouble(balanceCents); // Cannot go below initial deposit
     }
     
     @Override
     public void calculateInterest() {
         // Using final method from parent class
-        double maturityAmount = calculateCompoundInterest(balance, interestRate, termInMonths / 12);
-        System.out.println("Maturity amount: $" + String.format("%.2f", balance + maturityAmount));
-        System.out.println("Interest to be earned: $" + String.format("%.2f", maturityAmount));
+        long maturityInterest = calculateCompoundInterest(balanceCents, interestRateBps, termInMonths / 12);
+        System.out.println("Maturity amount: $" + Money.format(balanceCents + maturityInterest));
+        System.out.println("Interest to be earned: $" + Money.format(maturityInterest));
     }
     
     public void displayFDInfo() {
         displayBasicAccountInfo(); // Final method from parent
-        System.out.println("Interest Rate: " + interestRate + "% per annum");
+        System.out.println("Interest Rate: " + Money.toPercent(interestRateBps) + "% per annum");
         System.out.println("Term: " + termInMonths + " months");
         System.out.println("Maturity Date: " + maturityDate);
         
@@ -363,6 +504,239 @@ class FixedDepositAccount extends Account {
     }
 }
 
+// String dictionary: each distinct string is stored once and rows keep
+// its int id
+final class StringDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+    
+    public String valueOf(int id) {
+        return values.get(id);
+    }
+    
+    public int size() {
+        return values.size();
+    }
+}
+
+// Columnar (struct-of-arrays) account store
+// Every account is a row index into parallel primitive arrays. Account
+// numbers are unique, so only their numeric part is kept and view()
+// rebuilds the "ACC" string; holder and branch repeat and are dictionary
+// ids. Month-end sweeps walk a few contiguous arrays instead of chasing
+// one heap object per account.
+// view() and update() hand out a regular Account for code that needs one
+class ColumnarAccountStore {
+    static final byte SAVINGS = 0;
+    static final byte CURRENT = 1;
+    static final byte FIXED_DEPOSIT = 2;
+    
+    private final StringDictionary strings = new StringDictionary();
+    private int size;
+    private byte[] types;
+    private long[] balances;
+    private long[] rates;           // interest rate for savings and FDs
+    private long[] overdraftLimits;
+    private int[] withdrawalCounts;
+    private int[] terms;
+    private long[] maturityDays;    // maturity date as epoch day
+    // n for "ACC" + n; a number in any other form is kept in the
+    // dictionary and stored as -(id + 1)
+    private long[] numbers;
+    private int[] holderIds;
+    private int[] branchIds;
+    // Account last passed to update() and the row it matches, so repeated
+    // updates of one row reuse it; -1 when nothing is cached
+    private int cachedRow = -1;
+    private Account cachedAccount;
+    
+    public ColumnarAccountStore(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        types = new byte[capacity];
+        balances = new long[capacity];
+        rates = new long[capacity];
+        overdraftLimits = new long[capacity];
+        withdrawalCounts = new int[capacity];
+        terms = new int[capacity];
+        maturityDays = new long[capacity];
+        numbers = new long[capacity];
+        holderIds = new int[capacity];
+        branchIds = new int[capacity];
+    }
+    
+    public int addSavings(String accountHolder, String branchCode, double initialBalance, double interestRate) {
+        int row = newRow(SAVINGS, ++Account.accountCounter, accountHolder, branchCode, Money.of(initialBalance));
+        rates[row] = Money.basisPoints(interestRate);
+        return row;
+    }
+    
+    public int addCurrent(String accountHolder, String branchCode, double initialBalance, double overdraftLimit) {
+        int row = newRow(CURRENT, ++Account.accountCounter, accountHolder, branchCode, Money.of(initialBalance));
+        overdraftLimits[row] = Money.of(overdraftLimit);
+        return row;
+    }
+    
+    // Copies an existing account object into a new row
+    public int add(Account account) {
+        byte type;
+        if (account instanceof SavingsAccount) {
+            type = SAVINGS;
+        } else if (account instanceof CurrentAccount) {
+            type = CURRENT;
+        } else if (account instanceof FixedDepositAccount) {
+            type = FIXED_DEPOSIT;
+        } else {
+            throw new IllegalArgumentException("Unsupported account type: " + account.getAccountType());
+        }
+        int row = newRow(type, numberOf(account.accountNumber), account.accountHolder, account.branchCode,
+                         account.balanceCents);
+        store(row, account);
+        return row;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long getBalanceCents(int row) {
+        return balances[row];
+    }
+    
+    public long getTotalBalanceCents() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += balances[i];
+        }
+        return total;
+    }
+    
+    // Detached Account built from the row; changes to it are not stored
+    public Account view(int row) {
+        long encoded = numbers[row];
+        String number = encoded >= 0 ? "ACC" + encoded : strings.valueOf((int) -(encoded + 1));
+        String holder = strings.valueOf(holderIds[row]);
+        String branch = strings.valueOf(branchIds[row]);
+        switch (types[row]) {
+            case SAVINGS:
+                return new SavingsAccount(number, holder, branch, balances[row], rates[row], withdrawalCounts[row]);
+            case CURRENT:
+                return new CurrentAccount(number, holder, branch, balances[row], overdraftLimits[row]);
+            default:
+                return new FixedDepositAccount(number, holder, branch, balances[row], rates[row], terms[row],
+                                               java.time.LocalDate.ofEpochDay(maturityDays[row]));
+        }
+    }
+    
+    // Runs an operation against an Account for the row and writes the result
+    // back. The account is reused while the same row keeps being updated, so
+    // the operation must not hold on to it
+    public <T> T update(int row, Function<Account, T> operation) {
+        Account account = row == cachedRow ? cachedAccount : view(row);
+        cachedRow = -1; // an operation that throws may leave it half-changed
+        T result = operation.apply(account);
+        store(row, account);
+        cachedRow = row;
+        cachedAccount = account;
+        return result;
+    }
+    
+    // Same month-end rules as processMonthlyOperations(Account[]), through
+    // the same helpers: savings earn a month of interest and get their
+    // withdrawal count reset, current accounts pay any overdraft fee plus
+    // the maintenance fee and fixed deposits are left alone. Returns the
+    // number of rows changed
+    public int processMonthlyOperations() {
+        cachedRow = -1;
+        int changed = 0;
+        for (int i = 0; i < size; i++) {
+            switch (types[i]) {
+                case SAVINGS:
+                    balances[i] += SavingsAccount.monthlyInterest(balances[i], rates[i]);
+                    withdrawalCounts[i] = 0;
+                    changed++;
+                    break;
+                case CURRENT:
+                    balances[i] -= CurrentAccount.overdraftFee(balances[i]);
+                    balances[i] -= CurrentAccount.MAINTENANCE_FEE_CENTS;
+                    changed++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return changed;
+    }
+    
+    // Numeric column value for an account number: n when it reads exactly
+    // "ACC" + n, otherwise its negated dictionary id
+    private long numberOf(String accountNumber) {
+        if (accountNumber.length() > 3 && accountNumber.length() <= 21 && accountNumber.startsWith("ACC")) {
+            try {
+                long n = Long.parseLong(accountNumber.substring(3));
+                if (n >= 0 && accountNumber.equals("ACC" + n)) {
+                    return n;
+                }
+            } catch (NumberFormatException e) {
+                // not the generated form
+            }
+        }
+        return -(strings.idOf(accountNumber) + 1L);
+    }
+    
+    private int newRow(byte type, long number, String accountHolder, String branchCode, long balanceCents) {
+        if (size == types.length) {
+            grow();
+        }
+        int row = size++;
+        types[row] = type;
+        balances[row] = balanceCents;
+        numbers[row] = number;
+        holderIds[row] = strings.idOf(accountHolder);
+        branchIds[row] = strings.idOf(branchCode);
+        return row;
+    }
+    
+    private void store(int row, Account account) {
+        balances[row] = account.balanceCents;
+        if (account instanceof SavingsAccount) {
+            SavingsAccount savings = (SavingsAccount) account;
+            rates[row] = savings.getInterestRateBps();
+            withdrawalCounts[row] = savings.getWithdrawalCount();
+        } else if (account instanceof CurrentAccount) {
+            overdraftLimits[row] = ((CurrentAccount) account).getOverdraftLimitCents();
+        } else if (account instanceof FixedDepositAccount) {
+            FixedDepositAccount fd = (FixedDepositAccount) account;
+            rates[row] = fd.getInterestRateBps();
+            terms[row] = fd.getTermInMonths();
+            maturityDays[row] = fd.getMaturityDate().toEpochDay();
+        }
+    }
+    
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        rates = Arrays.copyOf(rates, capacity);
+        overdraftLimits = Arrays.copyOf(overdraftLimits, capacity);
+        withdrawalCounts = Arrays.copyOf(withdrawalCounts, capacity);
+        terms = Arrays.copyOf(terms, capacity);
+        maturityDays = Arrays.copyOf(maturityDays, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        holderIds = Arrays.copyOf(holderIds, capacity);
+        branchIds = Arrays.copyOf(branchIds, capacity);
+    }
+}
+
 public class Q9_BankingSystemProtectedFinal {
     
     // Method demonstrating polymorphism with Account array
@@ -459,6 +833,36 @@ public class Q9_BankingSystemProtectedFinal {
         }
         */
         
+        // 10. Columnar account store
+        System.out.println("\n10. Columnar Account Store:");
+        ColumnarAccountStore store = new ColumnarAccountStore(16);
+        int savingsRow = store.add(savings);
+        int currentRow = store.add(current);
+        store.add(fd);
+        Account view = store.view(savingsRow);
+        System.out.println("View of row " + savingsRow + ": " + view.getAccountNumber() + " (" +
+                         view.getAccountType() + "), balance $" + Money.format(view.getBalanceCents()));
+        store.update(currentRow, account -> account.withdraw(100.0));
+        System.out.println("Current account in store after withdrawal: $" +
+                         Money.format(store.getBalanceCents(currentRow)));
+        
+        int rowTotal = 1_000_000;
+        ColumnarAccountStore bulk = new ColumnarAccountStore(rowTotal);
+        for (int i = 0; i < rowTotal; i++) {
+            if (i % 2 == 0) {
+                bulk.addSavings("Holder " + (i % 1000), "BR00" + (i % 5), 1000 + i % 5000, 4.5);
+            } else {
+                bulk.addCurrent("Holder " + (i % 1000), "BR00" + (i % 5), 500 - i % 1000, 1000);
+            }
+        }
+        bulk.processMonthlyOperations(); // warm-up
+        long start = System.nanoTime();
+        int changed = bulk.processMonthlyOperations();
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        System.out.println("Month-end sweep: " + changed + " rows in " + String.format("%.1f", millis) +
+                         " ms (" + String.format("%.0f", changed / millis * 1000) + " rows/sec)");
+        System.out.println("Total balance after two month-ends: $" + Money.format(bulk.getTotalBalanceCents()));
+        
         System.out.println("\n=== Summary ===");
         System.out.println("✓ Protected fields accessible in subclasses within same package");
         System.out.println("✓ Final methods ensure security and consistency");